@@ -1,43 +1,172 @@
+import net.paudan.weka.pmml.ConversionCache;
+import net.paudan.weka.pmml.IncrementalPMML;
 import net.paudan.weka.pmml.PMMLConversionException;
+import net.paudan.weka.pmml.ParallelPMMLMarshaller;
+import net.paudan.weka.pmml.PMMLNodeOrder;
+import net.paudan.weka.pmml.PMMLProducer;
+import net.paudan.weka.pmml.PMMLUtils;
 import net.paudan.weka.pmml.RandomForestPMMLProducer;
+import net.paudan.weka.pmml.ShardedPMML;
+import net.paudan.weka.scoring.CompiledForest;
+import net.paudan.weka.scoring.CompiledForestScorer;
+import net.paudan.weka.scoring.ForestCompiler;
+import net.paudan.weka.scoring.ForestCompressor;
+import net.paudan.weka.scoring.ForestScorer;
+import net.paudan.weka.scoring.InstrumentedForestScorer;
+import net.paudan.weka.scoring.MultiModelScorer;
+import net.paudan.weka.scoring.NodeLayout;
+import net.paudan.weka.scoring.PMMLForestCompiler;
+import net.paudan.weka.scoring.ScoringServer;
+import net.paudan.weka.scoring.StreamingScorer;
 import org.apache.commons.io.IOUtils;
 import org.dmg.pmml.PMML;
-import org.jpmml.model.JAXBUtil;
+import weka.classifiers.Classifier;
+import weka.classifiers.ColumnarData;
+import weka.classifiers.CompactForest;
+import weka.classifiers.ParallelRandomForestBuilder;
+import weka.classifiers.meta.Bagging;
 import weka.classifiers.trees.RandomForest;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
 
-import javax.xml.transform.stream.StreamResult;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class Main {
 
     public static void main(String[] args)  //static method
     {
+        if (args.length > 0 && "score".equals(args[0])) {
+            score(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "serve".equals(args[0])) {
+            serve(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "train".equals(args[0])) {
+            train(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "compress".equals(args[0])) {
+            compress(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "compact".equals(args[0])) {
+            compact(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "patch".equals(args[0])) {
+            patch(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "loadtest".equals(args[0])) {
+            loadTest(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "compare".equals(args[0])) {
+            compare(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
-            ObjectInputStream ois = new ObjectInputStream(new FileInputStream(args[0]));
-            System.out.println("Loading Weka RandomForest model...");
-            RandomForest rf = (RandomForest) ois.readObject();
-            System.out.println("Weka RandomForest model Loaded.");
-            ois.close();
+            String name = args[0].split("\\.")[0];
 
-            RandomForestPMMLProducer producer = new RandomForestPMMLProducer();
+            // Multi-file and incremental exports depend on more than the model, so only single files are cached.
+            ConversionCache cache = null;
+            String cacheKey = null;
+            int cacheOption = Arrays.asList(args).indexOf("-cache");
+            if (cacheOption > 0 && cacheOption + 1 < args.length && !Arrays.asList(args).contains("-base")
+                    && !Arrays.asList(args).contains("-shard")) {
+                cache = openCache(args[cacheOption + 1], args);
+                cacheKey = ConversionCache.key(new File(args[0]), conversionOptions("pmml", args));
+                if (cache.copyTo(cacheKey, new File(name + ".xml"))) {
+                    System.out.println("PMML File " + name + ".xml exported from the cache.");
+                    return;
+                }
+            }
 
-            System.out.println("Generating PMML Random Forest...");
-            PMML pmml = producer.produce(rf);
-            System.out.println("PMML Random Forest Generated.");
+            System.out.println("Loading Weka model...");
+            Classifier classifier = loadClassifier(args[0]);
+            System.out.println("Weka " + classifier.getClass().getSimpleName() + " model Loaded.");
 
-            String name = args[0].split("\\.")[0];
+            int baseOption = Arrays.asList(args).indexOf("-base");
+            if (baseOption > 0 && baseOption + 1 < args.length && classifier instanceof RandomForest) {
+                boolean delta = Arrays.asList(args).contains("-delta");
+                File output = new File(name + (delta ? "-delta.xml" : ".xml"));
+                RandomForestPMMLProducer forestProducer = new RandomForestPMMLProducer();
+                int threads = Runtime.getRuntime().availableProcessors();
+                System.out.println("Exporting PMML File incrementally...");
+                IncrementalPMML.Result result = delta
+                        ? forestProducer.produceDelta((RandomForest) classifier, new File(args[baseOption + 1]), output, threads)
+                        : forestProducer.produceIncremental((RandomForest) classifier, new File(args[baseOption + 1]), output, threads);
+                System.out.println("PMML File " + output + " exported: " + result.getConvertedSegments()
+                        + " trees converted, " + result.getReusedSegments() + " reused.");
+                return;
+            }
+
+            if (classifier instanceof RandomForest && !Arrays.asList(args).contains("-reorder")
+                    && !Arrays.asList(args).contains("-shard")) {
+                // Let the producer build the PMML in memory or stream it, depending on its size.
+                RandomForestPMMLProducer forestProducer = new RandomForestPMMLProducer();
+                int budgetOption = Arrays.asList(args).indexOf("-budget");
+                if (budgetOption > 0 && budgetOption + 1 < args.length) {
+                    forestProducer.setHeapBudget(Long.parseLong(args[budgetOption + 1]) << 20);
+                }
+                System.out.println("Exporting PMML File...");
+                forestProducer.produce((RandomForest) classifier, new File(name + ".xml"),
+                        Runtime.getRuntime().availableProcessors());
+                System.out.println("PMML File exported.");
+                if (cache != null) {
+                    cache.put(cacheKey, new File(name + ".xml"));
+                }
+                return;
+            }
+
+            PMMLProducer<Classifier> producer =
+                    PMMLUtils.Algorithm.fromClassifier(classifier).getClassifierPMMLProducer();
+
+            System.out.println("Generating PMML...");
+            PMML pmml = producer.produce(classifier);
+            if (Arrays.asList(args).contains("-reorder")) {
+                PMMLNodeOrder.reorder(pmml);
+            }
+            System.out.println("PMML Generated.");
+
+            int shardOption = Arrays.asList(args).indexOf("-shard");
+            if (shardOption > 0 && shardOption + 1 < args.length) {
+                System.out.println("Exporting sharded PMML Files...");
+                List<File> shards = ShardedPMML.write(pmml, new File(name + ".xml"), Integer.parseInt(args[shardOption + 1]));
+                System.out.println("PMML manifest and " + shards.size() + " shard files exported.");
+                return;
+            }
 
             OutputStream os = null;
+            ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(Runtime.getRuntime().availableProcessors());
+            boolean exported = false;
             try {
-                System.out.println("Exporting PMML Random Forest File...");
-                os = new FileOutputStream(name + ".xml");
-                StreamResult result = new StreamResult(os);
-                JAXBUtil.marshalPMML(pmml, result);
-                System.out.println("PMML Random Forest File exported.");
+                System.out.println("Exporting PMML File...");
+                os = new BufferedOutputStream(new FileOutputStream(name + ".xml"), 1 << 16);
+                marshaller.marshal(pmml, os);
+                os.close();
+                exported = true;
+                System.out.println("PMML File exported.");
             } catch (Exception e) {
                 System.err.println("Error: There was a problem generating the file " + name+ ".xml.");
             } finally {
                 IOUtils.closeQuietly(os);
+                marshaller.shutdown();
+            }
+            if (exported && cache != null) {
+                cache.put(cacheKey, new File(name + ".xml"));
             }
 
         } catch (FileNotFoundException e) {
@@ -48,4 +177,425 @@ public class Main {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Scores an ARFF or CSV file with a Weka RandomForest model or its PMML, writing one CSV line of scores per
+     * input row.
+     * <p/>
+     * Usage: {@code score (model.model|model.xml) input.(arff|csv) [output.csv] [-threads n] [-batch n] [-report seconds] [-instrument]};
+     * with {@code -instrument} the costliest trees and most evaluated attributes are printed at the end.
+     *
+     * @param args The arguments following the {@code score} subcommand.
+     */
+    private static void score(String[] args) {
+        Writer output = null;
+        try {
+            int threads = intOption("threads", args, Runtime.getRuntime().availableProcessors());
+            int batchSize = intOption("batch", args, 256);
+            int reportSeconds = intOption("report", args, 10);
+            boolean instrument = Utils.getFlag("instrument", args);
+
+            List<String> files = positionalArguments(args);
+            if (files.size() < 2) {
+                System.err.println("Usage: score (model.model|model.xml) input.(arff|csv) [output.csv] [-threads n] [-batch n] [-report seconds] [-instrument]");
+                return;
+            }
+
+            CompiledForest forest = loadForest(files.get(0));
+            InstrumentedForestScorer instrumented = instrument ? new InstrumentedForestScorer(forest) : null;
+            ForestScorer scorer = instrument ? instrumented : new CompiledForestScorer(forest);
+
+            output = files.size() > 2 ? new BufferedWriter(new FileWriter(files.get(2)))
+                    : new BufferedWriter(new OutputStreamWriter(System.out));
+            StreamingScorer streamingScorer = new StreamingScorer(scorer, threads, batchSize, threads * 4,
+                    reportSeconds * 1000L, System.err);
+
+            String input = files.get(1);
+            try (Reader reader = new BufferedReader(new FileReader(input))) {
+                if (input.toLowerCase().endsWith(".csv")) {
+                    streamingScorer.scoreCsv(reader, output);
+                } else {
+                    streamingScorer.scoreArff(reader, output);
+                }
+            }
+            if (instrumented != null) {
+                instrumented.snapshot().report(System.err, 10);
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error: There was an error while scoring: " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Serves a Weka RandomForest model or its PMML over HTTP until the process is stopped.
+     * <p/>
+     * Usage: {@code serve (model.model|model.xml) [-port n] [-batch n] [-wait micros] [-threads n] [-instrument]};
+     * with {@code -instrument} the scoring statistics are exposed through JMX.
+     *
+     * @param args The arguments following the {@code serve} subcommand.
+     */
+    private static void serve(String[] args) {
+        try {
+            int port = intOption("port", args, 8080);
+            int batchSize = intOption("batch", args, 64);
+            int waitMicros = intOption("wait", args, 500);
+            int threads = intOption("threads", args, 64);
+            boolean instrument = Utils.getFlag("instrument", args);
+
+            List<String> files = positionalArguments(args);
+            if (files.isEmpty()) {
+                System.err.println("Usage: serve (model.model|model.xml) [-port n] [-batch n] [-wait micros] [-threads n] [-instrument]");
+                return;
+            }
+
+            ForestScorer scorer;
+            if (instrument) {
+                InstrumentedForestScorer instrumented = new InstrumentedForestScorer(loadForest(files.get(0)));
+                System.err.println("Scoring statistics registered as " + instrumented.register(new File(files.get(0)).getName()));
+                scorer = instrumented;
+            } else {
+                scorer = new CompiledForestScorer(loadForest(files.get(0)));
+            }
+            ScoringServer server = new ScoringServer(scorer, new InetSocketAddress(port), batchSize, waitMicros, threads);
+            server.start();
+            System.err.println("Scoring server listening on http://localhost:" + server.getAddress().getPort() + "/score");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Trains a RandomForest in parallel over a single copy of an ARFF file's data and saves it as a Weka model.
+     * <p/>
+     * Usage: {@code train (data.arff|data.csv|data.col) output.model [-trees n] [-features k] [-depth d] [-seed s] [-threads n]
+     * [-reuse-buffers] [-columnar data.col]}; with {@code -columnar}, or a {@code .col} file, the forest is trained out of
+     * core on memory-mapped columnar data, converted from the ARFF or CSV file unless it is up to date. CSV files are
+     * always converted, to {@code data.col} by default.
+     *
+     * @param args The arguments following the {@code train} subcommand.
+     */
+    private static void train(String[] args) {
+        try {
+            ParallelRandomForestBuilder builder = new ParallelRandomForestBuilder();
+            builder.setNumTrees(intOption("trees", args, builder.getNumTrees()));
+            builder.setNumFeatures(intOption("features", args, builder.getNumFeatures()));
+            builder.setMaxDepth(intOption("depth", args, builder.getMaxDepth()));
+            builder.setSeed(intOption("seed", args, builder.getSeed()));
+            builder.setNumThreads(intOption("threads", args, builder.getNumThreads()));
+            builder.setReuseScratchBuffers(Utils.getFlag("reuse-buffers", args));
+
+            String columnar = Utils.getOption("columnar", args);
+
+            List<String> files = positionalArguments(args);
+            if (files.size() < 2) {
+                System.err.println("Usage: train (data.arff|data.csv|data.col) output.model [-trees n] [-features k] [-depth d] [-seed s] [-threads n] [-reuse-buffers] [-columnar data.col]");
+                return;
+            }
+
+            File source = new File(files.get(0));
+            if (columnar.isEmpty() && source.getName().toLowerCase().endsWith(".csv")) {
+                // CSV files are only read through columnar data.
+                columnar = files.get(0).replaceAll("\\.[^.]*$", "") + ".col";
+            }
+            if (!columnar.isEmpty() || source.getName().toLowerCase().endsWith(".col")) {
+                File columnarFile = columnar.isEmpty() ? source : new File(columnar);
+                if (!columnarFile.equals(source)
+                        && (!columnarFile.exists() || columnarFile.lastModified() < source.lastModified())) {
+                    System.out.println("Converting " + source + " to columnar data " + columnarFile + "...");
+                    if (source.getName().toLowerCase().endsWith(".csv")) {
+                        ColumnarData.convertCsv(source, columnarFile);
+                    } else {
+                        ColumnarData.convertArff(source, columnarFile);
+                    }
+                }
+                try (ColumnarData data = ColumnarData.open(columnarFile)) {
+                    System.out.println("Training " + builder.getNumTrees() + " trees out of core on "
+                            + data.numRows() + " rows...");
+                    SerializationHelper.write(files.get(1), builder.build(data));
+                }
+                System.out.println("Weka RandomForest model saved to " + files.get(1) + ".");
+                return;
+            }
+
+            Instances data;
+            try (Reader reader = new BufferedReader(new FileReader(files.get(0)))) {
+                data = new Instances(reader);
+            }
+            if (data.classIndex() < 0) {
+                data.setClassIndex(data.numAttributes() - 1);
+            }
+            data.deleteWithMissingClass();
+
+            System.out.println("Training " + builder.getNumTrees() + " trees...");
+            RandomForest forest = builder.build(data);
+            SerializationHelper.write(files.get(1), forest);
+            System.out.println("Weka RandomForest model saved to " + files.get(1) + ".");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the smallest greedy subset of a forest's trees that stays within a tolerance of its accuracy, prints the
+     * latency/accuracy curve and exports the subset to PMML.
+     * <p/>
+     * Usage: {@code compress model.model data.arff [output.xml] [-tolerance t] [-oob]}; with {@code -oob} the data
+     * is the training data and the forest is evaluated out-of-bag, otherwise it is held-out data.
+     *
+     * @param args The arguments following the {@code compress} subcommand.
+     */
+    private static void compress(String[] args) {
+        try {
+            String toleranceOption = Utils.getOption("tolerance", args);
+            double tolerance = toleranceOption.isEmpty() ? 0.005 : Double.parseDouble(toleranceOption);
+            boolean outOfBag = Utils.getFlag("oob", args);
+
+            List<String> files = positionalArguments(args);
+            if (files.size() < 2) {
+                System.err.println("Usage: compress model.model data.arff [output.xml] [-tolerance t] [-oob]");
+                return;
+            }
+
+            Classifier classifier = loadClassifier(files.get(0));
+            if (!(classifier instanceof Bagging)) {
+                System.err.println("Error: Only RandomForest and Bagging models can be compressed.");
+                return;
+            }
+            Bagging bagging = (Bagging) classifier;
+
+            Instances data;
+            try (Reader reader = new BufferedReader(new FileReader(files.get(1)))) {
+                data = new Instances(reader);
+            }
+            data.setClassIndex(ForestCompiler.compile(bagging).getHeader().classIndex());
+
+            ForestCompressor.Result result = outOfBag ? ForestCompressor.selectOutOfBag(bagging, data, tolerance)
+                    : ForestCompressor.select(bagging, data, tolerance);
+            result.report(System.out);
+
+            Bagging compressed = ForestCompressor.compress(bagging, result.getSelectedTrees());
+            String output = files.size() > 2 ? files.get(2) : files.get(0).split("\\.")[0] + "-compressed.xml";
+            PMMLUtils.Algorithm.fromClassifier(compressed).getClassifierPMMLProducer().produce(compressed, new File(output));
+            System.out.println("PMML File exported to " + output + ".");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites a serialized RandomForest, or Bagging of RandomTrees, in the compact form of
+     * {@link weka.classifiers.CompactForest}, which every other subcommand also loads.
+     * <p/>
+     * Usage: {@code compact model.model output.model [-cache dir] [-cache-size MB]}
+     *
+     * @param args The arguments following the {@code compact} subcommand.
+     */
+    private static void compact(String[] args) {
+        try {
+            String cacheDirectory = Utils.getOption("cache", args);
+            ConversionCache cache = cacheDirectory.isEmpty() ? null : openCache(cacheDirectory, args);
+            List<String> files = positionalArguments(args);
+            if (files.size() < 2) {
+                System.err.println("Usage: compact model.model output.model [-cache dir] [-cache-size MB]");
+                return;
+            }
+            String cacheKey = cache == null ? null
+                    : ConversionCache.key(new File(files.get(0)), Collections.singletonList("compact"));
+            if (cache != null && cache.copyTo(cacheKey, new File(files.get(1)))) {
+                System.out.println("Compact model " + files.get(1) + " copied from the cache.");
+                return;
+            }
+            CompactForest.convert(new File(files.get(0)), new File(files.get(1)));
+            if (cache != null) {
+                cache.put(cacheKey, new File(files.get(1)));
+            }
+            System.out.println("Compact model saved to " + files.get(1) + " (" + new File(files.get(0)).length()
+                    + " -> " + new File(files.get(1)).length() + " bytes).");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a delta written by the converter with {@code -base previous.xml -delta} to the previous export.
+     * <p/>
+     * Usage: {@code patch previous.xml delta.xml output.xml}
+     *
+     * @param args The arguments following the {@code patch} subcommand.
+     */
+    private static void patch(String[] args) {
+        try {
+            List<String> files = positionalArguments(args);
+            if (files.size() < 3) {
+                System.err.println("Usage: patch previous.xml delta.xml output.xml");
+                return;
+            }
+            IncrementalPMML.Result result = IncrementalPMML.apply(new File(files.get(0)), new File(files.get(1)),
+                    new File(files.get(2)));
+            System.out.println("PMML File " + files.get(2) + " written: " + result.getConvertedSegments()
+                    + " segments from the delta, " + result.getReusedSegments() + " reused.");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the rows of an ARFF file to a running scoring server and reports latency and throughput.
+     * <p/>
+     * Usage: {@code loadtest input.arff [-url url] [-concurrency n] [-requests n]}
+     *
+     * @param args The arguments following the {@code loadtest} subcommand.
+     */
+    private static void loadTest(String[] args) {
+        try {
+            String url = Utils.getOption("url", args);
+            int concurrency = intOption("concurrency", args, 32);
+            int requests = intOption("requests", args, 100000);
+
+            List<String> files = positionalArguments(args);
+            if (files.isEmpty()) {
+                System.err.println("Usage: loadtest input.arff [-url url] [-concurrency n] [-requests n]");
+                return;
+            }
+
+            List<String> queries = new ArrayList<>();
+            try (Reader reader = new BufferedReader(new FileReader(files.get(0)))) {
+                Instances data = new Instances(reader);
+                for (int i = 0; i < data.numInstances(); i++) {
+                    Instance instance = data.instance(i);
+                    StringBuilder query = new StringBuilder();
+                    for (int j = 0; j < data.numAttributes(); j++) {
+                        if (instance.isMissing(j)) {
+                            continue;
+                        }
+                        String value = data.attribute(j).isNumeric() ? String.valueOf(instance.value(j)) : instance.stringValue(j);
+                        query.append(query.length() == 0 ? "" : "&")
+                                .append(URLEncoder.encode(data.attribute(j).name(), "UTF-8")).append('=')
+                                .append(URLEncoder.encode(value, "UTF-8"));
+                    }
+                    queries.add(query.toString());
+                }
+            }
+
+            ScoringServer.loadTest(new URL(url.isEmpty() ? "http://localhost:8080/score" : url), queries, concurrency,
+                    requests, System.out);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Scores an ARFF file with a champion and one or more challenger models in a single pass, and prints the
+     * latency of each model and how often it agrees with the champion. All models must share the same header.
+     * <p/>
+     * Usage: {@code compare input.arff champion.(model|xml) challenger.(model|xml)...}
+     *
+     * @param args The arguments following the {@code compare} subcommand.
+     */
+    private static void compare(String[] args) {
+        try {
+            List<String> files = positionalArguments(args);
+            if (files.size() < 3) {
+                System.err.println("Usage: compare input.arff champion.(model|xml) challenger.(model|xml)...");
+                return;
+            }
+            List<String> names = files.subList(1, files.size());
+            List<ForestScorer> scorers = new ArrayList<>();
+            for (String file : names) {
+                scorers.add(new CompiledForestScorer(loadForest(file)));
+            }
+            MultiModelScorer scorer = new MultiModelScorer(names, scorers);
+
+            Instances data;
+            try (Reader reader = new BufferedReader(new FileReader(files.get(0)))) {
+                data = new Instances(reader);
+            }
+            data.setClassIndex(scorer.getHeader().classIndex());
+            scorer.scoreInstances(data).report(System.out);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens the conversion cache in a directory, bounded by the {@code -cache-size} option in MB, 1024 by default.
+     * The option is consumed.
+     */
+    private static ConversionCache openCache(String directory, String[] args) throws IOException {
+        int cacheSizeOption = Arrays.asList(args).indexOf("-cache-size");
+        long maxMegabytes = 1024;
+        if (cacheSizeOption >= 0 && cacheSizeOption + 1 < args.length) {
+            maxMegabytes = Long.parseLong(args[cacheSizeOption + 1]);
+            args[cacheSizeOption] = "";
+            args[cacheSizeOption + 1] = "";
+        }
+        return new ConversionCache(new File(directory), maxMegabytes << 20);
+    }
+
+    /**
+     * Lists the options of a conversion that affect its output, for its cache key: the kind of artifact and every
+     * argument after the model file, except the cache options.
+     */
+    private static List<String> conversionOptions(String artifact, String[] args) {
+        List<String> options = new ArrayList<>();
+        options.add(artifact);
+        for (int i = 1; i < args.length; i++) {
+            if ("-cache".equals(args[i]) || "-cache-size".equals(args[i])) {
+                i++;
+            } else if (!args[i].isEmpty()) {
+                options.add(args[i]);
+            }
+        }
+        return options;
+    }
+
+    private static List<String> positionalArguments(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.isEmpty()) {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+
+    /**
+     * Loads and compiles a forest from a serialized Weka RandomForest, Bagging, J48 or REPTree or, for {@code .xml}
+     * and {@code .pmml} files, from its PMML, laid out hot path first.
+     *
+     * @param file The model file.
+     * @return The compiled forest.
+     */
+    private static CompiledForest loadForest(String file) throws Exception {
+        String lower = file.toLowerCase();
+        if (lower.endsWith(".xml") || lower.endsWith(".pmml")) {
+            System.err.println("Loading PMML model...");
+            CompiledForest forest = NodeLayout.optimize(PMMLForestCompiler.compile(ShardedPMML.load(new File(file),
+                    Runtime.getRuntime().availableProcessors(), Collections.singleton(PMMLUtils.TRAINING_PROPORTION_ELEMENT))));
+            System.err.println("PMML model Loaded.");
+            return forest;
+        }
+        System.err.println("Loading Weka model...");
+        CompiledForest forest = NodeLayout.optimize(ForestCompiler.compile(loadClassifier(file)));
+        System.err.println("Weka model Loaded.");
+        return forest;
+    }
+
+    private static int intOption(String flag, String[] args, int defaultValue) throws Exception {
+        String value = Utils.getOption(flag, args);
+        return value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static Classifier loadClassifier(String file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Object model = ois.readObject();
+            return model instanceof CompactForest ? ((CompactForest) model).getForest() : (Classifier) model;
+        }
+    }
+}
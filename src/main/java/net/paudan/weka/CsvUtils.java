@@ -0,0 +1,47 @@
+package net.paudan.weka;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the CSV files used for scoring and out-of-core training.
+ */
+public final class CsvUtils {
+
+    private CsvUtils() {
+    }
+
+    /**
+     * Splits a CSV line, honouring double-quoted values.
+     *
+     * @param line The line to split.
+     * @return The values of the line, unquoted and trimmed.
+     */
+    public static List<String> splitLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values;
+    }
+}
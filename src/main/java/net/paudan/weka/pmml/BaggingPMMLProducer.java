@@ -0,0 +1,29 @@
+package net.paudan.weka.pmml;
+
+import java.io.File;
+import org.dmg.pmml.PMML;
+import weka.classifiers.RandomForestUtils;
+import weka.classifiers.meta.Bagging;
+
+/**
+ * A producer that converts a {@link weka.classifiers.meta.Bagging} of {@link weka.classifiers.trees.RandomTree},
+ * {@link weka.classifiers.trees.REPTree} or {@link weka.classifiers.trees.J48} trees to PMML.
+ */
+public class BaggingPMMLProducer implements PMMLProducer<Bagging> {
+
+    private static final String ALGORITHM_NAME = "weka:"+Bagging.class.getName();
+
+    private static final String MODEL_NAME = ALGORITHM_NAME+"_Model";
+
+
+    @Override
+    public void produce(Bagging baggingClassifier, File targetFile) throws PMMLConversionException {
+        PMMLUtils.marshal(produce(baggingClassifier), targetFile);
+    }
+
+    @Override
+    public PMML produce(Bagging baggingClassifier) throws PMMLConversionException {
+        return TreeModelBuilder.buildEnsemble(RandomForestUtils.getBaggingClassifiers(baggingClassifier),
+                "Weka Bagging as PMML", ALGORITHM_NAME, MODEL_NAME);
+    }
+}
@@ -0,0 +1,228 @@
+package net.paudan.weka.pmml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory of previously converted artifacts, such as PMML files, keyed by the bytes of the model they were
+ * converted from and the options of the conversion, so that converting the same model again only copies a file.
+ * <p/>
+ * Keys are SHA-256 digests computed from the serialized model file, which is never deserialized. Entries are
+ * written to a temporary file in the cache directory and atomically renamed, and copied out the same way, so
+ * several processes can share a cache: a reader sees either a whole entry or none. Every hit refreshes the
+ * modification time of its entry, and once the cache grows beyond its size bound the least recently used entries
+ * are deleted. An entry deleted while it is being read simply counts as a miss. Where the file system cannot
+ * rename atomically, files are renamed the regular way, and that guarantee no longer holds.
+ */
+public class ConversionCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionCache.class.getName());
+
+    /**
+     * Changes whenever the converters produce different output for the same model, to invalidate older entries.
+     */
+    private static final String FORMAT_VERSION = "1";
+
+    private static final String TEMP_PREFIX = ".tmp-";
+
+    /**
+     * Temporary files older than this were left by a process that died while writing and can be deleted.
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000L;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * Creates a cache, and its directory if needed.
+     *
+     * @param directory The cache directory.
+     * @param maxBytes  The size above which the least recently used entries are evicted, or {@code 0} for no bound.
+     * @throws IOException If the directory cannot be created.
+     */
+    public ConversionCache(File directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Computes the key of a conversion.
+     *
+     * @param model   The serialized model file.
+     * @param options The options of the conversion, in a stable order, including what kind of artifact is produced.
+     * @return The key, as a hexadecimal digest.
+     * @throws IOException If the model file cannot be read.
+     */
+    public static String key(File model, List<String> options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Charset utf8 = Charset.forName("UTF-8");
+        digest.update(FORMAT_VERSION.getBytes(utf8));
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream is = Files.newInputStream(model.toPath())) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        for (String option : options) {
+            // A separator that cannot appear in an option, so that ["ab", "c"] and ["a", "bc"] differ.
+            digest.update((byte) 0);
+            digest.update(option.getBytes(utf8));
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Copies a cached artifact to its target, if there is one.
+     *
+     * @param key    The key of the conversion.
+     * @param target The file to write.
+     * @return {@code true} on a hit, {@code false} if nothing is cached under the key.
+     * @throws IOException If the target cannot be written.
+     */
+    public boolean copyTo(String key, File target) throws IOException {
+        Path entry = directory.resolve(key);
+        if (!Files.isRegularFile(entry)) {
+            return false;
+        }
+        Path targetPath = target.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(targetPath.getParent(), TEMP_PREFIX, "");
+        try {
+            try {
+                Files.copy(entry, temp, StandardCopyOption.REPLACE_EXISTING);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            replace(temp, targetPath);
+            temp = null;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            // Evicted meanwhile; the copy is complete anyway.
+        }
+        return true;
+    }
+
+    /**
+     * Stores an artifact, then evicts the least recently used entries if the cache is too large.
+     *
+     * @param key    The key of the conversion.
+     * @param source The artifact produced by the conversion.
+     * @throws IOException If the entry cannot be written.
+     */
+    public void put(String key, File source) throws IOException {
+        Path temp = Files.createTempFile(directory, TEMP_PREFIX, "");
+        try {
+            Files.copy(source.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            replace(temp, directory.resolve(key));
+            temp = null;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Moves a complete temporary file over the target, atomically where the file system supports it.
+     */
+    private static void replace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size bound, and temporary files left behind
+     * by processes that died while writing.
+     *
+     * @throws IOException If the directory cannot be listed.
+     */
+    public void evict() throws IOException {
+        final List<Path> entries = new ArrayList<>();
+        final List<BasicFileAttributes> attributes = new ArrayList<>();
+        long totalBytes = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (!attrs.isRegularFile()) {
+                    continue;
+                }
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    if (now - attrs.lastModifiedTime().toMillis() > STALE_TEMP_MILLIS) {
+                        Files.deleteIfExists(path);
+                    }
+                    continue;
+                }
+                entries.add(path);
+                attributes.add(attrs);
+                totalBytes += attrs.size();
+            }
+        }
+        if (maxBytes <= 0 || totalBytes <= maxBytes) {
+            return;
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return attributes.get(i1).lastModifiedTime().compareTo(attributes.get(i2).lastModifiedTime());
+            }
+        });
+        for (int i : order) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            if (Files.deleteIfExists(entries.get(i))) {
+                LOGGER.log(Level.FINE, "Evicted {0} from the conversion cache.", entries.get(i).getFileName());
+            }
+            totalBytes -= attributes.get(i).size();
+        }
+    }
+}
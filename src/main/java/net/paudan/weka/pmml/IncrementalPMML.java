@@ -0,0 +1,396 @@
+package net.paudan.weka.pmml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import weka.classifiers.Classifier;
+import weka.classifiers.TreeReader;
+
+/**
+ * Exports a tree ensemble to PMML reusing the segments of a previous export for the trees that did not change.
+ * <p/>
+ * Every segment written by {@link TreeModelBuilder#buildEnsemble} holds the {@link TreeReader#fingerprint()} of its
+ * tree in a {@link PMMLUtils#FINGERPRINT_ELEMENT} extension. Only the trees whose fingerprint is not found in the
+ * previous export are converted. The result is first written as a delta: a PMML document with the new envelope in
+ * which every reused segment is replaced by a placeholder, a segment with no model and a
+ * {@link #BASE_SEGMENT_EXTENSION_ELEMENT} extension naming the fingerprint to reuse. Applying the delta to the
+ * previous export copies the reused segments byte for byte, without parsing them, and only rewrites their id.
+ * <p/>
+ * Documents are scanned as written by this library: one top-level {@link org.dmg.pmml.Segment PMML Segment} per
+ * tree and no comments or CDATA sections. A previous export without fingerprints is supported, but none of its
+ * segments can be reused.
+ */
+public final class IncrementalPMML {
+
+    /**
+     * The name of the PMML extension marking a delta segment to take from the previous export.
+     */
+    public static final String BASE_SEGMENT_EXTENSION_ELEMENT = "baseSegment";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Pattern ATTRIBUTE = Pattern.compile("([\\w:.\\-]+)\\s*=\\s*\"([^\"]*)\"");
+    private static final Pattern ID_ATTRIBUTE = Pattern.compile("(\\sid\\s*=\\s*\")[^\"]*(\")");
+
+    private IncrementalPMML() {
+    }
+
+    /**
+     * Writes the PMML of an ensemble, reusing the segments of a previous export.
+     *
+     * @param trees         The trained trees, all sharing the same header.
+     * @param description   The description of the {@link org.dmg.pmml.Header PMML Header}.
+     * @param algorithmName The algorithm name of every {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.MiningModel PMML MiningModel} and its trees.
+     * @param baseFile      The previous export.
+     * @param targetFile    The file to write; it may be the previous export, which is then replaced.
+     * @param numThreads    The number of threads marshalling the converted trees.
+     * @return The number of reused and converted segments.
+     * @throws PMMLConversionException If a tree cannot be converted or it fails to read or write a file.
+     */
+    public static Result write(Classifier[] trees, String description, String algorithmName, String modelName,
+                               File baseFile, File targetFile, int numThreads) throws PMMLConversionException {
+        File deltaFile;
+        try {
+            deltaFile = File.createTempFile(targetFile.getName(), ".delta", targetFile.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to create a temporary file next to " + targetFile + ".", e);
+        }
+        try {
+            Result result = writeDelta(trees, description, algorithmName, modelName, baseFile, deltaFile, numThreads);
+            apply(baseFile, deltaFile, targetFile);
+            return result;
+        } finally {
+            deltaFile.delete();
+        }
+    }
+
+    /**
+     * Writes the delta between a previous export and the PMML of an ensemble.
+     *
+     * @param trees         The trained trees, all sharing the same header.
+     * @param description   The description of the {@link org.dmg.pmml.Header PMML Header}.
+     * @param algorithmName The algorithm name of every {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.MiningModel PMML MiningModel} and its trees.
+     * @param baseFile      The previous export.
+     * @param deltaFile     The file to write the delta to.
+     * @param numThreads    The number of threads marshalling the converted trees.
+     * @return The number of reused and converted segments.
+     * @throws PMMLConversionException If a tree cannot be converted or it fails to read or write a file.
+     */
+    public static Result writeDelta(Classifier[] trees, String description, String algorithmName, String modelName,
+                                    File baseFile, File deltaFile, int numThreads) throws PMMLConversionException {
+        if (trees == null || trees.length == 0) {
+            throw new PMMLConversionException("The ensemble has not been trained.");
+        }
+        Map<String, Integer> available = new HashMap<>();
+        for (SegmentRange range : scan(baseFile)) {
+            if (range.fingerprint != null) {
+                Integer count = available.get(range.fingerprint);
+                available.put(range.fingerprint, count == null ? 1 : count + 1);
+            }
+        }
+
+        PMML pmml;
+        int reused = 0;
+        try {
+            TreeReader[] readers = new TreeReader[trees.length];
+            for (int i = 0; i < trees.length; i++) {
+                readers[i] = TreeReader.forTree(trees[i]);
+            }
+            pmml = TreeModelBuilder.buildEnsembleEnvelope(readers[0].getHeader(), description, modelName);
+            MiningModel miningModel = PMMLUtils.getMiningModel(pmml);
+
+            int segmentId = 1;
+            for (TreeReader reader : readers) {
+                String fingerprint = reader.fingerprint();
+                Integer count = available.get(fingerprint);
+                Segment segment;
+                if (count != null && count > 0) {
+                    available.put(fingerprint, count - 1);
+                    segment = new Segment();
+                    segment.setId(String.valueOf(segmentId++));
+                    Extension extension = new Extension();
+                    extension.setName(BASE_SEGMENT_EXTENSION_ELEMENT);
+                    extension.setValue(fingerprint);
+                    segment.addExtensions(extension);
+                    reused++;
+                } else {
+                    segment = TreeModelBuilder.buildSegment(miningModel.getMiningSchema(), segmentId++, reader,
+                            algorithmName, modelName);
+                    segment.addExtensions(TreeModelBuilder.buildFingerprintExtension(fingerprint));
+                }
+                miningModel.getSegmentation().addSegments(segment);
+            }
+        } catch (Exception e) {
+            throw new PMMLConversionException(e);
+        }
+
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(numThreads);
+        try {
+            marshaller.marshal(pmml, deltaFile);
+        } finally {
+            marshaller.shutdown();
+        }
+        return new Result(reused, trees.length - reused);
+    }
+
+    /**
+     * Applies a delta to a previous export: the delta is copied with every placeholder replaced by the segment of
+     * the previous export with the same fingerprint. The target is written to a temporary file first and then
+     * moved into place.
+     *
+     * @param baseFile   The previous export the delta was computed against.
+     * @param deltaFile  The delta.
+     * @param targetFile The file to write; it may be the previous export, which is then replaced.
+     * @return The number of reused and converted segments.
+     * @throws PMMLConversionException If the previous export lacks a segment of the delta or it fails to read or
+     *                                 write a file.
+     */
+    public static Result apply(File baseFile, File deltaFile, File targetFile) throws PMMLConversionException {
+        List<SegmentRange> deltaSegments = scan(deltaFile);
+        Map<String, ArrayDeque<SegmentRange>> baseSegments = new HashMap<>();
+        for (SegmentRange range : scan(baseFile)) {
+            if (range.fingerprint != null) {
+                ArrayDeque<SegmentRange> ranges = baseSegments.get(range.fingerprint);
+                if (ranges == null) {
+                    ranges = new ArrayDeque<>();
+                    baseSegments.put(range.fingerprint, ranges);
+                }
+                ranges.add(range);
+            }
+        }
+
+        File tempFile = null;
+        int reused = 0;
+        try {
+            tempFile = File.createTempFile(targetFile.getName(), ".tmp", targetFile.getAbsoluteFile().getParentFile());
+            try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                 FileChannel delta = FileChannel.open(deltaFile.toPath(), StandardOpenOption.READ);
+                 FileChannel base = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                for (SegmentRange segment : deltaSegments) {
+                    transfer(delta, position, segment.start, out);
+                    if (segment.base == null) {
+                        transfer(delta, segment.start, segment.end, out);
+                    } else {
+                        ArrayDeque<SegmentRange> ranges = baseSegments.get(segment.base);
+                        SegmentRange range = ranges == null ? null : ranges.poll();
+                        if (range == null) {
+                            throw new PMMLConversionException("The PMML " + baseFile + " has no segment with fingerprint "
+                                    + segment.base + ".");
+                        }
+                        ByteBuffer tag = ByteBuffer.allocate((int) (range.startTagEnd - range.start));
+                        while (tag.hasRemaining() && base.read(tag, range.start + tag.position()) >= 0) {
+                            // Read the whole start tag.
+                        }
+                        String startTag = new String(tag.array(), 0, tag.position(), UTF_8);
+                        startTag = ID_ATTRIBUTE.matcher(startTag).replaceFirst("$1" + Matcher.quoteReplacement(segment.id) + "$2");
+                        out.write(ByteBuffer.wrap(startTag.getBytes(UTF_8)));
+                        transfer(base, range.startTagEnd, range.end, out);
+                        reused++;
+                    }
+                    position = segment.end;
+                }
+                transfer(delta, position, delta.size(), out);
+            }
+
+            try {
+                Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            tempFile = null;
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to apply the delta " + deltaFile + " to " + baseFile + ".", e);
+        } finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+        return new Result(reused, deltaSegments.size() - reused);
+    }
+
+    private static void transfer(FileChannel source, long from, long to, FileChannel target) throws IOException {
+        while (from < to) {
+            long transferred = source.transferTo(from, to - from, target);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            from += transferred;
+        }
+    }
+
+    /**
+     * Locates the top-level segments of a PMML file, without parsing it.
+     */
+    static List<SegmentRange> scan(File file) throws PMMLConversionException {
+        List<SegmentRange> segments = new ArrayList<>();
+        try (InputStream is = new FileInputStream(file)) {
+            byte[] buffer = new byte[1 << 16];
+            int length = 0;
+            int index = 0;
+            long offset = 0;
+            StringBuilder tag = new StringBuilder();
+            boolean inTag = false;
+            boolean keepTag = false;
+            long tagStart = 0;
+            int depth = 0;
+            SegmentRange current = null;
+
+            while (true) {
+                if (index == length) {
+                    offset += length;
+                    length = is.read(buffer);
+                    index = 0;
+                    if (length < 0) {
+                        break;
+                    }
+                    continue;
+                }
+                byte b = buffer[index++];
+                if (!inTag) {
+                    if (b == '<') {
+                        inTag = true;
+                        tagStart = offset + index - 1;
+                        tag.setLength(0);
+                        keepTag = true;
+                    }
+                    continue;
+                }
+                if (b != '>') {
+                    // Only the tags of segments and of their extensions are kept whole.
+                    if (keepTag) {
+                        tag.append((char) (b & 0xFF));
+                        if (tag.length() == 10) {
+                            String name = tagName(tag);
+                            keepTag = "Segment".equals(name) || "/Segment".equals(name) || "Extension".equals(name);
+                        }
+                    }
+                    continue;
+                }
+                inTag = false;
+                long tagEnd = offset + index;
+                String name = tagName(tag);
+                if ("Segment".equals(name)) {
+                    depth++;
+                    if (depth == 1) {
+                        current = new SegmentRange();
+                        current.start = tagStart;
+                        current.startTagEnd = tagEnd;
+                        current.id = attributes(tag).get("id");
+                        if (tag.charAt(tag.length() - 1) == '/') {
+                            current.end = tagEnd;
+                            segments.add(current);
+                            current = null;
+                        }
+                    }
+                    if (tag.charAt(tag.length() - 1) == '/') {
+                        depth--;
+                    }
+                } else if ("/Segment".equals(name)) {
+                    if (depth == 1 && current != null) {
+                        current.end = tagEnd;
+                        segments.add(current);
+                        current = null;
+                    }
+                    depth--;
+                } else if ("Extension".equals(name) && depth == 1 && current != null) {
+                    Map<String, String> attributes = attributes(tag);
+                    if (PMMLUtils.FINGERPRINT_ELEMENT.equals(attributes.get("name"))) {
+                        current.fingerprint = attributes.get("value");
+                    } else if (BASE_SEGMENT_EXTENSION_ELEMENT.equals(attributes.get("name"))) {
+                        current.base = attributes.get("value");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to read the PMML file " + file + ".", e);
+        }
+        return segments;
+    }
+
+    private static String tagName(CharSequence tag) {
+        int end = 0;
+        while (end < tag.length() && !Character.isWhitespace(tag.charAt(end))
+                && (tag.charAt(end) != '/' || end == 0) && tag.charAt(end) != '>') {
+            end++;
+        }
+        return tag.subSequence(0, end).toString();
+    }
+
+    private static Map<String, String> attributes(CharSequence tag) {
+        Map<String, String> attributes = new HashMap<>();
+        Matcher matcher = ATTRIBUTE.matcher(tag);
+        while (matcher.find()) {
+            attributes.put(matcher.group(1), matcher.group(2));
+        }
+        return attributes;
+    }
+
+    /**
+     * The location of a top-level segment in a PMML file, in bytes.
+     */
+    static final class SegmentRange {
+
+        long start;
+        long startTagEnd;
+        long end;
+        String id;
+        String fingerprint;
+        String base;
+    }
+
+    /**
+     * The outcome of an incremental export.
+     */
+    public static final class Result {
+
+        private final int reusedSegments;
+        private final int convertedSegments;
+
+        Result(int reusedSegments, int convertedSegments) {
+            this.reusedSegments = reusedSegments;
+            this.convertedSegments = convertedSegments;
+        }
+
+        /**
+         * Retrieves the number of segments taken from the previous export.
+         *
+         * @return The number of reused segments.
+         */
+        public int getReusedSegments() {
+            return reusedSegments;
+        }
+
+        /**
+         * Retrieves the number of trees that were converted.
+         *
+         * @return The number of converted segments.
+         */
+        public int getConvertedSegments() {
+            return convertedSegments;
+        }
+    }
+}
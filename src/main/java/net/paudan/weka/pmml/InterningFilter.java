@@ -0,0 +1,122 @@
+package net.paudan.weka.pmml;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * A SAX filter that shrinks the object model unmarshalled from a large PMML.
+ * <p/>
+ * A forest repeats the same field names, predicate values and class labels in every tree. The filter replaces
+ * every attribute value by a canonical instance, so that the unmarshalled model holds a single copy of each
+ * distinct string. It can also drop the {@code Extension} elements that the reader of the model does not need.
+ * <p/>
+ * The canonical instances are kept in a map owned by the filter rather than in the JVM's string pool, so they are
+ * collected together with the model. A filter is meant to be used for a single document, from a single thread.
+ */
+public class InterningFilter extends XMLFilterImpl {
+
+    private static final String EXTENSION_ELEMENT = "Extension";
+
+    private final Map<String, String> strings = new HashMap<>();
+    private final Set<String> keptExtensions;
+    private final boolean dropExtensions;
+    private int skipDepth;
+    private long droppedExtensions;
+
+    /**
+     * Creates a filter that interns attribute values and keeps every {@code Extension}.
+     */
+    public InterningFilter() {
+        this.keptExtensions = Collections.emptySet();
+        this.dropExtensions = false;
+    }
+
+    /**
+     * Creates a filter that interns attribute values and drops every {@code Extension} whose name is not listed.
+     *
+     * @param keptExtensions The names of the extensions to keep, such as {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT}.
+     */
+    public InterningFilter(Collection<String> keptExtensions) {
+        this.keptExtensions = new HashSet<>(keptExtensions);
+        this.dropExtensions = true;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (skipDepth > 0) {
+            skipDepth++;
+            return;
+        }
+        if (dropExtensions && EXTENSION_ELEMENT.equals(localName)
+                && !keptExtensions.contains(atts.getValue("name"))) {
+            droppedExtensions++;
+            skipDepth = 1;
+            return;
+        }
+
+        AttributesImpl interned = new AttributesImpl(atts);
+        for (int i = 0; i < interned.getLength(); i++) {
+            interned.setValue(i, intern(interned.getValue(i)));
+        }
+        super.startElement(uri, localName, qName, interned);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (skipDepth == 0) {
+            super.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (skipDepth == 0) {
+            super.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    /**
+     * Retrieves the canonical instance of a string.
+     *
+     * @param value The string.
+     * @return The first string seen equal to {@code value}.
+     */
+    public String intern(String value) {
+        String canonical = strings.get(value);
+        if (canonical == null) {
+            strings.put(value, value);
+            canonical = value;
+        }
+        return canonical;
+    }
+
+    /**
+     * Retrieves the number of distinct attribute values seen so far.
+     *
+     * @return The number of canonical strings.
+     */
+    public int getDistinctValues() {
+        return strings.size();
+    }
+
+    public long getDroppedExtensions() {
+        return droppedExtensions;
+    }
+}
@@ -0,0 +1,29 @@
+package net.paudan.weka.pmml;
+
+import java.io.File;
+import org.dmg.pmml.PMML;
+import weka.classifiers.trees.J48;
+
+/**
+ * A producer that converts a {@link weka.classifiers.trees.J48} instance to a PMML TreeModel.
+ * <p/>
+ * Only trees with multiway nominal splits are supported, i.e. trained without binary splits and without Laplace
+ * smoothing.
+ */
+public class J48PMMLProducer implements PMMLProducer<J48> {
+
+    private static final String ALGORITHM_NAME = "weka:"+J48.class.getName();
+
+    private static final String MODEL_NAME = ALGORITHM_NAME+"_Model";
+
+
+    @Override
+    public void produce(J48 j48Classifier, File targetFile) throws PMMLConversionException {
+        PMMLUtils.marshal(produce(j48Classifier), targetFile);
+    }
+
+    @Override
+    public PMML produce(J48 j48Classifier) throws PMMLConversionException {
+        return TreeModelBuilder.buildTree(j48Classifier, "Weka J48 as PMML", ALGORITHM_NAME, MODEL_NAME);
+    }
+}
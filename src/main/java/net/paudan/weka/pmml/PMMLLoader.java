@@ -0,0 +1,74 @@
+package net.paudan.weka.pmml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import org.dmg.pmml.PMML;
+import org.jpmml.model.ImportFilter;
+import org.jpmml.model.JAXBUtil;
+import org.xml.sax.InputSource;
+
+/**
+ * Loads PMML for the consuming side through an {@link InterningFilter}.
+ * <p/>
+ * Compared to {@link org.jpmml.model.JAXBUtil#unmarshalPMML(javax.xml.transform.Source)} on a plain stream, the
+ * loaded model shares a single instance of each repeated field name, predicate value and class label and, unless
+ * asked otherwise, only keeps the {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT} extensions that scoring reads.
+ */
+public final class PMMLLoader {
+
+    private PMMLLoader() {
+    }
+
+    /**
+     * Loads a PMML file, keeping only the {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT} extensions.
+     *
+     * @param file The PMML file.
+     * @return The unmarshalled {@link org.dmg.pmml.PMML}.
+     * @throws PMMLConversionException If it fails to read or unmarshal the file.
+     */
+    public static PMML load(File file) throws PMMLConversionException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            return load(is);
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to read the PMML file " + file + ".", e);
+        }
+    }
+
+    /**
+     * Loads a PMML stream, keeping only the {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT} extensions.
+     *
+     * @param is The PMML stream. It is not closed.
+     * @return The unmarshalled {@link org.dmg.pmml.PMML}.
+     * @throws PMMLConversionException If it fails to unmarshal the stream.
+     */
+    public static PMML load(InputStream is) throws PMMLConversionException {
+        return load(is, new InterningFilter(Collections.singleton(PMMLUtils.TRAINING_PROPORTION_ELEMENT)));
+    }
+
+    /**
+     * Loads a PMML stream, dropping the extensions not listed.
+     * <p/>
+     * Dropping {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT} makes the model unable to split up missing values.
+     *
+     * @param is             The PMML stream. It is not closed.
+     * @param keptExtensions The names of the extensions to keep, or {@code null} to keep them all.
+     * @return The unmarshalled {@link org.dmg.pmml.PMML}.
+     * @throws PMMLConversionException If it fails to unmarshal the stream.
+     */
+    public static PMML load(InputStream is, Collection<String> keptExtensions) throws PMMLConversionException {
+        return load(is, keptExtensions == null ? new InterningFilter() : new InterningFilter(keptExtensions));
+    }
+
+    private static PMML load(InputStream is, InterningFilter filter) throws PMMLConversionException {
+        try {
+            return JAXBUtil.unmarshalPMML(JAXBUtil.createFilteredSource(new InputSource(is), new ImportFilter(), filter));
+        } catch (Exception e) {
+            throw new PMMLConversionException("Failed to unmarshal the PMML.", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.paudan.weka.pmml;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.TreeModel;
+
+/**
+ * Reorders the child {@link org.dmg.pmml.Node PMML Nodes} of every tree so that the most likely one comes first.
+ * <p/>
+ * A PMML evaluator tests the children of a node in document order and follows the first whose predicate holds, so
+ * testing the predicate taken by most of the training data first saves predicate evaluations. The children of a
+ * node test mutually exclusive predicates, so the order does not change the predictions.
+ */
+public final class PMMLNodeOrder {
+
+    private PMMLNodeOrder() {
+    }
+
+    /**
+     * Reorders the children of every node of every {@link org.dmg.pmml.TreeModel PMML TreeModel} in a PMML by
+     * decreasing {@link PMMLUtils#TRAINING_PROPORTION_ELEMENT training proportion}.
+     *
+     * @param pmml The {@link org.dmg.pmml.PMML} to reorder in place.
+     */
+    public static void reorder(PMML pmml) {
+        for (Model model : pmml.getModels()) {
+            if (model instanceof TreeModel) {
+                reorder(((TreeModel) model).getNode());
+            } else if (model instanceof MiningModel && ((MiningModel) model).getSegmentation() != null) {
+                for (Segment segment : ((MiningModel) model).getSegmentation().getSegments()) {
+                    if (segment.getModel() instanceof TreeModel) {
+                        reorder(((TreeModel) segment.getModel()).getNode());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reorders the children of every node of a tree by decreasing training proportion.
+     *
+     * @param root The root {@link org.dmg.pmml.Node PMML Node} of the tree.
+     */
+    public static void reorder(Node root) {
+        Comparator<Node> byProportion = new Comparator<Node>() {
+            @Override
+            public int compare(Node node1, Node node2) {
+                return Double.compare(PMMLUtils.getNodeTrainingProportion(node2), PMMLUtils.getNodeTrainingProportion(node1));
+            }
+        };
+
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!node.hasNodes()) {
+                continue;
+            }
+            List<Node> children = node.getNodes();
+            splitLegacyProportions(children);
+            // A stable sort: ties keep the original order.
+            Collections.sort(children, byProportion);
+            for (Node child : children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * Older exports attach both training proportions of a numeric split to its first child; moves the extra
+     * proportions to the following siblings, so that each node carries its own.
+     */
+    private static void splitLegacyProportions(List<Node> children) {
+        for (int i = 0; i < children.size(); i++) {
+            List<Extension> proportions = new ArrayList<>();
+            for (Extension extension : children.get(i).getExtensions()) {
+                if (PMMLUtils.TRAINING_PROPORTION_ELEMENT.equals(extension.getName())) {
+                    proportions.add(extension);
+                }
+            }
+            for (int j = 1; j < proportions.size() && i + j < children.size(); j++) {
+                children.get(i).getExtensions().remove(proportions.get(j));
+                children.get(i + j).addExtensions(proportions.get(j));
+            }
+            if (proportions.size() > 1) {
+                i += proportions.size() - 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.paudan.weka.pmml;
+
+import java.util.ArrayDeque;
+import weka.classifiers.Classifier;
+import weka.classifiers.TreeReader;
+import weka.core.Instances;
+
+/**
+ * Estimates the heap taken by the {@link org.dmg.pmml.PMML} object graph of a tree ensemble before it is built.
+ * <p/>
+ * A pre-pass walks every tree and counts the {@link org.dmg.pmml.Node PMML Nodes} the conversion creates, one per
+ * successor of a split, so nominal splits count their whole fan-out, and the
+ * {@link org.dmg.pmml.ScoreDistribution PMML ScoreDistributions}, one per class for every node holding a class
+ * distribution. The byte costs are the approximate shallow sizes, on a 64-bit JVM with compressed references, of
+ * the objects {@link TreeModelBuilder} creates for each of them.
+ */
+public final class PMMLSizeEstimator {
+
+    /**
+     * A Node, its id, its predicate with field name and value, its training proportion extension and the lists
+     * holding its children, score distributions and extensions.
+     */
+    static final long NODE_BYTES = 480;
+
+    /**
+     * A ScoreDistribution with its boxed confidence and probability; the class label is shared.
+     */
+    static final long SCORE_DISTRIBUTION_BYTES = 80;
+
+    /**
+     * A Segment with its TreeModel, its fingerprint extension and the model and algorithm names.
+     */
+    static final long SEGMENT_BYTES = 400;
+
+    private PMMLSizeEstimator() {
+    }
+
+    /**
+     * Estimates the size of the PMML of an ensemble.
+     *
+     * @param trees The trained trees.
+     * @return The estimate.
+     * @throws PMMLConversionException If a tree is not supported or cannot be read.
+     */
+    public static Estimate estimate(Classifier[] trees) throws PMMLConversionException {
+        long numNodes = 0;
+        long numScoreDistributions = 0;
+        int maxFanOut = 0;
+        ArrayDeque<Object> stack = new ArrayDeque<>();
+        for (Classifier tree : trees) {
+            TreeReader reader;
+            try {
+                reader = TreeReader.forTree(tree);
+            } catch (Exception e) {
+                throw new PMMLConversionException(e);
+            }
+            Instances header = reader.getHeader();
+            int numClasses = header == null ? 0 : header.numClasses();
+
+            numNodes++;
+            Object root = reader.getRoot();
+            if (root == null) {
+                numScoreDistributions += numClasses;
+                continue;
+            }
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Object node = stack.pop();
+                if (reader.getClassDistribution(node) != null) {
+                    numScoreDistributions += numClasses;
+                }
+                if (reader.getAttribute(node) == TreeReader.LEAF) {
+                    continue;
+                }
+                Object[] successors = reader.getSuccessors(node);
+                numNodes += successors.length;
+                maxFanOut = Math.max(maxFanOut, successors.length);
+                for (Object successor : successors) {
+                    stack.push(successor);
+                }
+            }
+        }
+        return new Estimate(trees.length, numNodes, numScoreDistributions, maxFanOut);
+    }
+
+    /**
+     * The estimated size of the PMML of an ensemble.
+     */
+    public static final class Estimate {
+
+        private final int numTrees;
+        private final long numNodes;
+        private final long numScoreDistributions;
+        private final int maxFanOut;
+
+        Estimate(int numTrees, long numNodes, long numScoreDistributions, int maxFanOut) {
+            this.numTrees = numTrees;
+            this.numNodes = numNodes;
+            this.numScoreDistributions = numScoreDistributions;
+            this.maxFanOut = maxFanOut;
+        }
+
+        public int getNumTrees() {
+            return numTrees;
+        }
+
+        /**
+         * Retrieves the number of {@link org.dmg.pmml.Node PMML Nodes}, roots included.
+         *
+         * @return The number of nodes.
+         */
+        public long getNumNodes() {
+            return numNodes;
+        }
+
+        public long getNumScoreDistributions() {
+            return numScoreDistributions;
+        }
+
+        /**
+         * Retrieves the largest number of successors of a split, i.e. the number of values of the widest nominal
+         * attribute split on.
+         *
+         * @return The largest fan-out.
+         */
+        public int getMaxFanOut() {
+            return maxFanOut;
+        }
+
+        /**
+         * Retrieves the estimated heap taken by the whole {@link org.dmg.pmml.PMML} object graph.
+         *
+         * @return The size in bytes.
+         */
+        public long getBytes() {
+            return numTrees * SEGMENT_BYTES + numNodes * NODE_BYTES + numScoreDistributions * SCORE_DISTRIBUTION_BYTES;
+        }
+
+        /**
+         * Retrieves the estimated heap taken by one tree, on average.
+         *
+         * @return The size in bytes.
+         */
+        public long getBytesPerTree() {
+            return numTrees == 0 ? 0 : getBytes() / numTrees;
+        }
+
+        @Override
+        public String toString() {
+            return numTrees + " trees, " + numNodes + " nodes, " + numScoreDistributions
+                    + " score distributions, fan-out up to " + maxFanOut + ": about " + (getBytes() >> 20) + " MB";
+        }
+    }
+}
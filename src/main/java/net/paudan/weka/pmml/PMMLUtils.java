@@ -1,7 +1,13 @@
 package net.paudan.weka.pmml;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.util.ArrayList;
+import javax.xml.transform.stream.StreamResult;
 import weka.classifiers.Classifier;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
 import weka.classifiers.trees.RandomForest;
 
 import java.util.List;
@@ -21,6 +27,7 @@ import org.dmg.pmml.PMML;
 import org.dmg.pmml.ScoreDistribution;
 import org.dmg.pmml.TreeModel;
 import org.dmg.pmml.Value;
+import org.jpmml.model.JAXBUtil;
 import weka.core.FastVector;
 import weka.core.Instances;
 import weka.core.Utils;
@@ -46,6 +53,60 @@ public final class PMMLUtils {
                 return RandomForest.class;
             }
 
+            @Override
+            public PMMLConsumer getPMMLConsumer() {
+                return null;
+            }
+        },
+
+        BAGGING {
+
+            @Override
+            public PMMLProducer getPMMLProducer() {
+                return new BaggingPMMLProducer();
+            }
+
+            @Override
+            public Class<? extends Classifier> getClassifierClass() {
+                return Bagging.class;
+            }
+
+            @Override
+            public PMMLConsumer getPMMLConsumer() {
+                return null;
+            }
+        },
+
+        J48 {
+
+            @Override
+            public PMMLProducer getPMMLProducer() {
+                return new J48PMMLProducer();
+            }
+
+            @Override
+            public Class<? extends Classifier> getClassifierClass() {
+                return J48.class;
+            }
+
+            @Override
+            public PMMLConsumer getPMMLConsumer() {
+                return null;
+            }
+        },
+
+        REP_TREE {
+
+            @Override
+            public PMMLProducer getPMMLProducer() {
+                return new REPTreePMMLProducer();
+            }
+
+            @Override
+            public Class<? extends Classifier> getClassifierClass() {
+                return REPTree.class;
+            }
+
             @Override
             public PMMLConsumer getPMMLConsumer() {
                 return null;
@@ -68,6 +129,17 @@ public final class PMMLUtils {
          */
         public abstract PMMLProducer getPMMLProducer();
 
+        /**
+         * Same as {@link #getPMMLProducer()}, typed for classifiers only known to be of this type at runtime,
+         * e.g. through {@link #fromClassifier(weka.classifiers.Classifier)}.
+         *
+         * @return A {@link com.feedzai.fos.impl.weka.utils.pmml.PMMLProducer} instance.
+         */
+        @SuppressWarnings("unchecked")
+        public PMMLProducer<Classifier> getClassifierPMMLProducer() {
+            return getPMMLProducer();
+        }
+
         /**
          * Retrieves the {@link weka.classifiers.Classifier} class represented by this type.
          *
@@ -106,6 +178,12 @@ public final class PMMLUtils {
      */
     public static final String TRAINING_PROPORTION_ELEMENT = "trainingProportion";
 
+    /**
+     * The name of the PMML element holding the {@link weka.classifiers.TreeReader#fingerprint() fingerprint} of the
+     * tree of a {@link org.dmg.pmml.Segment PMML Segment}.
+     */
+    public static final String FINGERPRINT_ELEMENT = "fingerprint";
+
 
     /**
      * Creates a new {@link org.dmg.pmml.Header} element.
@@ -120,6 +198,21 @@ public final class PMMLUtils {
         return header;     
     }
 
+    /**
+     * Marshals a {@link org.dmg.pmml.PMML} to the given {@link File}.
+     *
+     * @param pmml       The {@link org.dmg.pmml.PMML} to save.
+     * @param targetFile The file where to save the PMML.
+     * @throws PMMLConversionException If it fails to write the file.
+     */
+    public static void marshal(PMML pmml, File targetFile) throws PMMLConversionException {
+        try (FileOutputStream fis = new FileOutputStream(targetFile)){
+            JAXBUtil.marshalPMML(pmml, new StreamResult(fis));
+        } catch (Exception e) {
+            throw new PMMLConversionException("Failed to marshal the PMML to the given file.", e);
+        }
+    }
+
     /**
      * Adds a {@link org.dmg.pmml.ScoreDistribution PMML ScoreDistribution element} to the given {@link org.dmg.pmml.Node PMML Node}
      * with the confidence from the given {@code classDistribution}.
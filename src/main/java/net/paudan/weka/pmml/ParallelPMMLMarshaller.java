@@ -0,0 +1,393 @@
+package net.paudan.weka.pmml;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.transform.stream.StreamResult;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.jpmml.model.JAXBUtil;
+
+/**
+ * Marshals an ensemble PMML with its {@link org.dmg.pmml.Segment PMML Segments} serialized concurrently.
+ * <p/>
+ * The document is marshalled once without its segments, with a single placeholder segment in their place. Each
+ * segment is then marshalled on a worker pool as an XML fragment, its element lines re-indented to its depth in
+ * the document, and the envelope and the fragments are written to the output in order. Every marshaller comes from
+ * {@link org.jpmml.model.JAXBUtil#createMarshaller()}, which shares JPMML's cached {@code JAXBContext}, so the
+ * bytes written are the ones {@link org.jpmml.model.JAXBUtil#marshalPMML(PMML, javax.xml.transform.Result)} would
+ * write for the whole document.
+ * <p/>
+ * A PMML without a {@link org.dmg.pmml.MiningModel PMML MiningModel} is marshalled on the calling thread.
+ */
+public class ParallelPMMLMarshaller {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The indentation JAXB writes per level of depth, unless the document shows otherwise.
+     */
+    private static final String DEFAULT_INDENT_UNIT = "    ";
+
+    private static final Pattern NAMESPACE_DECLARATION = Pattern.compile(" xmlns(:[\\w.\\-]+)?=\"[^\"]*\"");
+
+    private final ExecutorService executor;
+    private final int window;
+    private final ThreadLocal<Marshaller> fragmentMarshallers = new ThreadLocal<Marshaller>() {
+        @Override
+        protected Marshaller initialValue() {
+            try {
+                Marshaller marshaller = JAXBUtil.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+                return marshaller;
+            } catch (JAXBException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Creates a new marshaller.
+     *
+     * @param numThreads The number of threads marshalling segments.
+     */
+    public ParallelPMMLMarshaller(int numThreads) {
+        this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pmml-marshaller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.window = numThreads * 4;
+    }
+
+    /**
+     * Marshals a PMML to the given {@link File}.
+     *
+     * @param pmml       The {@link org.dmg.pmml.PMML} to save.
+     * @param targetFile The file where to save the PMML.
+     * @throws PMMLConversionException If it fails to marshal the PMML or to write the file.
+     */
+    public void marshal(PMML pmml, File targetFile) throws PMMLConversionException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile), 1 << 16)) {
+            marshal(pmml, os);
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to marshal the PMML to the given file.", e);
+        }
+    }
+
+    /**
+     * Marshals the envelope of an ensemble PMML to the given {@link File}, with segments built on demand, see
+     * {@link #marshal(PMML, List, OutputStream)}.
+     *
+     * @param envelope   The {@link org.dmg.pmml.PMML} to save, with an empty Segmentation.
+     * @param segments   The builders of the segments, in order.
+     * @param targetFile The file where to save the PMML.
+     * @throws PMMLConversionException If it fails to build a segment, to marshal the PMML or to write the file.
+     */
+    public void marshal(PMML envelope, List<? extends Callable<Segment>> segments, File targetFile)
+            throws PMMLConversionException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile), 1 << 16)) {
+            marshal(envelope, segments, os);
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to marshal the PMML to the given file.", e);
+        }
+    }
+
+    /**
+     * Marshals a PMML to the given stream.
+     * <p/>
+     * The segments of the PMML are detached while its envelope is marshalled, so the PMML must not be used by other
+     * threads meanwhile.
+     *
+     * @param pmml The {@link org.dmg.pmml.PMML} to save.
+     * @param os   The stream to write to. It is not closed.
+     * @throws PMMLConversionException If it fails to marshal the PMML or to write it.
+     */
+    public void marshal(PMML pmml, OutputStream os) throws PMMLConversionException {
+        MiningModel miningModel;
+        try {
+            miningModel = PMMLUtils.getMiningModel(pmml);
+        } catch (RuntimeException e) {
+            marshalWhole(pmml, os);
+            return;
+        }
+        List<Segment> segments = miningModel.getSegmentation().getSegments();
+        if (segments.isEmpty()) {
+            marshalWhole(pmml, os);
+            return;
+        }
+
+        List<Callable<Segment>> sources = new ArrayList<>();
+        for (final Segment segment : segments) {
+            sources.add(new Callable<Segment>() {
+                @Override
+                public Segment call() {
+                    return segment;
+                }
+            });
+        }
+        List<Segment> detached = new ArrayList<>(segments);
+        segments.clear();
+        try {
+            marshal(pmml, sources, os);
+        } finally {
+            segments.clear();
+            segments.addAll(detached);
+        }
+    }
+
+    /**
+     * Marshals the envelope of an ensemble PMML with segments that are only built when they are about to be
+     * marshalled, so that the whole document is never held in memory: at most four segments per thread are
+     * built or marshalled at a time.
+     *
+     * @param envelope The {@link org.dmg.pmml.PMML} to save, whose {@link org.dmg.pmml.MiningModel PMML MiningModel}
+     *                 has an empty Segmentation. It must not be used by other threads meanwhile.
+     * @param segments The builders of the segments, called on the worker threads, in order.
+     * @param os       The stream to write to. It is not closed.
+     * @throws PMMLConversionException If it fails to build a segment, to marshal the PMML or to write it.
+     */
+    public void marshal(PMML envelope, List<? extends Callable<Segment>> segments, OutputStream os)
+            throws PMMLConversionException {
+        List<Segment> envelopeSegments = PMMLUtils.getMiningModel(envelope).getSegmentation().getSegments();
+
+        // Marshal the envelope, with a placeholder where the segments go.
+        String placeholderId = "segments-" + UUID.randomUUID();
+        String text;
+        try {
+            Segment placeholder = new Segment();
+            placeholder.setId(placeholderId);
+            envelopeSegments.add(placeholder);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            JAXBUtil.marshalPMML(envelope, new StreamResult(bytes));
+            text = new String(bytes.toByteArray(), UTF_8);
+        } catch (JAXBException e) {
+            throw new PMMLConversionException("Failed to marshal the PMML.", e);
+        } finally {
+            envelopeSegments.clear();
+        }
+
+        int idIndex = text.indexOf("id=\"" + placeholderId + "\"");
+        int tagStart = idIndex < 0 ? -1 : text.lastIndexOf('<', idIndex);
+        int lineStart = tagStart < 0 ? -1 : text.lastIndexOf('\n', tagStart);
+        if (lineStart < 0) {
+            try {
+                for (Callable<Segment> segment : segments) {
+                    envelopeSegments.add(segment.call());
+                }
+                marshalWhole(envelope, os);
+            } catch (PMMLConversionException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new PMMLConversionException("Failed to build a segment.", e);
+            } finally {
+                envelopeSegments.clear();
+            }
+            return;
+        }
+        int tagEnd = text.indexOf('>', idIndex);
+        if (text.charAt(tagEnd - 1) != '/') {
+            tagEnd = text.indexOf('>', text.indexOf("</", tagEnd));
+        }
+        final int depth = depthAt(text, tagStart);
+        String indent = text.substring(lineStart + 1, tagStart);
+        final String unit = depth % 8 == 0 || indent.isEmpty() ? DEFAULT_INDENT_UNIT
+                : indent.substring(0, indent.length() / (depth % 8));
+
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        try {
+            os.write(text.substring(0, lineStart).getBytes(UTF_8));
+
+            int next = 0;
+            while (next < segments.size() || !pending.isEmpty()) {
+                while (next < segments.size() && pending.size() < window) {
+                    final Callable<Segment> segment = segments.get(next++);
+                    pending.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            return marshalFragment(segment.call(), depth, unit);
+                        }
+                    }));
+                }
+                os.write(pending.poll().get());
+            }
+
+            os.write(text.substring(tagEnd + 1).getBytes(UTF_8));
+            os.flush();
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to write the PMML.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PMMLConversionException("Interrupted while marshalling the PMML.", e);
+        } catch (ExecutionException e) {
+            throw new PMMLConversionException("Failed to marshal a segment.", e.getCause());
+        } finally {
+            // Empty unless marshalling failed; the segments still in the window need not be built any more.
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Marshals a segment as it appears within the document: on its own lines, indented to its depth, without the
+     * namespace declarations that the document root already holds.
+     */
+    private byte[] marshalFragment(Segment segment, int depth, String unit) throws JAXBException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        fragmentMarshallers.get().marshal(segment, bytes);
+        String fragment = new String(bytes.toByteArray(), UTF_8);
+
+        int start = 0;
+        int end = fragment.length();
+        while (start < end && (fragment.charAt(start) == '\n' || fragment.charAt(start) == '\r')) {
+            start++;
+        }
+        while (end > start && (fragment.charAt(end - 1) == '\n' || fragment.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        fragment = fragment.substring(start, end);
+
+        int rootEnd = fragment.indexOf('>');
+        String root = NAMESPACE_DECLARATION.matcher(fragment.substring(0, rootEnd)).replaceAll("");
+        fragment = root + fragment.substring(rootEnd);
+
+        return indent(fragment, depth, unit).getBytes(UTF_8);
+    }
+
+    /**
+     * Re-indents a formatted fragment as if it had been marshalled at the given depth of the document, and prefixes
+     * it with a line break.
+     * <p/>
+     * JAXB writes a formatting line break before a tag only when no text precedes it, so such a line break always
+     * follows the end of a tag and is followed by nothing but indentation up to the next tag. Since {@code <} and
+     * {@code >} are escaped in text, any other line break belongs to a text value, such as a multi-line Extension,
+     * and is kept as is; only a text value made of whitespace alone, right between two tags, cannot be told apart
+     * from formatting. JAXB indents an element by its depth modulo 8, which is reproduced here.
+     *
+     * @param fragment The fragment, starting with its root start tag.
+     * @param depth    The depth of the root element in the document.
+     * @param unit     The indentation per level of depth.
+     * @return The re-indented fragment.
+     */
+    static String indent(String fragment, int depth, String unit) {
+        StringBuilder builder = new StringBuilder(fragment.length() + fragment.length() / 4);
+        builder.append('\n');
+        appendIndent(builder, depth, unit);
+        int length = fragment.length();
+        int i = 0;
+        while (i < length) {
+            char c = fragment.charAt(i);
+            if (c == '<') {
+                int tagEnd = tagEnd(fragment, i);
+                char kind = i + 1 < length ? fragment.charAt(i + 1) : ' ';
+                if (kind == '/') {
+                    depth--;
+                } else if (kind != '?' && kind != '!' && fragment.charAt(tagEnd - 1) != '/') {
+                    depth++;
+                }
+                builder.append(fragment, i, tagEnd + 1);
+                i = tagEnd + 1;
+            } else if (c == '\n' && i > 0 && fragment.charAt(i - 1) == '>') {
+                int next = i + 1;
+                while (next < length && (fragment.charAt(next) == ' ' || fragment.charAt(next) == '\t')) {
+                    next++;
+                }
+                builder.append(c);
+                if (next < length && fragment.charAt(next) == '<') {
+                    // An end tag is indented at the depth of its element, one less than its content.
+                    boolean endTag = next + 1 < length && fragment.charAt(next + 1) == '/';
+                    appendIndent(builder, endTag ? depth - 1 : depth, unit);
+                    i = next;
+                } else {
+                    i++;
+                }
+            } else {
+                builder.append(c);
+                i++;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void appendIndent(StringBuilder builder, int depth, String unit) {
+        for (int i = 0; i < depth % 8; i++) {
+            builder.append(unit);
+        }
+    }
+
+    /**
+     * Retrieves the index of the {@code >} closing the tag that starts at the given index, skipping quoted values.
+     */
+    private static int tagEnd(String text, int start) {
+        char quote = 0;
+        for (int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return text.length() - 1;
+    }
+
+    /**
+     * Retrieves the number of elements open at the given index of a document.
+     */
+    static int depthAt(String text, int end) {
+        int depth = 0;
+        int i = text.indexOf('<');
+        while (i >= 0 && i < end) {
+            int tagEnd = tagEnd(text, i);
+            char kind = i + 1 < text.length() ? text.charAt(i + 1) : ' ';
+            if (kind == '/') {
+                depth--;
+            } else if (kind != '?' && kind != '!' && text.charAt(tagEnd - 1) != '/') {
+                depth++;
+            }
+            i = text.indexOf('<', tagEnd + 1);
+        }
+        return depth;
+    }
+
+    private static void marshalWhole(PMML pmml, OutputStream os) throws PMMLConversionException {
+        try {
+            JAXBUtil.marshalPMML(pmml, new StreamResult(os));
+        } catch (JAXBException e) {
+            throw new PMMLConversionException("Failed to marshal the PMML.", e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package net.paudan.weka.pmml;
+
+import java.io.File;
+import org.dmg.pmml.PMML;
+import weka.classifiers.trees.REPTree;
+
+/**
+ * A producer that converts a classification {@link weka.classifiers.trees.REPTree} instance to a PMML TreeModel.
+ */
+public class REPTreePMMLProducer implements PMMLProducer<REPTree> {
+
+    private static final String ALGORITHM_NAME = "weka:"+REPTree.class.getName();
+
+    private static final String MODEL_NAME = ALGORITHM_NAME+"_Model";
+
+
+    @Override
+    public void produce(REPTree repTreeClassifier, File targetFile) throws PMMLConversionException {
+        PMMLUtils.marshal(produce(repTreeClassifier), targetFile);
+    }
+
+    @Override
+    public PMML produce(REPTree repTreeClassifier) throws PMMLConversionException {
+        return TreeModelBuilder.buildTree(repTreeClassifier, "Weka REPTree as PMML", ALGORITHM_NAME, MODEL_NAME);
+    }
+}
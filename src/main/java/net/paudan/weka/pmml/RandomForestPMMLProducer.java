@@ -1,43 +1,27 @@
 package net.paudan.weka.pmml;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.lang.reflect.Field;
-import weka.core.Attribute;
-import javax.xml.transform.stream.StreamResult;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
-import org.dmg.pmml.DataDictionary;
-import org.dmg.pmml.DataField;
-import org.dmg.pmml.DataType;
-import org.dmg.pmml.Extension;
-import org.dmg.pmml.FieldName;
-import org.dmg.pmml.FieldUsageType;
-import org.dmg.pmml.Header;
-import org.dmg.pmml.MiningField;
-import org.dmg.pmml.MiningFunctionType;
-import org.dmg.pmml.MiningModel;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
 import org.dmg.pmml.MiningSchema;
-import org.dmg.pmml.MultipleModelMethodType;
-import org.dmg.pmml.Node;
-import org.dmg.pmml.OpType;
 import org.dmg.pmml.PMML;
 import org.dmg.pmml.Segment;
-import org.dmg.pmml.Segmentation;
-import org.dmg.pmml.SimplePredicate;
-import org.dmg.pmml.TreeModel;
-import org.dmg.pmml.True;
-import org.dmg.pmml.Value;
-import org.jpmml.model.JAXBUtil;
 import weka.classifiers.Classifier;
 import weka.classifiers.RandomForestUtils;
+import weka.classifiers.TreeReader;
 import weka.classifiers.trees.RandomForest;
-import weka.classifiers.trees.RandomTree;
-import weka.core.Instances;
 
 /**
  * A producer that converts a {@link weka.classifiers.trees.RandomForest} instance to PMML.
+ * <p/>
+ * Each {@link weka.classifiers.trees.RandomTree} of the forest becomes a {@link org.dmg.pmml.Segment PMML Segment}
+ * built by {@link TreeModelBuilder}.
+ * <p/>
+ * When saving to a file, the size of the PMML is first estimated with {@link PMMLSizeEstimator}. If it exceeds the
+ * heap budget, the PMML is never built as a whole: trees are converted and marshalled a few at a time, see
+ * {@link ParallelPMMLMarshaller#marshal(PMML, List, File)}. The estimate and the decision are logged.
  *
  * @author Paulius Danenas (danpaulius@gmail.com), based on code by Ricardo Ferreira (ricardo.ferreira@feedzai.com)
  */
@@ -47,301 +31,159 @@ public class RandomForestPMMLProducer implements PMMLProducer<RandomForest> {
 
     private static final String MODEL_NAME = ALGORITHM_NAME+"_Model";
 
+    private static final String DESCRIPTION = "Weka RandomForest as PMML";
 
-    @Override
-    public void produce(RandomForest randomForestClassifier, File targetFile) throws PMMLConversionException {
-        PMML pmml = produce(randomForestClassifier);
-        try (FileOutputStream fis = new FileOutputStream(targetFile)){
-            JAXBUtil.marshalPMML(pmml, new StreamResult(fis));
-        } catch (Exception e) {
-            throw new PMMLConversionException("Failed to marshal the PMML to the given file.", e);
-        }
-    }
-
-    @Override
-    public PMML produce(RandomForest randomForestClassifier) throws PMMLConversionException  {
-        Header header = PMMLUtils.buildPMMLHeader("Weka RandomForest as PMML");
-        PMML pmml = new PMML("4.2", header, new DataDictionary());
-        try {
-            // Get the Instances from the first tree in the forest.
-            Classifier[] baggingClassifiers = RandomForestUtils.getBaggingClassifiers(randomForestClassifier);
-            Field field = RandomTree.class.getDeclaredField("m_Info");
-            field.setAccessible(true);
-            Instances data = (Instances) field.get(baggingClassifiers[0]);
-
-            // Builds the PMML DataDictionary and MiningSchema elements.
-            DataDictionary dataDictionary = new DataDictionary();
-            MiningSchema miningSchema = new MiningSchema();
-            
-            if (data != null) {
-                for (int i = 0; i < data.numAttributes(); i++) {
-                    Attribute attribute = data.attribute(i);
-                    
-                    DataType fieldType;
-                    if (attribute.isNumeric()) {
-                        fieldType = DataType.DOUBLE;
-                    } else {
-                        fieldType = DataType.STRING;
-                    }
-                    
-                    DataField dataField = new DataField(new FieldName(attribute.name()), attribute.isNominal() ?
-                            OpType.CATEGORICAL : OpType.CONTINUOUS, fieldType);
-                    if (attribute.isNominal()) {
-                        Enumeration<Object> enumeration = attribute.enumerateValues();
-                        while (enumeration.hasMoreElements()) {
-                            dataField.addValues(new Value(String.valueOf(enumeration.nextElement())));
-                        }
-                    }
-                    
-                    dataDictionary.addDataFields(dataField);
-                    
-                    MiningField miningField = new MiningField(new FieldName(attribute.name()));
-                    
-                    if (data.classIndex() == i) {
-                        miningField.setUsageType(FieldUsageType.PREDICTED);
-                    } else {
-                        miningField.setUsageType(FieldUsageType.ACTIVE);
-                    }
-                    miningSchema.addMiningFields(miningField);
-                }
-            }
-            
-            pmml.setDataDictionary(dataDictionary);
-            
-            MiningModel miningModel = new MiningModel(MiningFunctionType.CLASSIFICATION, miningSchema);
-            miningModel.setModelName(MODEL_NAME);
-            
-            pmml.addModels(miningModel);
-            
-            Segmentation segmentation = new Segmentation();
-            segmentation.setMultipleModelMethod(MultipleModelMethodType.MAJORITY_VOTE);
-            miningModel.setSegmentation(segmentation);
-
-            int segmentId = 1;
-            for (Classifier classifier : RandomForestUtils.getBaggingClassifiers(randomForestClassifier)) {
-                Segment segment = buildSegment(miningSchema, segmentId++, (RandomTree) classifier);
-                segmentation.addSegments(segment);
-            }
-        } catch (NoSuchFieldException | SecurityException | IllegalArgumentException | IllegalAccessException | ClassNotFoundException ex) {
-            throw new PMMLConversionException(ex);
-        } 
-        return pmml;
-    }
+    private static final Logger LOGGER = Logger.getLogger(RandomForestPMMLProducer.class.getName());
 
+    private long heapBudget;
 
     /**
-     * Builds a {@link org.dmg.pmml.Segment PMML Segment} that contains the {@link org.dmg.pmml.TreeModel PMML TreeModel}
-     * representing the given {@link weka.classifiers.trees.RandomTree Weka RandomTree}.
+     * Retrieves the heap the PMML of a forest may take to be built in memory.
      *
-     * @param miningSchema The {@link org.dmg.pmml.MiningSchema PMML MiningSchema} that lists fields as used in the model.
-     * @param segmentId    The Id to given to the {@link org.dmg.pmml.Segment PMML Segment element}.
-     * @param randomTree   The {@link weka.classifiers.trees.RandomTree Weka RandomTree} to be converted to a {@link org.dmg.pmml.TreeModel PMML TreeModel}.
-     * @return The created {@link org.dmg.pmml.Segment PMML Segment}.
+     * @return The budget in bytes, or {@code 0} for half of the heap currently available.
      */
-    private static Segment buildSegment(MiningSchema miningSchema, int segmentId, RandomTree randomTree) 
-            throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, ClassNotFoundException {
-        int rootNodeId = 1;
-
-        Node rootNode = new Node();
-        rootNode.setId(String.valueOf(rootNodeId));
-        rootNode.setPredicate(new True());
-        TreeModel treeModel = new TreeModel(MiningFunctionType.CLASSIFICATION, miningSchema, rootNode);
-        treeModel.setAlgorithmName(ALGORITHM_NAME);
-        treeModel.setModelName(MODEL_NAME);
-        treeModel.setSplitCharacteristic(TreeModel.SplitCharacteristic.MULTI_SPLIT);
-
-        Field field = RandomTree.class.getDeclaredField("m_Tree");
-        field.setAccessible(true);
-        Object bagger = field.get(randomTree);
-        buildTreeNode(randomTree, bagger, rootNodeId, rootNode);
-
-        Segment segment = new Segment();
-        segment.setId(String.valueOf(segmentId));
-        segment.setModel(treeModel);
-
-        return segment;
+    public long getHeapBudget() {
+        return heapBudget;
     }
 
     /**
-     * Builds a new {@link org.dmg.pmml.Node PMML Node} from the given {@link RandomTree.Tree Weka Tree Node}.
+     * Sets the heap the PMML of a forest may take to be built in memory; larger forests are streamed to their file.
      *
-     * @param tree           The {@link weka.classifiers.trees.RandomTree Weka RandomTree} being converted to a {@link org.dmg.pmml.PMML TreeModel}.
-     * @param node           The Id to give to the generated {@link org.dmg.pmml.Node PMML Node}.
-     * @param nodeId         The Id to give to the generated {@link org.dmg.pmml.Node PMML Node}.
-     * @param parentPMMLNode The parent {@link org.dmg.pmml.Node PMML Node}.
-     * @return The incremented Id given to recursively created {@link org.dmg.pmml.Node PMML Nodes}.
+     * @param heapBudget The budget in bytes, or {@code 0} for half of the heap currently available.
      */
-    private static int buildTreeNode(RandomTree tree, Object node, int nodeId, Node parentPMMLNode) 
-            throws NoSuchFieldException, IllegalArgumentException, IllegalAccessException, ClassNotFoundException {
-        Field field = RandomTree.class.getDeclaredField("m_Info");
-        field.setAccessible(true);
-        Instances m_info = (Instances) field.get(tree);
-        
-        Class<?> treeClass = Class.forName("weka.classifiers.trees.RandomTree$Tree");
-        field = treeClass.getDeclaredField("m_ClassDistribution");
-        field.setAccessible(true);
-        double[] m_classDistribution = (double[]) field.get(node);
-        field = treeClass.getDeclaredField("m_Attribute");
-        field.setAccessible(true);
-        int m_attribute = field.getInt(node);
-        
-        PMMLUtils.addScoreDistribution(parentPMMLNode, m_classDistribution, m_info);
-
-        if (m_attribute == -1) {
-            // Leaf: Add the node's score.
-            parentPMMLNode.setScore(PMMLUtils.leafScoreFromDistribution(m_classDistribution, m_info));
-            return nodeId;
-        }
-
-        Attribute attribute = m_info.attribute(m_attribute);
+    public void setHeapBudget(long heapBudget) {
+        this.heapBudget = heapBudget;
+    }
 
-        if (attribute.isNominal()) {
-            return buildNominalNode(tree, attribute, node, nodeId, parentPMMLNode);
-        } else if (attribute.isNumeric()) {
-            return buildNumericNode(tree, attribute, node, nodeId, parentPMMLNode);
+    @Override
+    public void produce(RandomForest randomForestClassifier, File targetFile) throws PMMLConversionException {
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(randomForestClassifier);
+        if (fitsInHeap(trees)) {
+            PMMLUtils.marshal(produce(randomForestClassifier), targetFile);
         } else {
-            throw new RuntimeException("Unsupported attribute type for: " + attribute);
+            produceStreaming(trees, targetFile, 1);
         }
     }
 
     /**
-     * Builds the {@link org.dmg.pmml.Node PMML Node} for a nominal attribute.
-     * <p/>
-     * In PMML these nodes are represented with multiple children, one for each of the attribute's values.
-     * <p/>
-     * For example, consider a nominal attribute, named "nominalAttribute", with values "cold", "hot" and "warm". In PMML this translates to:
-     * <pre>
-     *     {@code
-     *       <Node id="2" score="1">
-     *         <SimplePredicate field="nominalAttribute" operator="equal" value="cold"/>
-     *       </Node>
-     *       <Node id="3" score="0">
-     *         <SimplePredicate field="nominalAttribute" operator="equal" value="hot"/>
-     *       </Node>
-     *       <Node id="4" score="1.5">
-     *         <SimplePredicate field="nominalAttribute" operator="equal" value="warm"/>
-     *       </Node>
-     *     }
-     * </pre>
+     * Converts the given forest to PMML and saves it in the given {@link File}, marshalling the trees concurrently
+     * with a {@link ParallelPMMLMarshaller}.
      *
-     * @param tree           The {@link weka.classifiers.trees.RandomTree Weka RandomTree} being converted to a {@link org.dmg.pmml.PMML TreeModel}.
-     * @param attribute      The {@link weka.core.Attribute} to which the node to build refers to.
-     * @param node           The {@link weka.classifiers.trees.RandomTree.Tree Weka RandomTree node} we are converting to PMML.
-     * @param nodeId         The Id to give to the generted {@link org.dmg.pmml.Node PMML Node}.
-     * @param parentPMMLNode The parent {@link org.dmg.pmml.Node PMML Node}.
-     * @return The incremented Id given to recursively created {@link org.dmg.pmml.Node PMML Nodes}.
+     * @param randomForestClassifier The forest to convert to PMML.
+     * @param targetFile             The file where to save the resulting PMML.
+     * @param numThreads             The number of threads marshalling the trees.
+     * @throws PMMLConversionException If if fails to convert the forest or to write the file.
      */
-    private static int buildNominalNode(RandomTree tree, Attribute attribute, Object node, int nodeId, Node parentPMMLNode) 
-            throws ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-        List<Object> values = new ArrayList<>();
-        Enumeration<Object> enumeration = attribute.enumerateValues();
-        while (enumeration.hasMoreElements()) {
-            values.add(enumeration.nextElement());
+    public void produce(RandomForest randomForestClassifier, File targetFile, int numThreads) throws PMMLConversionException {
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(randomForestClassifier);
+        if (!fitsInHeap(trees)) {
+            produceStreaming(trees, targetFile, numThreads);
+            return;
         }
-        
-        Class<?> treeClass = Class.forName("weka.classifiers.trees.RandomTree$Tree");
-        Field field = treeClass.getDeclaredField("m_Successors");
-        field.setAccessible(true);
-        Object[] m_Successors = (Object[]) field.get(node);
-        field = treeClass.getDeclaredField("m_Prop");
-        field.setAccessible(true);
-        double[] m_Prop = (double[]) field.get(node);
-
-        List<Node> children = new ArrayList<>();
-
-        for (int i = 0; i < values.size(); i++) {
-            Object value = values.get(i);
-
-            SimplePredicate predicate = new SimplePredicate(new FieldName(attribute.name()), SimplePredicate.Operator.EQUAL);
-            predicate.setValue(String.valueOf(value));
-            Node child = new Node();
-            child.setId(String.valueOf(++nodeId));
-            child.setPredicate(predicate);
-
-            nodeId = buildTreeNode(tree, m_Successors[i], nodeId, child);
-
-            // Training proportion extension.
-            Extension ext = new Extension();
-            ext.setName(PMMLUtils.TRAINING_PROPORTION_ELEMENT);
-            ext.setValue(String.valueOf(m_Prop[i]));
-            child.addExtensions(ext);
-
-            children.add(child);
+        PMML pmml = produce(randomForestClassifier);
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(numThreads);
+        try {
+            marshaller.marshal(pmml, targetFile);
+        } finally {
+            marshaller.shutdown();
         }
-
-        parentPMMLNode.addNodes(children.toArray(new Node[] {}));
-
-        return nodeId;
     }
 
     /**
-     * Builds the {@link org.dmg.pmml.Node PMML Node} for a numeric attribute.
-     * <p/>
-     * In PMML these nodes are represented having two children, each with a predicate that checks the node's split point.
-     * <p/>
-     * For example, consider a numeric attribute, named "numericAttribute", with a split point of 2.5 and two leaf nodes. In PMML this translates to:
-     * <pre>
-     *     {@code
-     *       <Node id="2" score="1">
-     *         <SimplePredicate field="numericAttribute" operator="lessThan" value="2.5"/>
-     *       </Node>
-     *       <Node id="3" score="0">
-     *         <SimplePredicate field="numericAttribute" operator="greaterOrEqual" value="2.5"/>
-     *       </Node>
-     *     }
-     * </pre>
+     * Converts the given forest to PMML and saves it as a manifest and shard files, see {@link ShardedPMML}.
      *
-     * @param tree           The {@link weka.classifiers.trees.RandomTree Weka RandomTree} being converted to a {@link org.dmg.pmml.PMML TreeModel}.
-     * @param attribute      The {@link weka.core.Attribute} to which the node to build refers to.
-     * @param node           The {@link weka.classifiers.trees.RandomTree.Tree Weka RandomTree node} we are converting to PMML.
-     * @param nodeId         The Id to give to the generated {@link org.dmg.pmml.Node PMML Node}.
-     * @param parentPMMLNode The parent {@link org.dmg.pmml.Node PMML Node}.
-     * @return The incremented Id given to recursively created {@link org.dmg.pmml.Node PMML Nodes}.
+     * @param randomForestClassifier The forest to convert to PMML.
+     * @param manifestFile           The file where to save the manifest; shards are saved next to it.
+     * @param segmentsPerShard       The maximum number of trees per shard.
+     * @return The shard files, in order.
+     * @throws PMMLConversionException If if fails to convert the forest or to write a file.
      */
-    private static int buildNumericNode(RandomTree tree, Attribute attribute, Object node, int nodeId, Node parentPMMLNode) 
-            throws ClassNotFoundException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
-        Class<?> treeClass= Class.forName("weka.classifiers.trees.RandomTree$Tree");
-        Field field = treeClass.getDeclaredField("m_Successors");
-        field.setAccessible(true);
-        Object[] m_Successors = (Object[]) field.get(node);
-        field = treeClass.getDeclaredField("m_Prop");
-        field.setAccessible(true);
-        double[] m_Prop = (double[]) field.get(node);
-        field = treeClass.getDeclaredField("m_SplitPoint");
-        field.setAccessible(true);
-        double m_SplitPoint = field.getDouble(node);
-        
-        SimplePredicate predicateLo = new SimplePredicate(new FieldName(attribute.name()), 
-                SimplePredicate.Operator.LESS_THAN);
-        predicateLo.setValue(String.valueOf(m_SplitPoint));
-        SimplePredicate predicateHi = new SimplePredicate(new FieldName(attribute.name()), 
-                SimplePredicate.Operator.GREATER_OR_EQUAL);
-        predicateHi.setValue(String.valueOf(m_SplitPoint));
-
-        Node nodeLo = new Node();
-        nodeLo.setId(String.valueOf(++nodeId));
-        nodeLo.setPredicate(predicateLo);
+    public List<File> produceSharded(RandomForest randomForestClassifier, File manifestFile, int segmentsPerShard)
+            throws PMMLConversionException {
+        return ShardedPMML.write(produce(randomForestClassifier), manifestFile, segmentsPerShard);
+    }
 
-        nodeId = buildTreeNode(tree, m_Successors[0], nodeId, nodeLo);
+    /**
+     * Converts the given forest to PMML, only converting the trees that are not already in a previous export of a
+     * forest and copying the others from it, see {@link IncrementalPMML}.
+     *
+     * @param randomForestClassifier The forest to convert to PMML.
+     * @param baseFile               The previous export.
+     * @param targetFile             The file where to save the resulting PMML; it may be the previous export.
+     * @param numThreads             The number of threads marshalling the converted trees.
+     * @return The number of reused and converted trees.
+     * @throws PMMLConversionException If if fails to convert the forest or to read or write a file.
+     */
+    public IncrementalPMML.Result produceIncremental(RandomForest randomForestClassifier, File baseFile, File targetFile,
+                                                     int numThreads) throws PMMLConversionException {
+        return IncrementalPMML.write(RandomForestUtils.getBaggingClassifiers(randomForestClassifier),
+                DESCRIPTION, ALGORITHM_NAME, MODEL_NAME, baseFile, targetFile, numThreads);
+    }
 
-        Node nodeHi = new Node();
-        nodeHi.setId(String.valueOf(++nodeId));
-        nodeHi.setPredicate(predicateHi);
+    /**
+     * Writes the delta between a previous export of a forest and the PMML of the given forest, to be applied with
+     * {@link IncrementalPMML#apply(File, File, File)} where the previous export is.
+     *
+     * @param randomForestClassifier The forest to convert to PMML.
+     * @param baseFile               The previous export.
+     * @param deltaFile              The file where to save the delta.
+     * @param numThreads             The number of threads marshalling the converted trees.
+     * @return The number of reused and converted trees.
+     * @throws PMMLConversionException If if fails to convert the forest or to read or write a file.
+     */
+    public IncrementalPMML.Result produceDelta(RandomForest randomForestClassifier, File baseFile, File deltaFile,
+                                               int numThreads) throws PMMLConversionException {
+        return IncrementalPMML.writeDelta(RandomForestUtils.getBaggingClassifiers(randomForestClassifier),
+                DESCRIPTION, ALGORITHM_NAME, MODEL_NAME, baseFile, deltaFile, numThreads);
+    }
 
-        nodeId = buildTreeNode(tree, m_Successors[1], nodeId, nodeHi);
+    @Override
+    public PMML produce(RandomForest randomForestClassifier) throws PMMLConversionException  {
+        return TreeModelBuilder.buildEnsemble(RandomForestUtils.getBaggingClassifiers(randomForestClassifier),
+                DESCRIPTION, ALGORITHM_NAME, MODEL_NAME);
+    }
 
-        // Training proportion extension.
-        Extension ext1 = new Extension();
-        ext1.setName(PMMLUtils.TRAINING_PROPORTION_ELEMENT);
-        ext1.setValue(String.valueOf(m_Prop[0]));
-        Extension ext2 = new Extension();
-        ext2.setName(PMMLUtils.TRAINING_PROPORTION_ELEMENT);
-        ext2.setValue(String.valueOf(m_Prop[1]));
-        nodeLo.addExtensions(ext1, ext2);
+    /**
+     * Estimates the size of the PMML of a forest and compares it with the heap budget.
+     */
+    private boolean fitsInHeap(Classifier[] trees) throws PMMLConversionException {
+        if (trees == null || trees.length == 0) {
+            throw new PMMLConversionException("The forest has not been trained.");
+        }
+        PMMLSizeEstimator.Estimate estimate = PMMLSizeEstimator.estimate(trees);
+        long budget = heapBudget;
+        if (budget <= 0) {
+            Runtime runtime = Runtime.getRuntime();
+            budget = (runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) / 2;
+        }
+        boolean fits = estimate.getBytes() <= budget;
+        LOGGER.info("PMML of " + estimate + ", heap budget " + (budget >> 20) + " MB: "
+                + (fits ? "building it in memory." : "streaming it a few trees at a time."));
+        return fits;
+    }
 
-        parentPMMLNode.addNodes(nodeLo, nodeHi);
+    /**
+     * Saves the PMML of a forest without building it as a whole.
+     */
+    private void produceStreaming(Classifier[] trees, File targetFile, int numThreads) throws PMMLConversionException {
+        PMML envelope;
+        try {
+            envelope = TreeModelBuilder.buildEnsembleEnvelope(TreeReader.forTree(trees[0]).getHeader(), DESCRIPTION,
+                    MODEL_NAME);
+        } catch (Exception e) {
+            throw new PMMLConversionException(e);
+        }
+        MiningSchema miningSchema = PMMLUtils.getMiningModel(envelope).getMiningSchema();
+        List<Callable<Segment>> segments = new ArrayList<>();
+        for (int i = 0; i < trees.length; i++) {
+            segments.add(TreeModelBuilder.segmentBuilder(miningSchema, i + 1, trees[i], ALGORITHM_NAME, MODEL_NAME));
+        }
 
-        return nodeId;
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(numThreads);
+        try {
+            marshaller.marshal(envelope, segments, targetFile);
+        } finally {
+            marshaller.shutdown();
+        }
     }
 }
-
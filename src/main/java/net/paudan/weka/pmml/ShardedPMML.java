@@ -0,0 +1,194 @@
+package net.paudan.weka.pmml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.Segmentation;
+
+/**
+ * Writes and reads a tree ensemble PMML split into several files, so that it can be parsed in parallel.
+ * <p/>
+ * The manifest file is a PMML document with the DataDictionary and the {@link org.dmg.pmml.MiningModel PMML MiningModel}
+ * of the ensemble, whose Segmentation is left empty. Instead, the MiningModel lists its shards, in order, as
+ * {@link #SHARD_EXTENSION_ELEMENT} extensions whose value is the name of the shard file, relative to the manifest.
+ * Each shard is a complete PMML document, with the DataDictionary, whose MiningModel holds a contiguous group of the
+ * ensemble's segments.
+ * <p/>
+ * The manifest is not a standard PMML document: the schema requires at least one Segment in a Segmentation, so it
+ * does not validate, and other PMML consumers would not see the shards. Its MiningModel is marked
+ * {@code isScorable="false"} so that they do not score it; it is only meant to be read by
+ * {@link #load(File, int, Collection)}, which clears the mark on the assembled model.
+ */
+public final class ShardedPMML {
+
+    /**
+     * The name of the PMML extension listing a shard in the manifest.
+     */
+    public static final String SHARD_EXTENSION_ELEMENT = "shard";
+
+    private ShardedPMML() {
+    }
+
+    /**
+     * Writes an ensemble PMML as a manifest and shard files.
+     * <p/>
+     * The shards are written next to the manifest, named after it: {@code model.xml} gets {@code model.shard-1.xml},
+     * {@code model.shard-2.xml} and so on.
+     *
+     * @param pmml             The {@link org.dmg.pmml.PMML} of the ensemble; it is not modified.
+     * @param manifestFile     The manifest file.
+     * @param segmentsPerShard The maximum number of segments per shard.
+     * @return The shard files, in order.
+     * @throws PMMLConversionException If the PMML has no MiningModel or it fails to write a file.
+     */
+    public static List<File> write(PMML pmml, File manifestFile, int segmentsPerShard) throws PMMLConversionException {
+        if (segmentsPerShard < 1) {
+            throw new IllegalArgumentException("There must be at least one segment per shard.");
+        }
+        MiningModel miningModel = PMMLUtils.getMiningModel(pmml);
+        List<Segment> segments = miningModel.getSegmentation().getSegments();
+
+        String name = manifestFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : ".xml";
+
+        MiningModel manifestModel = copyMiningModel(miningModel);
+        List<File> shardFiles = new ArrayList<>();
+        for (int first = 0, shard = 1; first < segments.size(); first += segmentsPerShard, shard++) {
+            File shardFile = new File(manifestFile.getAbsoluteFile().getParentFile(), base + ".shard-" + shard + extension);
+
+            MiningModel shardModel = copyMiningModel(miningModel);
+            List<Segment> group = segments.subList(first, Math.min(segments.size(), first + segmentsPerShard));
+            shardModel.getSegmentation().addSegments(group.toArray(new Segment[group.size()]));
+            PMML shardPMML = new PMML(pmml.getVersion(), pmml.getHeader(), pmml.getDataDictionary());
+            shardPMML.addModels(shardModel);
+            PMMLUtils.marshal(shardPMML, shardFile);
+            shardFiles.add(shardFile);
+
+            Extension ext = new Extension();
+            ext.setName(SHARD_EXTENSION_ELEMENT);
+            ext.setValue(shardFile.getName());
+            manifestModel.addExtensions(ext);
+        }
+
+        manifestModel.setScorable(false);
+        PMML manifest = new PMML(pmml.getVersion(), pmml.getHeader(), pmml.getDataDictionary());
+        manifest.addModels(manifestModel);
+        PMMLUtils.marshal(manifest, manifestFile);
+        return shardFiles;
+    }
+
+    /**
+     * Loads a PMML, parsing its shards in parallel if it is a manifest, and assembles the whole
+     * {@link org.dmg.pmml.MiningModel PMML MiningModel}.
+     * <p/>
+     * Documents are loaded through {@link PMMLLoader}, so a PMML that is not sharded is loaded as it would be by
+     * {@link PMMLLoader#load(java.io.InputStream, java.util.Collection)}.
+     *
+     * @param file           The manifest, or a regular PMML file.
+     * @param numThreads     The number of threads parsing the shards.
+     * @param keptExtensions The names of the extensions to keep, or {@code null} to keep them all.
+     * @return The assembled {@link org.dmg.pmml.PMML}.
+     * @throws PMMLConversionException If it fails to read a file.
+     */
+    public static PMML load(File file, int numThreads, Collection<String> keptExtensions) throws PMMLConversionException {
+        Set<String> manifestExtensions = null;
+        if (keptExtensions != null) {
+            manifestExtensions = new HashSet<>(keptExtensions);
+            manifestExtensions.add(SHARD_EXTENSION_ELEMENT);
+        }
+        PMML pmml = load(file, manifestExtensions);
+
+        MiningModel miningModel = null;
+        List<String> shardNames = new ArrayList<>();
+        for (Model model : pmml.getModels()) {
+            if (model instanceof MiningModel) {
+                miningModel = (MiningModel) model;
+                Iterator<Extension> extensions = miningModel.getExtensions().iterator();
+                while (extensions.hasNext()) {
+                    Extension extension = extensions.next();
+                    if (SHARD_EXTENSION_ELEMENT.equals(extension.getName())) {
+                        shardNames.add(extension.getValue());
+                        extensions.remove();
+                    }
+                }
+                break;
+            }
+        }
+        if (shardNames.isEmpty()) {
+            return pmml;
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, shardNames.size())));
+        try {
+            List<Future<PMML>> shards = new ArrayList<>();
+            for (String shardName : shardNames) {
+                final File shardFile = new File(directory, shardName);
+                final Collection<String> kept = keptExtensions;
+                shards.add(executor.submit(new Callable<PMML>() {
+                    @Override
+                    public PMML call() throws Exception {
+                        return load(shardFile, kept);
+                    }
+                }));
+            }
+
+            Segmentation segmentation = miningModel.getSegmentation();
+            for (Future<PMML> shard : shards) {
+                List<Segment> segments = PMMLUtils.getMiningModel(shard.get()).getSegmentation().getSegments();
+                segmentation.addSegments(segments.toArray(new Segment[segments.size()]));
+            }
+            miningModel.setScorable(null);
+            return pmml;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PMMLConversionException("Interrupted while loading the shards.", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof PMMLConversionException ? (PMMLConversionException) e.getCause()
+                    : new PMMLConversionException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static PMML load(File file, Collection<String> keptExtensions) throws PMMLConversionException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+            return PMMLLoader.load(is, keptExtensions);
+        } catch (IOException e) {
+            throw new PMMLConversionException("Failed to read the PMML file " + file + ".", e);
+        }
+    }
+
+    /**
+     * Copies the attributes of a {@link org.dmg.pmml.MiningModel PMML MiningModel}, with an empty Segmentation.
+     */
+    private static MiningModel copyMiningModel(MiningModel miningModel) {
+        MiningModel copy = new MiningModel(miningModel.getFunctionName(), miningModel.getMiningSchema());
+        copy.setModelName(miningModel.getModelName());
+        copy.setAlgorithmName(miningModel.getAlgorithmName());
+        Segmentation segmentation = new Segmentation();
+        segmentation.setMultipleModelMethod(miningModel.getSegmentation().getMultipleModelMethod());
+        copy.setSegmentation(segmentation);
+        return copy;
+    }
+}
@@ -0,0 +1,441 @@
+package net.paudan.weka.pmml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.dmg.pmml.DataDictionary;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.DataType;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.FieldName;
+import org.dmg.pmml.FieldUsageType;
+import org.dmg.pmml.MiningField;
+import org.dmg.pmml.MiningFunctionType;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.MiningSchema;
+import org.dmg.pmml.MultipleModelMethodType;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.OpType;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.Segmentation;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.TreeModel;
+import org.dmg.pmml.True;
+import org.dmg.pmml.Value;
+import weka.classifiers.Classifier;
+import weka.classifiers.TreeReader;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Builds the PMML elements shared by all the tree producers from a {@link weka.classifiers.TreeReader}. The
+ * conversion started out as the one of {@link RandomForestPMMLProducer}.
+ */
+public final class TreeModelBuilder {
+
+    private TreeModelBuilder() {
+    }
+
+    /**
+     * Converts an ensemble of trees to a {@link org.dmg.pmml.PMML} with a {@link org.dmg.pmml.MiningModel PMML MiningModel}
+     * holding one majority-voted {@link org.dmg.pmml.Segment PMML Segment} per tree.
+     *
+     * @param trees         The trained trees, all sharing the same header.
+     * @param description   The description of the {@link org.dmg.pmml.Header PMML Header}.
+     * @param algorithmName The algorithm name of every {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.MiningModel PMML MiningModel} and its trees.
+     * @return The {@link org.dmg.pmml.PMML} representing the ensemble.
+     * @throws PMMLConversionException If one of the trees is not supported or cannot be read.
+     */
+    public static PMML buildEnsemble(Classifier[] trees, String description, String algorithmName, String modelName)
+            throws PMMLConversionException {
+        if (trees == null || trees.length == 0) {
+            throw new PMMLConversionException("The ensemble has not been trained.");
+        }
+        try {
+            TreeReader[] readers = new TreeReader[trees.length];
+            for (int i = 0; i < trees.length; i++) {
+                readers[i] = TreeReader.forTree(trees[i]);
+            }
+            PMML pmml = buildEnsembleEnvelope(readers[0].getHeader(), description, modelName);
+            MiningModel miningModel = PMMLUtils.getMiningModel(pmml);
+
+            int segmentId = 1;
+            for (TreeReader reader : readers) {
+                Segment segment = buildSegment(miningModel.getMiningSchema(), segmentId++, reader, algorithmName, modelName);
+                segment.addExtensions(buildFingerprintExtension(reader.fingerprint()));
+                miningModel.getSegmentation().addSegments(segment);
+            }
+            return pmml;
+        } catch (Exception e) {
+            throw new PMMLConversionException(e);
+        }
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.PMML} of an ensemble without its trees: the
+     * {@link org.dmg.pmml.MiningModel PMML MiningModel} has an empty majority-vote
+     * {@link org.dmg.pmml.Segmentation PMML Segmentation}.
+     *
+     * @param data        The header the trees were trained with.
+     * @param description The description of the {@link org.dmg.pmml.Header PMML Header}.
+     * @param modelName   The model name of the {@link org.dmg.pmml.MiningModel PMML MiningModel}.
+     * @return A new {@link org.dmg.pmml.PMML}.
+     */
+    public static PMML buildEnsembleEnvelope(Instances data, String description, String modelName) {
+        PMML pmml = new PMML("4.2", PMMLUtils.buildPMMLHeader(description), buildDataDictionary(data));
+
+        MiningModel miningModel = new MiningModel(MiningFunctionType.CLASSIFICATION, buildMiningSchema(data));
+        miningModel.setModelName(modelName);
+
+        pmml.addModels(miningModel);
+
+        Segmentation segmentation = new Segmentation();
+        segmentation.setMultipleModelMethod(MultipleModelMethodType.MAJORITY_VOTE);
+        miningModel.setSegmentation(segmentation);
+        return pmml;
+    }
+
+    /**
+     * Creates a task building the {@link org.dmg.pmml.Segment PMML Segment} of a tree, with its fingerprint, as
+     * {@link #buildEnsemble} does. Segments can then be built one at a time while they are marshalled, see
+     * {@link ParallelPMMLMarshaller#marshal(PMML, List, java.io.OutputStream)}.
+     *
+     * @param miningSchema  The {@link org.dmg.pmml.MiningSchema PMML MiningSchema} of the ensemble.
+     * @param segmentId     The Id to give to the {@link org.dmg.pmml.Segment PMML Segment element}.
+     * @param tree          The trained tree.
+     * @param algorithmName The algorithm name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @return The task.
+     */
+    public static Callable<Segment> segmentBuilder(final MiningSchema miningSchema, final int segmentId,
+                                                   final Classifier tree, final String algorithmName,
+                                                   final String modelName) {
+        return new Callable<Segment>() {
+            @Override
+            public Segment call() throws Exception {
+                TreeReader reader = TreeReader.forTree(tree);
+                Segment segment = buildSegment(miningSchema, segmentId, reader, algorithmName, modelName);
+                segment.addExtensions(buildFingerprintExtension(reader.fingerprint()));
+                return segment;
+            }
+        };
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.Extension PMML Extension} holding the fingerprint of a tree.
+     *
+     * @param fingerprint The {@link weka.classifiers.TreeReader#fingerprint() fingerprint}.
+     * @return A new {@link PMMLUtils#FINGERPRINT_ELEMENT} extension.
+     */
+    public static Extension buildFingerprintExtension(String fingerprint) {
+        Extension extension = new Extension();
+        extension.setName(PMMLUtils.FINGERPRINT_ELEMENT);
+        extension.setValue(fingerprint);
+        return extension;
+    }
+
+    /**
+     * Converts a single tree to a {@link org.dmg.pmml.PMML} with a top level {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     *
+     * @param tree          The trained tree.
+     * @param description   The description of the {@link org.dmg.pmml.Header PMML Header}.
+     * @param algorithmName The algorithm name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @return The {@link org.dmg.pmml.PMML} representing the tree.
+     * @throws PMMLConversionException If the tree is not supported or cannot be read.
+     */
+    public static PMML buildTree(Classifier tree, String description, String algorithmName, String modelName)
+            throws PMMLConversionException {
+        try {
+            TreeReader reader = TreeReader.forTree(tree);
+            Instances data = reader.getHeader();
+            if (data == null) {
+                throw new PMMLConversionException("The tree has not been trained.");
+            }
+
+            PMML pmml = new PMML("4.2", PMMLUtils.buildPMMLHeader(description), buildDataDictionary(data));
+            pmml.addModels(buildTreeModel(buildMiningSchema(data), reader, algorithmName, modelName));
+            return pmml;
+        } catch (PMMLConversionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PMMLConversionException(e);
+        }
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.DataDictionary PMML DataDictionary} describing the attributes of a header.
+     *
+     * @param data The header {@link weka.core.Instances}.
+     * @return A new {@link org.dmg.pmml.DataDictionary PMML DataDictionary}.
+     */
+    public static DataDictionary buildDataDictionary(Instances data) {
+        DataDictionary dataDictionary = new DataDictionary();
+        for (int i = 0; i < data.numAttributes(); i++) {
+            Attribute attribute = data.attribute(i);
+
+            DataType fieldType;
+            if (attribute.isNumeric()) {
+                fieldType = DataType.DOUBLE;
+            } else {
+                fieldType = DataType.STRING;
+            }
+
+            DataField dataField = new DataField(new FieldName(attribute.name()), attribute.isNominal() ?
+                    OpType.CATEGORICAL : OpType.CONTINUOUS, fieldType);
+            if (attribute.isNominal()) {
+                Enumeration<Object> enumeration = attribute.enumerateValues();
+                while (enumeration.hasMoreElements()) {
+                    dataField.addValues(new Value(String.valueOf(enumeration.nextElement())));
+                }
+            }
+
+            dataDictionary.addDataFields(dataField);
+        }
+        return dataDictionary;
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.MiningSchema PMML MiningSchema} of a header: the class attribute is predicted
+     * and every other attribute is active.
+     *
+     * @param data The header {@link weka.core.Instances}.
+     * @return A new {@link org.dmg.pmml.MiningSchema PMML MiningSchema}.
+     */
+    public static MiningSchema buildMiningSchema(Instances data) {
+        MiningSchema miningSchema = new MiningSchema();
+        for (int i = 0; i < data.numAttributes(); i++) {
+            MiningField miningField = new MiningField(new FieldName(data.attribute(i).name()));
+
+            if (data.classIndex() == i) {
+                miningField.setUsageType(FieldUsageType.PREDICTED);
+            } else {
+                miningField.setUsageType(FieldUsageType.ACTIVE);
+            }
+            miningSchema.addMiningFields(miningField);
+        }
+        return miningSchema;
+    }
+
+    /**
+     * Builds a {@link org.dmg.pmml.Segment PMML Segment} that contains the {@link org.dmg.pmml.TreeModel PMML TreeModel}
+     * representing the given tree.
+     *
+     * @param miningSchema  The {@link org.dmg.pmml.MiningSchema PMML MiningSchema} that lists fields as used in the model.
+     * @param segmentId     The Id to given to the {@link org.dmg.pmml.Segment PMML Segment element}.
+     * @param reader        The reader of the tree to be converted to a {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param algorithmName The algorithm name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @return The created {@link org.dmg.pmml.Segment PMML Segment}.
+     */
+    public static Segment buildSegment(MiningSchema miningSchema, int segmentId, TreeReader reader,
+                                       String algorithmName, String modelName) {
+        Segment segment = new Segment();
+        segment.setId(String.valueOf(segmentId));
+        segment.setModel(buildTreeModel(miningSchema, reader, algorithmName, modelName));
+        return segment;
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.TreeModel PMML TreeModel} representing the given tree.
+     *
+     * @param miningSchema  The {@link org.dmg.pmml.MiningSchema PMML MiningSchema} that lists fields as used in the model.
+     * @param reader        The reader of the tree to convert.
+     * @param algorithmName The algorithm name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @param modelName     The model name of the {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     * @return The created {@link org.dmg.pmml.TreeModel PMML TreeModel}.
+     */
+    public static TreeModel buildTreeModel(MiningSchema miningSchema, TreeReader reader, String algorithmName,
+                                           String modelName) {
+        int rootNodeId = 1;
+
+        Node rootNode = new Node();
+        rootNode.setId(String.valueOf(rootNodeId));
+        rootNode.setPredicate(new True());
+        TreeModel treeModel = new TreeModel(MiningFunctionType.CLASSIFICATION, miningSchema, rootNode);
+        treeModel.setAlgorithmName(algorithmName);
+        treeModel.setModelName(modelName);
+        treeModel.setSplitCharacteristic(TreeModel.SplitCharacteristic.MULTI_SPLIT);
+
+        Instances info = reader.getHeader();
+        Object root = reader.getRoot();
+        if (root == null) {
+            double[] distribution = reader.getConstantDistribution();
+            PMMLUtils.addScoreDistribution(rootNode, distribution, info);
+            rootNode.setScore(PMMLUtils.leafScoreFromDistribution(distribution, info));
+        } else {
+            buildTreeNodes(reader, info, root, rootNode, rootNodeId);
+        }
+
+        return treeModel;
+    }
+
+    /**
+     * Builds the {@link org.dmg.pmml.Node PMML Nodes} below the root of a tree.
+     * <p/>
+     * The tree is walked depth first with an explicit stack rather than by recursion, so that trees of any depth,
+     * such as unpruned RandomTrees grown on skewed data, convert on default thread stacks. The stack is a pair of
+     * work arrays holding each pending tree node and the {@link org.dmg.pmml.Node PMML Node} created for it; Ids are
+     * given as nodes are popped, in the same preorder as a recursive walk.
+     *
+     * @param reader     The reader of the tree being converted to a {@link org.dmg.pmml.PMML TreeModel}.
+     * @param info       The header of the tree.
+     * @param root       The root of the tree.
+     * @param rootNode   The root {@link org.dmg.pmml.Node PMML Node}, which already has its Id and predicate.
+     * @param rootNodeId The Id of the root {@link org.dmg.pmml.Node PMML Node}.
+     */
+    private static void buildTreeNodes(TreeReader reader, Instances info, Object root, Node rootNode, int rootNodeId) {
+        Object[] pendingNodes = new Object[64];
+        Node[] pendingPMMLNodes = new Node[64];
+        int size = 0;
+        pendingNodes[size] = root;
+        pendingPMMLNodes[size++] = rootNode;
+
+        int nodeId = rootNodeId - 1;
+        while (size > 0) {
+            Object node = pendingNodes[--size];
+            Node pmmlNode = pendingPMMLNodes[size];
+            pendingNodes[size] = null;
+            pendingPMMLNodes[size] = null;
+            pmmlNode.setId(String.valueOf(++nodeId));
+
+            double[] classDistribution = reader.getClassDistribution(node);
+            int attributeIndex = reader.getAttribute(node);
+
+            PMMLUtils.addScoreDistribution(pmmlNode, classDistribution, info);
+
+            if (attributeIndex == TreeReader.LEAF) {
+                // Leaf: Add the node's score.
+                pmmlNode.setScore(PMMLUtils.leafScoreFromDistribution(classDistribution, info));
+                continue;
+            }
+
+            Attribute attribute = info.attribute(attributeIndex);
+
+            Node[] children;
+            if (attribute.isNominal()) {
+                children = buildNominalChildren(reader, attribute, node);
+            } else if (attribute.isNumeric()) {
+                children = buildNumericChildren(reader, attribute, node);
+            } else {
+                throw new RuntimeException("Unsupported attribute type for: " + attribute);
+            }
+            pmmlNode.addNodes(children);
+
+            Object[] successors = reader.getSuccessors(node);
+            if (size + children.length > pendingNodes.length) {
+                int capacity = Math.max(pendingNodes.length * 2, size + children.length);
+                pendingNodes = Arrays.copyOf(pendingNodes, capacity);
+                pendingPMMLNodes = Arrays.copyOf(pendingPMMLNodes, capacity);
+            }
+            // Pushed last to first, so that the first child is converted, and numbered, first.
+            for (int i = children.length - 1; i >= 0; i--) {
+                pendingNodes[size] = successors[i];
+                pendingPMMLNodes[size++] = children[i];
+            }
+        }
+    }
+
+    /**
+     * Builds the children of a {@link org.dmg.pmml.Node PMML Node} splitting on a nominal attribute.
+     * <p/>
+     * In PMML these nodes are represented with multiple children, one for each of the attribute's values.
+     * <p/>
+     * For example, consider a nominal attribute, named "nominalAttribute", with values "cold", "hot" and "warm". In PMML this translates to:
+     * <pre>
+     *     {@code
+     *       <Node id="2" score="1">
+     *         <SimplePredicate field="nominalAttribute" operator="equal" value="cold"/>
+     *       </Node>
+     *       <Node id="3" score="0">
+     *         <SimplePredicate field="nominalAttribute" operator="equal" value="hot"/>
+     *       </Node>
+     *       <Node id="4" score="1.5">
+     *         <SimplePredicate field="nominalAttribute" operator="equal" value="warm"/>
+     *       </Node>
+     *     }
+     * </pre>
+     *
+     * @param reader    The reader of the tree being converted to a {@link org.dmg.pmml.PMML TreeModel}.
+     * @param attribute The {@link weka.core.Attribute} to which the node refers to.
+     * @param node      The tree node we are converting to PMML.
+     * @return The children, with their predicate and training proportion but no Id yet.
+     */
+    private static Node[] buildNominalChildren(TreeReader reader, Attribute attribute, Object node) {
+        List<Object> values = new ArrayList<>();
+        Enumeration<Object> enumeration = attribute.enumerateValues();
+        while (enumeration.hasMoreElements()) {
+            values.add(enumeration.nextElement());
+        }
+
+        double[] proportions = reader.getProportions(node);
+
+        Node[] children = new Node[values.size()];
+        for (int i = 0; i < children.length; i++) {
+            SimplePredicate predicate = new SimplePredicate(new FieldName(attribute.name()), SimplePredicate.Operator.EQUAL);
+            predicate.setValue(String.valueOf(values.get(i)));
+            children[i] = new Node();
+            children[i].setPredicate(predicate);
+            children[i].addExtensions(buildTrainingProportionExtension(proportions[i]));
+        }
+        return children;
+    }
+
+    /**
+     * Builds the children of a {@link org.dmg.pmml.Node PMML Node} splitting on a numeric attribute.
+     * <p/>
+     * In PMML these nodes are represented having two children, each with a predicate that checks the node's split point.
+     * <p/>
+     * For example, consider a numeric attribute, named "numericAttribute", with a split point of 2.5 and two leaf nodes. In PMML this translates to:
+     * <pre>
+     *     {@code
+     *       <Node id="2" score="1">
+     *         <SimplePredicate field="numericAttribute" operator="lessThan" value="2.5"/>
+     *       </Node>
+     *       <Node id="3" score="0">
+     *         <SimplePredicate field="numericAttribute" operator="greaterOrEqual" value="2.5"/>
+     *       </Node>
+     *     }
+     * </pre>
+     * Trees that send the split point itself to the first child, such as {@link weka.classifiers.trees.J48}, use the
+     * {@code lessOrEqual} and {@code greaterThan} operators instead.
+     *
+     * @param reader    The reader of the tree being converted to a {@link org.dmg.pmml.PMML TreeModel}.
+     * @param attribute The {@link weka.core.Attribute} to which the node refers to.
+     * @param node      The tree node we are converting to PMML.
+     * @return The two children, with their predicate and training proportion but no Id yet.
+     */
+    private static Node[] buildNumericChildren(TreeReader reader, Attribute attribute, Object node) {
+        double[] proportions = reader.getProportions(node);
+        double splitPoint = reader.getSplitPoint(node);
+        boolean inclusive = reader.isSplitInclusive();
+
+        SimplePredicate predicateLo = new SimplePredicate(new FieldName(attribute.name()),
+                inclusive ? SimplePredicate.Operator.LESS_OR_EQUAL : SimplePredicate.Operator.LESS_THAN);
+        predicateLo.setValue(String.valueOf(splitPoint));
+        SimplePredicate predicateHi = new SimplePredicate(new FieldName(attribute.name()),
+                inclusive ? SimplePredicate.Operator.GREATER_THAN : SimplePredicate.Operator.GREATER_OR_EQUAL);
+        predicateHi.setValue(String.valueOf(splitPoint));
+
+        Node nodeLo = new Node();
+        nodeLo.setPredicate(predicateLo);
+        nodeLo.addExtensions(buildTrainingProportionExtension(proportions[0]));
+
+        Node nodeHi = new Node();
+        nodeHi.setPredicate(predicateHi);
+        nodeHi.addExtensions(buildTrainingProportionExtension(proportions[1]));
+
+        return new Node[] {nodeLo, nodeHi};
+    }
+
+    private static Extension buildTrainingProportionExtension(double proportion) {
+        Extension extension = new Extension();
+        extension.setName(PMMLUtils.TRAINING_PROPORTION_ELEMENT);
+        extension.setValue(String.valueOf(proportion));
+        return extension;
+    }
+}
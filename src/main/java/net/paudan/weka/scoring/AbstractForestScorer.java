@@ -0,0 +1,100 @@
+package net.paudan.weka.scoring;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * Base class for {@link ForestScorer} implementations that only need to provide {@link #distributionForRow(double[])}.
+ */
+public abstract class AbstractForestScorer implements ForestScorer {
+
+    @Override
+    public double[] distributionForInstance(Instance instance) {
+        if (instance instanceof SparseInstance) {
+            return distributionForSparseRow(SparseRow.of(instance));
+        }
+        return distributionForRow(instance.toDoubleArray());
+    }
+
+    @Override
+    public double[] distributionForSparseRow(int[] indices, double[] values) {
+        return distributionForSparseRow(new SparseRow(indices, values));
+    }
+
+    /**
+     * Computes the class distribution for a sparse row. This implementation expands the row; scorers that can
+     * look up attributes in the sparse row directly override it.
+     *
+     * @param row The sparse row.
+     * @return The class distribution.
+     */
+    public double[] distributionForSparseRow(SparseRow row) {
+        return distributionForRow(row.toDense(getHeader().numAttributes()));
+    }
+
+    /**
+     * Tells whether {@link #distributionForSparseRow(SparseRow)} scores a sparse row without expanding it. Scorers
+     * that override it to do so override this method as well.
+     *
+     * @return {@code true} if sparse rows are scored as such, {@code false} if they are expanded first.
+     */
+    public boolean scoresSparseRows() {
+        return false;
+    }
+
+    @Override
+    public double[][] distributionsForRows(double[][] rows) {
+        double[][] distributions = new double[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            distributions[i] = distributionForRow(rows[i]);
+        }
+        return distributions;
+    }
+
+    @Override
+    public int classifyRow(double[] row) {
+        return classFromDistribution(distributionForRow(row));
+    }
+
+    @Override
+    public int numClasses() {
+        return getHeader().numClasses();
+    }
+
+    /**
+     * Normalizes the summed votes of all trees the same way {@link weka.classifiers.meta.Bagging} does.
+     *
+     * @param sums The summed tree distributions, normalized in place.
+     * @return The given array.
+     */
+    static double[] normalizeVotes(double[] sums) {
+        if (!Utils.eq(Utils.sum(sums), 0)) {
+            Utils.normalize(sums);
+        }
+        return sums;
+    }
+
+    /**
+     * Retrieves the predicted class of a distribution.
+     *
+     * @param distribution The class distribution.
+     * @return The index of the most likely class, or {@code -1} if the distribution is all zeros.
+     */
+    static int classFromDistribution(double[] distribution) {
+        int maxIndex = Utils.maxIndex(distribution);
+        return distribution[maxIndex] > 0 ? maxIndex : -1;
+    }
+
+    /**
+     * Retrieves a header's class attribute value for a predicted class index.
+     *
+     * @param header     The header {@link weka.core.Instances}.
+     * @param classIndex The predicted class index.
+     * @return The class label, or {@code null} for {@code -1}.
+     */
+    public static String classLabel(Instances header, int classIndex) {
+        return classIndex < 0 ? null : header.classAttribute().value(classIndex);
+    }
+}
@@ -0,0 +1,273 @@
+package net.paudan.weka.scoring;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import weka.core.Instances;
+
+/**
+ * A {@link ForestScorer} that memoizes the distributions computed by another scorer.
+ * <p/>
+ * Entries are keyed by the encoded row, with the class slot ignored, and kept in a striped LRU: the hash of
+ * the row selects one of several independently locked, access-ordered maps, so that concurrent lookups rarely
+ * contend. Each stripe gets an equal share of the memory budget and evicts its least recently used entries
+ * when an insertion would exceed it. The size of an entry is estimated from the lengths of its arrays.
+ */
+public class CachingForestScorer extends AbstractForestScorer {
+
+    /**
+     * Approximate fixed overhead of an entry: the map entry, the key object and two array headers.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 120;
+
+    private final ForestScorer scorer;
+    private final int classIndex;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final long entryBytes;
+
+    /**
+     * Creates a new caching scorer with one stripe per available processor, rounded up to a power of two.
+     *
+     * @param scorer   The scorer whose results to cache.
+     * @param maxBytes The approximate maximum memory used by cached entries.
+     */
+    public CachingForestScorer(ForestScorer scorer, long maxBytes) {
+        this(scorer, maxBytes, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new caching scorer. Fewer stripes are used if the budget of each one could not hold an entry.
+     *
+     * @param scorer     The scorer whose results to cache.
+     * @param maxBytes   The approximate maximum memory used by cached entries.
+     * @param numStripes The number of independently locked stripes, rounded up to a power of two.
+     * @throws IllegalArgumentException If the budget cannot hold a single entry.
+     */
+    public CachingForestScorer(ForestScorer scorer, long maxBytes, int numStripes) {
+        this.scorer = scorer;
+        this.classIndex = scorer.getHeader().classIndex();
+
+        Instances header = scorer.getHeader();
+        this.entryBytes = ENTRY_OVERHEAD_BYTES + 8L * header.numAttributes() + 8L * header.numClasses();
+        if (maxBytes < entryBytes) {
+            throw new IllegalArgumentException("A cache of " + maxBytes + " bytes cannot hold a single entry of "
+                    + entryBytes + " bytes.");
+        }
+
+        int size = 1;
+        while (size < numStripes && maxBytes / (size << 1) >= entryBytes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        this.stripeMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(maxBytes / size);
+        }
+    }
+
+    @Override
+    public Instances getHeader() {
+        return scorer.getHeader();
+    }
+
+    @Override
+    public double[] distributionForRow(double[] row) {
+        // The lookup key wraps the caller's row; only the key of an inserted entry copies it.
+        RowKey key = new RowKey(row, classIndex);
+        Stripe stripe = stripes[(key.hash >>> 16) & stripeMask];
+
+        double[] cached = stripe.get(key);
+        if (cached != null) {
+            return cached.clone();
+        }
+
+        double[] distribution = scorer.distributionForRow(row);
+        stripe.put(key.copy(), distribution.clone(), entryBytes);
+        return distribution;
+    }
+
+    /**
+     * Removes every cached entry. The statistics are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public long getHitCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.hits;
+            }
+        }
+        return count;
+    }
+
+    public long getMissCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.misses;
+            }
+        }
+        return count;
+    }
+
+    public long getEvictionCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.evictions;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves the fraction of lookups that were served from the cache.
+     *
+     * @return The hit rate, or {@code 0} if there were no lookups.
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Retrieves the estimated memory used by the cached entries.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long getSizeInBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * One independently locked LRU segment of the cache.
+     */
+    private static final class Stripe {
+
+        final long maxBytes;
+        final LinkedHashMap<RowKey, double[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized double[] get(RowKey key) {
+            double[] value = entries.get(key);
+            if (value != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return value;
+        }
+
+        synchronized void put(RowKey key, double[] value, long entryBytes) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            Iterator<Map.Entry<RowKey, double[]>> eldest = entries.entrySet().iterator();
+            while (bytes + entryBytes > maxBytes && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+                bytes -= entryBytes;
+                evictions++;
+            }
+            entries.put(key, value);
+            bytes += entryBytes;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * An encoded row, compared and hashed without its class slot, and its precomputed hash.
+     */
+    private static final class RowKey {
+
+        final double[] values;
+        final int classIndex;
+        final int hash;
+
+        RowKey(double[] row, int classIndex) {
+            this.values = row;
+            this.classIndex = classIndex;
+
+            long h = 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < row.length; i++) {
+                long bits = i == classIndex ? 0 : Double.doubleToLongBits(row[i]);
+                h = (h ^ bits) * 0xC2B2AE3D27D4EB4FL;
+                h ^= h >>> 29;
+            }
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        private RowKey(double[] values, int classIndex, int hash) {
+            this.values = values;
+            this.classIndex = classIndex;
+            this.hash = hash;
+        }
+
+        /**
+         * Copies the row, so that the key no longer depends on the caller's array.
+         */
+        RowKey copy() {
+            return new RowKey(values.clone(), classIndex, hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            if (hash != other.hash || values.length != other.values.length) {
+                return false;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (i != classIndex
+                        && Double.doubleToLongBits(values[i]) != Double.doubleToLongBits(other.values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
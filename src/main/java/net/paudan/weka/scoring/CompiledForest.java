@@ -0,0 +1,415 @@
+package net.paudan.weka.scoring;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import weka.core.Instances;
+
+/**
+ * A tree ensemble flattened into primitive arrays.
+ * <p/>
+ * Every node of every tree is an index into the node arrays. The successors of a node are stored
+ * contiguously starting at {@link #firstChild(int)}, in the order of the original Weka successors, so that
+ * the successor for a nominal value {@code v} is {@code firstChild + v} and, for a numeric split, the
+ * successor for values below the split point is {@code firstChild} and the other one is {@code firstChild + 1}.
+ * <p/>
+ * Leaves hold the normalized class distribution of the original leaf. Empty leaves, which Weka resolves to the
+ * distribution of their parent, are compiled to a copy of that distribution and get a zero
+ * {@link #proportion(int) proportion}, so that they do not contribute when a missing value is split up.
+ */
+public final class CompiledForest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The attribute index stored for leaves.
+     */
+    public static final int LEAF = -1;
+
+    final Instances header;
+    final int numClasses;
+    final boolean[] nominal;
+    final int[] roots;
+    final int[] attribute;
+    final double[] splitPoint;
+    final int[] firstChild;
+    final int[] numChildren;
+    final double[] proportion;
+    final int[] distributionOffset;
+    final double[] distributions;
+
+    CompiledForest(Instances header, int[] roots, int[] attribute, double[] splitPoint, int[] firstChild,
+                   int[] numChildren, double[] proportion, int[] distributionOffset, double[] distributions) {
+        this.header = header;
+        this.numClasses = header.numClasses();
+        this.nominal = new boolean[header.numAttributes()];
+        for (int i = 0; i < nominal.length; i++) {
+            nominal[i] = header.attribute(i).isNominal();
+        }
+        this.roots = roots;
+        this.attribute = attribute;
+        this.splitPoint = splitPoint;
+        this.firstChild = firstChild;
+        this.numChildren = numChildren;
+        this.proportion = proportion;
+        this.distributionOffset = distributionOffset;
+        this.distributions = distributions;
+    }
+
+    /**
+     * Retrieves the header the forest was compiled against.
+     *
+     * @return The header {@link weka.core.Instances}.
+     */
+    public Instances getHeader() {
+        return header;
+    }
+
+    public int numClasses() {
+        return numClasses;
+    }
+
+    public int numTrees() {
+        return roots.length;
+    }
+
+    public int numNodes() {
+        return attribute.length;
+    }
+
+    /**
+     * Retrieves the index of the root node of a tree.
+     *
+     * @param tree The index of the tree.
+     * @return The index of the tree's root node.
+     */
+    public int root(int tree) {
+        return roots[tree];
+    }
+
+    public boolean isLeaf(int node) {
+        return attribute[node] == LEAF;
+    }
+
+    public int attribute(int node) {
+        return attribute[node];
+    }
+
+    public double splitPoint(int node) {
+        return splitPoint[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int numChildren(int node) {
+        return numChildren[node];
+    }
+
+    /**
+     * Retrieves the training proportion of a node, i.e. the weight it gets when the split attribute of its
+     * parent is missing.
+     *
+     * @param node The index of the node.
+     * @return The training proportion of the node.
+     */
+    public double proportion(int node) {
+        return proportion[node];
+    }
+
+    /**
+     * Retrieves the normalized class distribution of a leaf.
+     *
+     * @param node The index of the leaf.
+     * @return A copy of the leaf's class distribution.
+     */
+    public double[] leafDistribution(int node) {
+        int offset = distributionOffset[node];
+        return Arrays.copyOfRange(distributions, offset, offset + numClasses);
+    }
+
+    /**
+     * Descends from the given node following the row's values until a leaf, or a node whose split attribute is
+     * missing in the row, is reached.
+     *
+     * @param node The node to start from.
+     * @param row  The encoded row.
+     * @return The index of the node where the descent stopped.
+     */
+    public int descend(int node, double[] row) {
+        int att;
+        while ((att = attribute[node]) != LEAF) {
+            double value = row[att];
+            if (Double.isNaN(value)) {
+                return node;
+            }
+            if (nominal[att]) {
+                node = firstChild[node] + (int) value;
+            } else {
+                node = firstChild[node] + (value < splitPoint[node] ? 0 : 1);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Adds the weighted class distribution of the subtree rooted at the given node to {@code sums}.
+     * <p/>
+     * Missing values are handled as in {@link weka.classifiers.trees.RandomTree}: the row is sent down every
+     * successor, weighted by the successor's training proportion.
+     *
+     * @param node   The root of the subtree.
+     * @param row    The encoded row.
+     * @param sums   The array to add the distribution to.
+     * @param weight The weight of the subtree's distribution.
+     */
+    public void addDistribution(int node, double[] row, double[] sums, double weight) {
+        node = descend(node, row);
+        if (attribute[node] == LEAF) {
+            addLeaf(node, sums, weight);
+            return;
+        }
+        // The successors of missing values wait on an explicit stack, so that trees of any depth fit the thread's
+        // stack. They are visited in order, and the sums are the same as a recursive walk's.
+        WalkStack stack = new WalkStack();
+        stack.pushSuccessors(firstChild[node], numChildren[node], proportion, weight);
+        while (!stack.isEmpty()) {
+            weight = stack.weight();
+            node = descend(stack.pop(), row);
+            if (attribute[node] == LEAF) {
+                addLeaf(node, sums, weight);
+            } else {
+                stack.pushSuccessors(firstChild[node], numChildren[node], proportion, weight);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #descend(int, double[])} for a sparse row.
+     *
+     * @param node The node to start from.
+     * @param row  The sparse row.
+     * @return The index of the node where the descent stopped.
+     */
+    public int descend(int node, SparseRow row) {
+        int att;
+        while ((att = attribute[node]) != LEAF) {
+            double value = row.value(att);
+            if (Double.isNaN(value)) {
+                return node;
+            }
+            if (nominal[att]) {
+                node = firstChild[node] + (int) value;
+            } else {
+                node = firstChild[node] + (value < splitPoint[node] ? 0 : 1);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Same as {@link #addDistribution(int, double[], double[], double)} for a sparse row.
+     *
+     * @param node   The root of the subtree.
+     * @param row    The sparse row.
+     * @param sums   The array to add the distribution to.
+     * @param weight The weight of the subtree's distribution.
+     */
+    public void addDistribution(int node, SparseRow row, double[] sums, double weight) {
+        node = descend(node, row);
+        if (attribute[node] == LEAF) {
+            addLeaf(node, sums, weight);
+            return;
+        }
+        // Walked as a dense row is, without recursion.
+        WalkStack stack = new WalkStack();
+        stack.pushSuccessors(firstChild[node], numChildren[node], proportion, weight);
+        while (!stack.isEmpty()) {
+            weight = stack.weight();
+            node = descend(stack.pop(), row);
+            if (attribute[node] == LEAF) {
+                addLeaf(node, sums, weight);
+            } else {
+                stack.pushSuccessors(firstChild[node], numChildren[node], proportion, weight);
+            }
+        }
+    }
+
+    /**
+     * Adds the weighted class distribution of a leaf to {@code sums}.
+     *
+     * @param leaf   The index of the leaf.
+     * @param sums   The array to add the distribution to.
+     * @param weight The weight of the leaf's distribution.
+     */
+    public void addLeaf(int leaf, double[] sums, double weight) {
+        int offset = distributionOffset[leaf];
+        if (weight == 1) {
+            for (int j = 0; j < numClasses; j++) {
+                sums[j] += distributions[offset + j];
+            }
+        } else {
+            for (int j = 0; j < numClasses; j++) {
+                sums[j] += weight * distributions[offset + j];
+            }
+        }
+    }
+
+    /**
+     * The nodes still to visit while walking a tree down every successor of the splits on missing values, with the
+     * weight of each.
+     */
+    static final class WalkStack {
+
+        // Allocated on the first missing value, which most rows never reach.
+        private int[] nodes = new int[0];
+        private double[] weights = new double[0];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Pushes the successors of a split node with a non-zero training proportion, weighted by it, so that the
+         * first successor is popped first.
+         */
+        void pushSuccessors(int first, int count, double[] proportion, double weight) {
+            if (size + count > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(Math.max(16, nodes.length * 2), size + count));
+                weights = Arrays.copyOf(weights, nodes.length);
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                double childWeight = proportion[first + i];
+                if (childWeight != 0) {
+                    nodes[size] = first + i;
+                    weights[size++] = weight * childWeight;
+                }
+            }
+        }
+
+        /**
+         * Retrieves the weight of the node on top of the stack.
+         */
+        double weight() {
+            return weights[size - 1];
+        }
+
+        int pop() {
+            return nodes[--size];
+        }
+    }
+
+    /**
+     * Incrementally builds a {@link CompiledForest}.
+     * <p/>
+     * Trees are added one at a time: {@link #addTree()} reserves the root and {@link #addChildren(int)} reserves
+     * the contiguous successors of a split node.
+     */
+    static final class Builder {
+
+        private final Instances header;
+        private final int numClasses;
+        private int[] roots = new int[16];
+        private int numTrees;
+        private int[] attribute = new int[1024];
+        private double[] splitPoint = new double[1024];
+        private int[] firstChild = new int[1024];
+        private int[] numChildren = new int[1024];
+        private double[] proportion = new double[1024];
+        private int[] distributionOffset = new int[1024];
+        private int numNodes;
+        private double[] distributions = new double[1024];
+        private int distributionsLength;
+
+        Builder(Instances header) {
+            this.header = new Instances(header, 0);
+            this.numClasses = header.numClasses();
+        }
+
+        int numClasses() {
+            return numClasses;
+        }
+
+        boolean isNominal(int attributeIndex) {
+            return header.attribute(attributeIndex).isNominal();
+        }
+
+        /**
+         * Reserves the root node of a new tree.
+         *
+         * @return The index of the root node.
+         */
+        int addTree() {
+            if (numTrees == roots.length) {
+                roots = Arrays.copyOf(roots, numTrees * 2);
+            }
+            int root = reserve(1);
+            roots[numTrees++] = root;
+            proportion[root] = 1;
+            return root;
+        }
+
+        /**
+         * Reserves {@code count} contiguous nodes.
+         *
+         * @param count The number of nodes.
+         * @return The index of the first reserved node.
+         */
+        int addChildren(int count) {
+            return reserve(count);
+        }
+
+        void setSplit(int node, int attributeIndex, double split, int first, int count) {
+            attribute[node] = attributeIndex;
+            splitPoint[node] = split;
+            firstChild[node] = first;
+            numChildren[node] = count;
+        }
+
+        /**
+         * Turns a node into a leaf.
+         *
+         * @param node         The index of the node.
+         * @param distribution The normalized class distribution of the leaf.
+         */
+        void setLeaf(int node, double[] distribution) {
+            attribute[node] = LEAF;
+            splitPoint[node] = Double.NaN;
+            if (distributionsLength + numClasses > distributions.length) {
+                distributions = Arrays.copyOf(distributions, Math.max(distributions.length * 2, distributionsLength + numClasses));
+            }
+            System.arraycopy(distribution, 0, distributions, distributionsLength, numClasses);
+            distributionOffset[node] = distributionsLength;
+            distributionsLength += numClasses;
+        }
+
+        void setProportion(int node, double value) {
+            proportion[node] = value;
+        }
+
+        private int reserve(int count) {
+            int first = numNodes;
+            int required = numNodes + count;
+            if (required > attribute.length) {
+                int capacity = Math.max(attribute.length * 2, required);
+                attribute = Arrays.copyOf(attribute, capacity);
+                splitPoint = Arrays.copyOf(splitPoint, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                numChildren = Arrays.copyOf(numChildren, capacity);
+                proportion = Arrays.copyOf(proportion, capacity);
+                distributionOffset = Arrays.copyOf(distributionOffset, capacity);
+            }
+            Arrays.fill(distributionOffset, first, required, -1);
+            numNodes = required;
+            return first;
+        }
+
+        CompiledForest build() {
+            return new CompiledForest(header, Arrays.copyOf(roots, numTrees), Arrays.copyOf(attribute, numNodes),
+                    Arrays.copyOf(splitPoint, numNodes), Arrays.copyOf(firstChild, numNodes),
+                    Arrays.copyOf(numChildren, numNodes), Arrays.copyOf(proportion, numNodes),
+                    Arrays.copyOf(distributionOffset, numNodes), Arrays.copyOf(distributions, distributionsLength));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package net.paudan.weka.scoring;
+
+import weka.core.Instances;
+
+/**
+ * The default {@link ForestScorer}: evaluates every tree of a {@link CompiledForest} and averages their class
+ * distributions, as {@link weka.classifiers.trees.RandomForest#distributionForInstance(weka.core.Instance)} does.
+ */
+public class CompiledForestScorer extends AbstractForestScorer {
+
+    private final CompiledForest forest;
+
+    public CompiledForestScorer(CompiledForest forest) {
+        this.forest = forest;
+    }
+
+    public CompiledForest getForest() {
+        return forest;
+    }
+
+    @Override
+    public Instances getHeader() {
+        return forest.getHeader();
+    }
+
+    @Override
+    public double[] distributionForRow(double[] row) {
+        double[] sums = new double[forest.numClasses()];
+        for (int tree = 0; tree < forest.numTrees(); tree++) {
+            forest.addDistribution(forest.root(tree), row, sums, 1);
+        }
+        return normalizeVotes(sums);
+    }
+
+    @Override
+    public double[] distributionForSparseRow(SparseRow row) {
+        double[] sums = new double[forest.numClasses()];
+        for (int tree = 0; tree < forest.numTrees(); tree++) {
+            forest.addDistribution(forest.root(tree), row, sums, 1);
+        }
+        return normalizeVotes(sums);
+    }
+
+    @Override
+    public boolean scoresSparseRows() {
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package net.paudan.weka.scoring;
+
+import java.util.ArrayDeque;
+import net.paudan.weka.pmml.WekaClassifierException;
+import weka.classifiers.Classifier;
+import weka.classifiers.IteratedSingleClassifierEnhancer;
+import weka.classifiers.RandomForestUtils;
+import weka.classifiers.TreeReader;
+import weka.core.Instances;
+
+/**
+ * Compiles Weka trees and tree ensembles into a {@link CompiledForest}.
+ * <p/>
+ * Trees are read through a {@link weka.classifiers.TreeReader}, so {@link weka.classifiers.trees.RandomTree},
+ * {@link weka.classifiers.trees.REPTree} and {@link weka.classifiers.trees.J48} all share the same extraction.
+ * Each tree is walked once, breadth first, with an explicit queue, so that the successors of every node end up
+ * next to each other in the compiled arrays.
+ */
+public final class ForestCompiler {
+
+    private ForestCompiler() {
+    }
+
+    /**
+     * Compiles a single tree or an ensemble of trees, such as a {@link weka.classifiers.trees.RandomForest} or a
+     * {@link weka.classifiers.meta.Bagging} of {@link weka.classifiers.trees.J48} or
+     * {@link weka.classifiers.trees.REPTree}s.
+     *
+     * @param classifier The trained classifier.
+     * @return The compiled forest.
+     * @throws WekaClassifierException If the classifier is not a supported classification tree or ensemble.
+     */
+    public static CompiledForest compile(Classifier classifier) throws WekaClassifierException {
+        if (classifier instanceof IteratedSingleClassifierEnhancer) {
+            Classifier[] classifiers = RandomForestUtils.getBaggingClassifiers((IteratedSingleClassifierEnhancer) classifier);
+            if (classifiers == null || classifiers.length == 0) {
+                throw new WekaClassifierException("The ensemble has not been trained.");
+            }
+            return compile(classifiers);
+        }
+        return compile(new Classifier[] {classifier});
+    }
+
+    /**
+     * Compiles the given trees into a single forest.
+     *
+     * @param trees The trained trees, all sharing the same header.
+     * @return The compiled forest.
+     * @throws WekaClassifierException If a tree is not a supported classification tree.
+     */
+    public static CompiledForest compile(Classifier[] trees) throws WekaClassifierException {
+        try {
+            CompiledForest.Builder builder = null;
+            for (Classifier tree : trees) {
+                TreeReader reader = TreeReader.forTree(tree);
+                if (builder == null) {
+                    Instances header = reader.getHeader();
+                    if (header == null || !header.classAttribute().isNominal()) {
+                        throw new WekaClassifierException("Only classification trees can be compiled.");
+                    }
+                    builder = new CompiledForest.Builder(header);
+                }
+                addTree(builder, reader);
+            }
+            if (builder == null) {
+                throw new WekaClassifierException("There are no trees to compile.");
+            }
+            return builder.build();
+        } catch (WekaClassifierException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new WekaClassifierException(e);
+        }
+    }
+
+    /**
+     * Adds the tree of the given reader to a builder.
+     *
+     * @param builder The builder of the compiled forest.
+     * @param reader  The reader of the tree to add.
+     */
+    static void addTree(CompiledForest.Builder builder, TreeReader reader) {
+        int root = builder.addTree();
+
+        Object rootNode = reader.getRoot();
+        if (rootNode == null) {
+            builder.setLeaf(root, reader.getConstantDistribution());
+            return;
+        }
+
+        double[] noDistribution = new double[builder.numClasses()];
+        boolean inclusive = reader.isSplitInclusive();
+
+        ArrayDeque<Pending> queue = new ArrayDeque<>();
+        queue.add(new Pending(rootNode, root, null, 0));
+        while (!queue.isEmpty()) {
+            Pending pending = queue.poll();
+            int attribute = reader.getAttribute(pending.node);
+            if (attribute == TreeReader.LEAF) {
+                double[] classDistribution = reader.getClassDistribution(pending.node);
+                if (classDistribution != null) {
+                    builder.setLeaf(pending.index, TreeReader.normalize(classDistribution.clone()));
+                } else {
+                    // Weka falls back to the parent, and ignores the leaf when splitting up missing values.
+                    double[] fallback = pending.parent == null ? null
+                            : reader.getEmptySuccessorDistribution(pending.parent, pending.successor);
+                    builder.setLeaf(pending.index, fallback != null ? fallback : noDistribution);
+                    builder.setProportion(pending.index, 0);
+                }
+                continue;
+            }
+
+            Object[] successors = reader.getSuccessors(pending.node);
+            double[] prop = reader.getProportions(pending.node);
+            double splitPoint = reader.getSplitPoint(pending.node);
+            if (inclusive && !builder.isNominal(attribute)) {
+                // "value <= split" is exactly "value < nextUp(split)".
+                splitPoint = Math.nextUp(splitPoint);
+            }
+            int first = builder.addChildren(successors.length);
+            builder.setSplit(pending.index, attribute, splitPoint, first, successors.length);
+            for (int i = 0; i < successors.length; i++) {
+                builder.setProportion(first + i, prop[i]);
+                queue.add(new Pending(successors[i], first + i, pending.node, i));
+            }
+        }
+    }
+
+    /**
+     * A Weka node waiting to be written at a reserved index.
+     */
+    private static final class Pending {
+
+        final Object node;
+        final int index;
+        final Object parent;
+        final int successor;
+
+        Pending(Object node, int index, Object parent, int successor) {
+            this.node = node;
+            this.index = index;
+            this.parent = parent;
+            this.successor = successor;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package net.paudan.weka.scoring;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import net.paudan.weka.pmml.WekaClassifierException;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.IteratedSingleClassifierEnhancer;
+import weka.classifiers.RandomForestUtils;
+import weka.classifiers.meta.Bagging;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Compresses a tree ensemble by keeping only the trees that matter for its accuracy.
+ * <p/>
+ * Trees are selected greedily: starting from an empty ensemble, each step adds the tree that most improves the
+ * accuracy on the evaluation data, until the accuracy is within a tolerance of the whole ensemble's. The
+ * evaluation data is either a held-out set, or the training set itself, in which case each instance is only
+ * voted on by the trees that did not see it (out-of-bag).
+ * <p/>
+ * Every tree is run once over the evaluation data, through a {@link CompiledForest}, after a warm-up pass, and
+ * the time each tree takes is measured then, so the reported latency of a subset is the sum of the measured costs
+ * of its trees. Only the leaf each row reaches is kept, one {@code int} per tree and row, and the votes are read
+ * from the leaves as the trees are compared; large data is sampled, see
+ * {@link #select(CompiledForest, Instances, boolean[][], double, int)}.
+ */
+public final class ForestCompressor {
+
+    /**
+     * The default maximum number of instances the trees are evaluated on.
+     */
+    public static final int DEFAULT_MAX_ROWS = 10000;
+
+    /**
+     * The number of rows each tree scores before the timed pass.
+     */
+    private static final int WARM_UP_ROWS = 1000;
+
+    private static final long SAMPLE_SEED = 1;
+
+    /**
+     * Marks the rows a tree does not vote for out-of-bag.
+     */
+    private static final int NOT_VOTED = -1;
+
+    private ForestCompressor() {
+    }
+
+    /**
+     * Selects trees of an ensemble using held-out data.
+     *
+     * @param ensemble  The trained ensemble.
+     * @param heldOut   The evaluation data, with the ensemble's header.
+     * @param tolerance The accuracy the selected subset may lose, e.g. {@code 0.005}.
+     * @return The selection and its latency/accuracy curve.
+     * @throws WekaClassifierException If the ensemble cannot be compiled.
+     */
+    public static Result select(IteratedSingleClassifierEnhancer ensemble, Instances heldOut, double tolerance)
+            throws WekaClassifierException {
+        return select(ForestCompiler.compile(ensemble), heldOut, null, tolerance);
+    }
+
+    /**
+     * Selects trees of a bagging using its out-of-bag instances.
+     * <p/>
+     * The bagging must have been trained with {@link weka.classifiers.meta.Bagging#setCalcOutOfBag(boolean)}
+     * enabled, and {@code trainingData} must hold the instances it was trained with, in the same order and without
+     * the instances with a missing class.
+     *
+     * @param bagging      The trained bagging.
+     * @param trainingData The training data.
+     * @param tolerance    The accuracy the selected subset may lose, e.g. {@code 0.005}.
+     * @return The selection and its latency/accuracy curve.
+     * @throws WekaClassifierException If the ensemble cannot be compiled or does not hold its in-bag information.
+     */
+    public static Result selectOutOfBag(Bagging bagging, Instances trainingData, double tolerance)
+            throws WekaClassifierException {
+        boolean[][] inBag;
+        try {
+            inBag = RandomForestUtils.getInBag(bagging);
+        } catch (Exception e) {
+            throw new WekaClassifierException(e);
+        }
+        if (inBag == null) {
+            throw new WekaClassifierException("The bagging does not hold its in-bag instances; train it with the out-of-bag error calculated.");
+        }
+        for (boolean[] bag : inBag) {
+            if (bag == null || bag.length != trainingData.numInstances()) {
+                throw new WekaClassifierException("The training data does not match the bags of the ensemble.");
+            }
+        }
+        return select(ForestCompiler.compile(bagging), trainingData, inBag, tolerance);
+    }
+
+    /**
+     * Selects trees of a compiled forest, evaluating them on at most {@link #DEFAULT_MAX_ROWS} instances.
+     *
+     * @param forest    The compiled forest.
+     * @param data      The evaluation data, with the forest's header.
+     * @param inBag     For out-of-bag evaluation, the in-bag instances of each tree, otherwise {@code null}.
+     * @param tolerance The accuracy the selected subset may lose.
+     * @return The selection and its latency/accuracy curve.
+     */
+    public static Result select(CompiledForest forest, Instances data, boolean[][] inBag, double tolerance) {
+        return select(forest, data, inBag, tolerance, DEFAULT_MAX_ROWS);
+    }
+
+    /**
+     * Selects trees of a compiled forest.
+     * <p/>
+     * When the data holds more than {@code maxRows} instances with a class, the trees are evaluated on a sample of
+     * them, drawn with a fixed seed, and the accuracies are estimates.
+     *
+     * @param forest    The compiled forest.
+     * @param data      The evaluation data, with the forest's header.
+     * @param inBag     For out-of-bag evaluation, the in-bag instances of each tree, otherwise {@code null}.
+     * @param tolerance The accuracy the selected subset may lose.
+     * @param maxRows   The maximum number of instances to evaluate the trees on.
+     * @return The selection and its latency/accuracy curve.
+     */
+    public static Result select(CompiledForest forest, Instances data, boolean[][] inBag, double tolerance,
+                                int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException("The maximum number of rows must be positive: " + maxRows);
+        }
+        int numTrees = forest.numTrees();
+        int numClasses = forest.numClasses();
+
+        int[] instanceIndices = sample(data, maxRows);
+        int numRows = instanceIndices.length;
+        double[][] rows = new double[numRows][];
+        int[] actual = new int[numRows];
+        double[] weights = new double[numRows];
+        for (int i = 0; i < numRows; i++) {
+            Instance instance = data.instance(instanceIndices[i]);
+            rows[i] = instance.toDoubleArray();
+            actual[i] = (int) instance.classValue();
+            weights[i] = instance.weight();
+        }
+
+        // Scores the rows once without timing them, so that the timed pass measures compiled code.
+        double[] vote = new double[numClasses];
+        for (int t = 0; t < numTrees; t++) {
+            for (int i = 0; i < Math.min(numRows, WARM_UP_ROWS); i++) {
+                vote(forest, t, rows[i], vote);
+            }
+        }
+
+        // Where every row ends in every tree, and the time each tree takes to get there.
+        int[][] leaves = new int[numTrees][];
+        double[] nanosPerRow = new double[numTrees];
+        boolean[] voted = new boolean[numRows];
+        for (int t = 0; t < numTrees; t++) {
+            int[] treeLeaves = new int[numRows];
+            int scored = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < numRows; i++) {
+                if (inBag != null && inBag[t][instanceIndices[i]]) {
+                    treeLeaves[i] = NOT_VOTED;
+                    continue;
+                }
+                treeLeaves[i] = vote(forest, t, rows[i], vote);
+                voted[i] = true;
+                scored++;
+            }
+            nanosPerRow[t] = scored == 0 ? 0 : (System.nanoTime() - start) / (double) scored;
+            leaves[t] = treeLeaves;
+        }
+
+        // Out-of-bag, only the instances left out by some tree can be evaluated.
+        double totalWeight = 0;
+        for (int i = 0; i < numRows; i++) {
+            if (voted[i]) {
+                totalWeight += weights[i];
+            }
+        }
+        if (totalWeight <= 0) {
+            throw new IllegalArgumentException("There are no instances to evaluate the trees on.");
+        }
+
+        double[] sums = new double[numRows * numClasses];
+        for (int t = 0; t < numTrees; t++) {
+            add(forest, leaves[t], rows, sums, vote);
+        }
+        double fullAccuracy = correctWeight(sums, actual, weights, numClasses) / totalWeight;
+
+        Arrays.fill(sums, 0);
+        boolean[] selected = new boolean[numTrees];
+        int[] order = new int[numTrees];
+        List<Step> curve = new ArrayList<>();
+        double latency = 0;
+        double accuracy = 0;
+        int numSelected = 0;
+        while (numSelected < numTrees && (numSelected == 0 || accuracy < fullAccuracy - tolerance)) {
+            int best = -1;
+            double bestCorrect = -1;
+            for (int t = 0; t < numTrees; t++) {
+                if (selected[t]) {
+                    continue;
+                }
+                double correct = correctWeight(forest, sums, leaves[t], rows, actual, weights, vote);
+                if (correct > bestCorrect || (correct == bestCorrect && nanosPerRow[t] < nanosPerRow[best])) {
+                    best = t;
+                    bestCorrect = correct;
+                }
+            }
+            selected[best] = true;
+            order[numSelected++] = best;
+            add(forest, leaves[best], rows, sums, vote);
+            latency += nanosPerRow[best];
+            accuracy = bestCorrect / totalWeight;
+            curve.add(new Step(numSelected, accuracy, latency));
+        }
+
+        double fullLatency = 0;
+        for (double nanos : nanosPerRow) {
+            fullLatency += nanos;
+        }
+        return new Result(Arrays.copyOf(order, numSelected), fullAccuracy, fullLatency, curve);
+    }
+
+    /**
+     * Creates a copy of an ensemble that only holds the given trees.
+     *
+     * @param ensemble The trained ensemble, left unchanged.
+     * @param trees    The indices of the trees to keep, e.g. {@link Result#getSelectedTrees()}.
+     * @param <T>      The type of the ensemble.
+     * @return The compressed copy.
+     * @throws WekaClassifierException If it fails to copy the ensemble.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends IteratedSingleClassifierEnhancer> T compress(T ensemble, int[] trees)
+            throws WekaClassifierException {
+        T copy;
+        try {
+            copy = (T) AbstractClassifier.makeCopy(ensemble);
+        } catch (Exception e) {
+            throw new WekaClassifierException(e);
+        }
+        Classifier[] classifiers = RandomForestUtils.getBaggingClassifiers(copy);
+        Classifier[] kept = new Classifier[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            kept[i] = classifiers[trees[i]];
+        }
+        RandomForestUtils.setBaggingClassifiers(copy, kept);
+        return copy;
+    }
+
+    /**
+     * Picks the instances with a class to evaluate the trees on: all of them, or a sample of {@code maxRows} of
+     * them in their original order.
+     */
+    private static int[] sample(Instances data, int maxRows) {
+        int[] indices = new int[data.numInstances()];
+        int numRows = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            if (!data.instance(i).classIsMissing()) {
+                indices[numRows++] = i;
+            }
+        }
+        if (numRows > maxRows) {
+            Random random = new Random(SAMPLE_SEED);
+            for (int i = 0; i < maxRows; i++) {
+                int j = i + random.nextInt(numRows - i);
+                int swapped = indices[i];
+                indices[i] = indices[j];
+                indices[j] = swapped;
+            }
+            numRows = maxRows;
+            Arrays.sort(indices, 0, numRows);
+        }
+        return Arrays.copyOf(indices, numRows);
+    }
+
+    /**
+     * Computes one tree's vote for a row into {@code vote}.
+     *
+     * @return The leaf the row reached or, when a missing value sent it down several successors, the encoded node
+     * where its descent stopped, see {@link #voteOf(CompiledForest, int, double[], double[])}.
+     */
+    private static int vote(CompiledForest forest, int tree, double[] row, double[] vote) {
+        Arrays.fill(vote, 0);
+        int node = forest.descend(forest.root(tree), row);
+        if (forest.isLeaf(node)) {
+            forest.addLeaf(node, vote, 1);
+            return node;
+        }
+        forest.addDistribution(node, row, vote, 1);
+        return -node - 2;
+    }
+
+    /**
+     * Computes the vote a tree cast for a row from what {@link #vote(CompiledForest, int, double[], double[])}
+     * returned, reading the leaf's distribution or walking again the few rows with missing values.
+     *
+     * @return {@code false} if the tree did not vote for the row.
+     */
+    private static boolean voteOf(CompiledForest forest, int leaf, double[] row, double[] vote) {
+        if (leaf == NOT_VOTED) {
+            return false;
+        }
+        Arrays.fill(vote, 0);
+        if (leaf >= 0) {
+            forest.addLeaf(leaf, vote, 1);
+        } else {
+            forest.addDistribution(-leaf - 2, row, vote, 1);
+        }
+        return true;
+    }
+
+    private static void add(CompiledForest forest, int[] treeLeaves, double[][] rows, double[] sums, double[] vote) {
+        int numClasses = vote.length;
+        for (int i = 0; i < treeLeaves.length; i++) {
+            if (voteOf(forest, treeLeaves[i], rows[i], vote)) {
+                for (int c = 0; c < numClasses; c++) {
+                    sums[i * numClasses + c] += vote[c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the weight of the instances correctly classified by the given votes.
+     */
+    private static double correctWeight(double[] sums, int[] actual, double[] weights, int numClasses) {
+        double correct = 0;
+        for (int i = 0; i < actual.length; i++) {
+            if (predicted(sums, i * numClasses, numClasses, null) == actual[i]) {
+                correct += weights[i];
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * Computes the weight of the instances correctly classified by the given votes plus one tree's.
+     */
+    private static double correctWeight(CompiledForest forest, double[] sums, int[] treeLeaves, double[][] rows,
+                                        int[] actual, double[] weights, double[] vote) {
+        double correct = 0;
+        for (int i = 0; i < actual.length; i++) {
+            boolean voted = voteOf(forest, treeLeaves[i], rows[i], vote);
+            if (predicted(sums, i * vote.length, vote.length, voted ? vote : null) == actual[i]) {
+                correct += weights[i];
+            }
+        }
+        return correct;
+    }
+
+    /**
+     * Finds the class with the most votes for one instance, adding the optional extra vote.
+     */
+    private static int predicted(double[] sums, int offset, int numClasses, double[] extra) {
+        int predicted = -1;
+        double max = 0;
+        for (int c = 0; c < numClasses; c++) {
+            double vote = extra == null ? sums[offset + c] : sums[offset + c] + extra[c];
+            if (vote > max) {
+                max = vote;
+                predicted = c;
+            }
+        }
+        return predicted;
+    }
+
+    /**
+     * One point of the latency/accuracy curve.
+     */
+    public static final class Step {
+
+        private final int numTrees;
+        private final double accuracy;
+        private final double nanosPerRow;
+
+        Step(int numTrees, double accuracy, double nanosPerRow) {
+            this.numTrees = numTrees;
+            this.accuracy = accuracy;
+            this.nanosPerRow = nanosPerRow;
+        }
+
+        public int getNumTrees() {
+            return numTrees;
+        }
+
+        public double getAccuracy() {
+            return accuracy;
+        }
+
+        /**
+         * Retrieves the measured time the selected trees take to score a row.
+         *
+         * @return The latency per row, in nanoseconds.
+         */
+        public double getNanosPerRow() {
+            return nanosPerRow;
+        }
+    }
+
+    /**
+     * The outcome of a tree selection.
+     */
+    public static final class Result {
+
+        private final int[] selectedTrees;
+        private final double fullAccuracy;
+        private final double fullNanosPerRow;
+        private final List<Step> curve;
+
+        Result(int[] selectedTrees, double fullAccuracy, double fullNanosPerRow, List<Step> curve) {
+            this.selectedTrees = selectedTrees;
+            this.fullAccuracy = fullAccuracy;
+            this.fullNanosPerRow = fullNanosPerRow;
+            this.curve = Collections.unmodifiableList(curve);
+        }
+
+        /**
+         * Retrieves the indices of the selected trees, in the order they were selected.
+         *
+         * @return The indices of the selected trees.
+         */
+        public int[] getSelectedTrees() {
+            return selectedTrees.clone();
+        }
+
+        public double getFullAccuracy() {
+            return fullAccuracy;
+        }
+
+        public double getFullNanosPerRow() {
+            return fullNanosPerRow;
+        }
+
+        /**
+         * Retrieves the accuracy and latency after each selection step.
+         *
+         * @return One step per selected tree.
+         */
+        public List<Step> getCurve() {
+            return curve;
+        }
+
+        /**
+         * Prints the latency/accuracy curve, one step per line.
+         *
+         * @param out Where to print the curve.
+         */
+        public void report(PrintStream out) {
+            out.println("trees,accuracy,nanosPerRow");
+            for (Step step : curve) {
+                out.println(step.getNumTrees() + "," + String.format("%.5f", step.getAccuracy()) + ","
+                        + String.format("%.0f", step.getNanosPerRow()));
+            }
+            Step last = curve.get(curve.size() - 1);
+            out.println("Kept " + selectedTrees.length + " trees: accuracy " + String.format("%.5f", last.getAccuracy())
+                    + " (all trees " + String.format("%.5f", fullAccuracy) + "), "
+                    + String.format("%.0f", last.getNanosPerRow()) + " ns/row (all trees "
+                    + String.format("%.0f", fullNanosPerRow) + ").");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.paudan.weka.scoring;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Scores rows against a compiled tree ensemble.
+ * <p/>
+ * Rows use the same encoding as {@link weka.core.Instance#toDoubleArray()}: one slot per attribute of the
+ * header, nominal values as value indices and missing values as {@link weka.core.Utils#missingValue()}.
+ * The value in the class slot is ignored. Implementations are thread safe.
+ */
+public interface ForestScorer {
+
+    /**
+     * Retrieves the header the scorer was compiled against.
+     *
+     * @return The header {@link weka.core.Instances}, without any data.
+     */
+    Instances getHeader();
+
+    /**
+     * Retrieves the number of classes of the predicted attribute.
+     *
+     * @return The number of classes.
+     */
+    int numClasses();
+
+    /**
+     * Computes the class distribution for the given row.
+     *
+     * @param row The encoded row.
+     * @return The class distribution, as {@link weka.classifiers.trees.RandomForest} would compute it.
+     */
+    double[] distributionForRow(double[] row);
+
+    /**
+     * Computes the class distribution for a sparse row, without expanding it where the scorer supports it.
+     *
+     * @param indices The indices of the attributes with a non-zero value.
+     * @param values  The encoded values of these attributes; all other attributes are {@code 0}.
+     * @return The class distribution.
+     */
+    double[] distributionForSparseRow(int[] indices, double[] values);
+
+    /**
+     * Computes the class distribution for the given {@link weka.core.Instance}; a
+     * {@link weka.core.SparseInstance} is scored as a sparse row.
+     *
+     * @param instance The instance to score.
+     * @return The class distribution.
+     */
+    double[] distributionForInstance(Instance instance);
+
+    /**
+     * Computes the class distributions for a batch of rows.
+     *
+     * @param rows The encoded rows.
+     * @return One class distribution per row.
+     */
+    double[][] distributionsForRows(double[][] rows);
+
+    /**
+     * Retrieves the index of the predicted class for the given row.
+     *
+     * @param row The encoded row.
+     * @return The index of the predicted class, or {@code -1} if no tree could classify the row.
+     */
+    int classifyRow(double[] row);
+}
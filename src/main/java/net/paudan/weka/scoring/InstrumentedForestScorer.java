@@ -0,0 +1,498 @@
+package net.paudan.weka.scoring;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import weka.core.Instances;
+
+/**
+ * A {@link ForestScorer} over a {@link CompiledForest} that records where scoring time goes: a latency histogram
+ * per tree, the number of visits of every node and the number of split evaluations of every attribute.
+ * <p/>
+ * Every scoring thread counts into its own plain {@code int} arrays, one counter per node and per attribute, so a
+ * visit costs a single non-atomic increment and threads never share a cache line. A node is visited at most once
+ * per row, so a counter cannot overflow before a thread has scored {@code 2^31} rows. The arrays of live threads
+ * are added up when the statistics are read; those of threads that have ended are then merged into shared totals
+ * and dropped, so the memory taken is proportional to the number of live scoring threads. Timing a tree costs two
+ * {@link System#nanoTime()} calls, which is comparable to a shallow traversal, so trees are only timed on one row
+ * out of {@code latencySampleInterval} per thread. When instrumentation is disabled, rows are scored exactly as by
+ * {@link CompiledForestScorer}, after a single volatile read.
+ * <p/>
+ * Statistics are read through {@link #snapshot()} or, once {@link #register(String) registered}, through JMX.
+ * Counters read while rows are being scored are approximate.
+ */
+public class InstrumentedForestScorer extends AbstractForestScorer implements InstrumentedForestScorerMBean {
+
+    private final CompiledForest forest;
+    private final int latencySampleInterval;
+    private final int[] treeOf;
+    private final LatencyHistogram[] treeLatency;
+    private final ThreadLocal<Counters> counters;
+    private volatile boolean enabled = true;
+
+    /**
+     * Incremented by {@link #reset()}; counters of an older generation are cleared by their thread before use and
+     * ignored when read.
+     */
+    private volatile int generation;
+
+    // Guarded by this.
+    private final List<Counters> liveCounters = new ArrayList<>();
+    private long totalRows;
+    private final long[] totalNodeVisits;
+    private final long[] totalAttributeEvaluations;
+
+    /**
+     * Creates a new instrumented scorer that times one row out of 64.
+     *
+     * @param forest The forest to score with.
+     */
+    public InstrumentedForestScorer(CompiledForest forest) {
+        this(forest, 64);
+    }
+
+    /**
+     * Creates a new instrumented scorer.
+     *
+     * @param forest                The forest to score with.
+     * @param latencySampleInterval Trees are timed on one row out of this many, per thread; {@code 1} times every
+     *                              row.
+     */
+    public InstrumentedForestScorer(CompiledForest forest, int latencySampleInterval) {
+        if (latencySampleInterval < 1) {
+            throw new IllegalArgumentException("The latency sample interval must be positive.");
+        }
+        this.forest = forest;
+        this.latencySampleInterval = latencySampleInterval;
+        this.totalNodeVisits = new long[forest.numNodes()];
+        this.totalAttributeEvaluations = new long[forest.getHeader().numAttributes()];
+        this.counters = new ThreadLocal<Counters>() {
+            @Override
+            protected Counters initialValue() {
+                return register();
+            }
+        };
+        this.treeOf = treeOf(forest);
+        this.treeLatency = new LatencyHistogram[forest.numTrees()];
+        for (int i = 0; i < treeLatency.length; i++) {
+            treeLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    public CompiledForest getForest() {
+        return forest;
+    }
+
+    @Override
+    public Instances getHeader() {
+        return forest.getHeader();
+    }
+
+    @Override
+    public double[] distributionForRow(double[] row) {
+        double[] sums = new double[forest.numClasses()];
+        if (!enabled) {
+            for (int tree = 0; tree < forest.numTrees(); tree++) {
+                forest.addDistribution(forest.root(tree), row, sums, 1);
+            }
+            return normalizeVotes(sums);
+        }
+
+        Counters c = counters.get();
+        int currentGeneration = generation;
+        if (c.generation != currentGeneration) {
+            c.clear(currentGeneration);
+        }
+        c.rows++;
+        CompiledForest.WalkStack stack = new CompiledForest.WalkStack();
+        if (--c.untilSample > 0) {
+            for (int tree = 0; tree < forest.numTrees(); tree++) {
+                addDistribution(forest.root(tree), row, sums, stack, c);
+            }
+        } else {
+            c.untilSample = latencySampleInterval;
+            for (int tree = 0; tree < forest.numTrees(); tree++) {
+                long start = System.nanoTime();
+                addDistribution(forest.root(tree), row, sums, stack, c);
+                treeLatency[tree].record(System.nanoTime() - start);
+            }
+        }
+        return normalizeVotes(sums);
+    }
+
+    /**
+     * Same as {@link CompiledForest#addDistribution(int, double[], double[], double)}, counting node visits and
+     * split evaluations.
+     */
+    private void addDistribution(int node, double[] row, double[] sums, CompiledForest.WalkStack stack, Counters c) {
+        double weight = 1;
+        while (true) {
+            int att;
+            while ((att = forest.attribute[node]) != CompiledForest.LEAF) {
+                c.nodeVisits[node]++;
+                c.attributeEvaluations[att]++;
+                double value = row[att];
+                if (Double.isNaN(value)) {
+                    break;
+                }
+                if (forest.nominal[att]) {
+                    node = forest.firstChild[node] + (int) value;
+                } else {
+                    node = forest.firstChild[node] + (value < forest.splitPoint[node] ? 0 : 1);
+                }
+            }
+
+            if (att == CompiledForest.LEAF) {
+                c.nodeVisits[node]++;
+                forest.addLeaf(node, sums, weight);
+            } else {
+                stack.pushSuccessors(forest.firstChild[node], forest.numChildren[node], forest.proportion, weight);
+            }
+            if (stack.isEmpty()) {
+                return;
+            }
+            weight = stack.weight();
+            node = stack.pop();
+        }
+    }
+
+    private synchronized Counters register() {
+        mergeEndedThreads();
+        Counters c = new Counters(Thread.currentThread(), forest.numNodes(), forest.getHeader().numAttributes(),
+                generation, latencySampleInterval);
+        liveCounters.add(c);
+        return c;
+    }
+
+    /**
+     * Adds the counters of the threads that have ended to the totals, and drops them. Once a thread is seen to
+     * have ended, all its increments are visible.
+     */
+    private synchronized void mergeEndedThreads() {
+        for (Iterator<Counters> it = liveCounters.iterator(); it.hasNext(); ) {
+            Counters c = it.next();
+            if (!c.owner.isAlive()) {
+                if (c.generation == generation) {
+                    totalRows += c.rows;
+                    addTo(totalNodeVisits, c.nodeVisits);
+                    addTo(totalAttributeEvaluations, c.attributeEvaluations);
+                }
+                it.remove();
+            }
+        }
+    }
+
+    private static void addTo(long[] totals, int[] counts) {
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] += counts[i];
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public synchronized long getRowsScored() {
+        mergeEndedThreads();
+        long rows = totalRows;
+        for (Counters c : liveCounters) {
+            if (c.generation == generation) {
+                rows += c.rows;
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public int getNumTrees() {
+        return forest.numTrees();
+    }
+
+    @Override
+    public double[] getTreeMeanLatencyNanos() {
+        double[] means = new double[treeLatency.length];
+        for (int i = 0; i < means.length; i++) {
+            means[i] = treeLatency[i].getMeanNanos();
+        }
+        return means;
+    }
+
+    @Override
+    public long[] getTreeP99LatencyNanos() {
+        long[] percentiles = new long[treeLatency.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            percentiles[i] = treeLatency[i].getPercentileNanos(99);
+        }
+        return percentiles;
+    }
+
+    @Override
+    public long[] getTreeNodeVisits() {
+        return snapshot().getTreeNodeVisits();
+    }
+
+    @Override
+    public String[] getAttributeEvaluations() {
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : snapshot().getAttributeEvaluations().entrySet()) {
+            entries.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return entries.toArray(new String[entries.size()]);
+    }
+
+    /**
+     * Retrieves the latency histogram of a tree.
+     *
+     * @param tree The index of the tree.
+     * @return The live histogram of the tree's sampled latencies.
+     */
+    public LatencyHistogram getTreeLatency(int tree) {
+        return treeLatency[tree];
+    }
+
+    @Override
+    public synchronized void reset() {
+        // Threads clear their own counters on their next row.
+        generation++;
+        totalRows = 0;
+        Arrays.fill(totalNodeVisits, 0);
+        Arrays.fill(totalAttributeEvaluations, 0);
+        for (LatencyHistogram histogram : treeLatency) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Sums the counters of all threads.
+     *
+     * @return The current statistics.
+     */
+    public Snapshot snapshot() {
+        long rows;
+        long[] nodeVisits;
+        long[] attributeEvaluations;
+        synchronized (this) {
+            mergeEndedThreads();
+            rows = totalRows;
+            nodeVisits = totalNodeVisits.clone();
+            attributeEvaluations = totalAttributeEvaluations.clone();
+            for (Counters c : liveCounters) {
+                if (c.generation == generation) {
+                    rows += c.rows;
+                    addTo(nodeVisits, c.nodeVisits);
+                    addTo(attributeEvaluations, c.attributeEvaluations);
+                }
+            }
+        }
+
+        long[] treeNodeVisits = new long[forest.numTrees()];
+        for (int node = 0; node < nodeVisits.length; node++) {
+            treeNodeVisits[treeOf[node]] += nodeVisits[node];
+        }
+
+        final long[] evaluations = attributeEvaluations;
+        Integer[] order = new Integer[evaluations.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(evaluations[b], evaluations[a]);
+            }
+        });
+        Map<String, Long> byName = new LinkedHashMap<>();
+        for (int att : order) {
+            if (evaluations[att] > 0) {
+                byName.put(forest.getHeader().attribute(att).name(), evaluations[att]);
+            }
+        }
+
+        return new Snapshot(rows, nodeVisits, treeNodeVisits, getTreeMeanLatencyNanos(), getTreeP99LatencyNanos(),
+                Collections.unmodifiableMap(byName));
+    }
+
+    /**
+     * Registers this scorer with the platform MBean server, as
+     * {@code net.paudan.weka.scoring:type=InstrumentedForestScorer,name=<name>}.
+     *
+     * @param name The name of the scorer.
+     * @return The name it was registered under.
+     * @throws JMException If it fails to register the scorer.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("net.paudan.weka.scoring:type=InstrumentedForestScorer,name="
+                + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Maps every node to the tree it belongs to.
+     */
+    private static int[] treeOf(CompiledForest forest) {
+        int[] treeOf = new int[forest.numNodes()];
+        int[] stack = new int[64];
+        for (int tree = 0; tree < forest.numTrees(); tree++) {
+            int size = 0;
+            stack[size++] = forest.root(tree);
+            while (size > 0) {
+                int node = stack[--size];
+                treeOf[node] = tree;
+                if (forest.attribute[node] == CompiledForest.LEAF) {
+                    continue;
+                }
+                int count = forest.numChildren[node];
+                if (size + count > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + count));
+                }
+                for (int i = 0; i < count; i++) {
+                    stack[size++] = forest.firstChild[node] + i;
+                }
+            }
+        }
+        return treeOf;
+    }
+
+    /**
+     * The counters of a scoring thread, and when it next times a row. Only that thread writes them; other threads
+     * read them without synchronization, which gives approximate values while the thread scores.
+     */
+    private static final class Counters {
+
+        final Thread owner;
+        final int[] nodeVisits;
+        final int[] attributeEvaluations;
+        volatile int generation;
+        long rows;
+        int untilSample;
+
+        Counters(Thread owner, int numNodes, int numAttributes, int generation, int latencySampleInterval) {
+            this.owner = owner;
+            this.nodeVisits = new int[numNodes];
+            this.attributeEvaluations = new int[numAttributes];
+            this.generation = generation;
+            this.untilSample = latencySampleInterval;
+        }
+
+        void clear(int newGeneration) {
+            rows = 0;
+            Arrays.fill(nodeVisits, 0);
+            Arrays.fill(attributeEvaluations, 0);
+            generation = newGeneration;
+        }
+    }
+
+    /**
+     * The statistics of an {@link InstrumentedForestScorer} at a point in time.
+     */
+    public static final class Snapshot {
+
+        private final long rowsScored;
+        private final long[] nodeVisits;
+        private final long[] treeNodeVisits;
+        private final double[] treeMeanLatencyNanos;
+        private final long[] treeP99LatencyNanos;
+        private final Map<String, Long> attributeEvaluations;
+
+        Snapshot(long rowsScored, long[] nodeVisits, long[] treeNodeVisits, double[] treeMeanLatencyNanos,
+                 long[] treeP99LatencyNanos, Map<String, Long> attributeEvaluations) {
+            this.rowsScored = rowsScored;
+            this.nodeVisits = nodeVisits;
+            this.treeNodeVisits = treeNodeVisits;
+            this.treeMeanLatencyNanos = treeMeanLatencyNanos;
+            this.treeP99LatencyNanos = treeP99LatencyNanos;
+            this.attributeEvaluations = attributeEvaluations;
+        }
+
+        public long getRowsScored() {
+            return rowsScored;
+        }
+
+        /**
+         * Retrieves the number of visits of every node.
+         *
+         * @return The number of visits, indexed by node of the {@link CompiledForest}.
+         */
+        public long[] getNodeVisits() {
+            return nodeVisits.clone();
+        }
+
+        public long[] getTreeNodeVisits() {
+            return treeNodeVisits.clone();
+        }
+
+        public double[] getTreeMeanLatencyNanos() {
+            return treeMeanLatencyNanos.clone();
+        }
+
+        public long[] getTreeP99LatencyNanos() {
+            return treeP99LatencyNanos.clone();
+        }
+
+        /**
+         * Retrieves the number of split evaluations of each attribute.
+         *
+         * @return The number of evaluations by attribute name, most evaluated first, without the attributes that
+         * were never evaluated.
+         */
+        public Map<String, Long> getAttributeEvaluations() {
+            return attributeEvaluations;
+        }
+
+        /**
+         * Prints the costliest trees and the most evaluated attributes.
+         *
+         * @param out The stream to print to.
+         * @param top The number of trees and of attributes to print.
+         */
+        public void report(PrintStream out, int top) {
+            out.println("Rows scored: " + rowsScored);
+
+            final double[] means = treeMeanLatencyNanos;
+            Integer[] trees = new Integer[means.length];
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = i;
+            }
+            Arrays.sort(trees, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(means[b], means[a]);
+                }
+            });
+            out.println("tree,meanNanos,p99Nanos,nodeVisitsPerRow");
+            for (int i = 0; i < Math.min(top, trees.length); i++) {
+                int tree = trees[i];
+                out.println(tree + "," + String.format("%.0f", means[tree]) + "," + treeP99LatencyNanos[tree] + ","
+                        + String.format("%.2f", rowsScored == 0 ? 0 : (double) treeNodeVisits[tree] / rowsScored));
+            }
+
+            out.println("attribute,evaluations");
+            int printed = 0;
+            for (Map.Entry<String, Long> entry : attributeEvaluations.entrySet()) {
+                if (printed++ == top) {
+                    break;
+                }
+                out.println(entry.getKey() + "," + entry.getValue());
+            }
+        }
+    }
+}
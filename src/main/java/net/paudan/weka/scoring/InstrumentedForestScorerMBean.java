@@ -0,0 +1,53 @@
+package net.paudan.weka.scoring;
+
+/**
+ * The JMX management interface of an {@link InstrumentedForestScorer}.
+ */
+public interface InstrumentedForestScorerMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Retrieves the number of rows scored while instrumentation was enabled.
+     *
+     * @return The number of rows.
+     */
+    long getRowsScored();
+
+    int getNumTrees();
+
+    /**
+     * Retrieves the mean latency of each tree over the sampled rows.
+     *
+     * @return The mean latency in nanoseconds, indexed by tree.
+     */
+    double[] getTreeMeanLatencyNanos();
+
+    /**
+     * Retrieves the approximate 99th percentile latency of each tree over the sampled rows.
+     *
+     * @return The latency in nanoseconds, indexed by tree.
+     */
+    long[] getTreeP99LatencyNanos();
+
+    /**
+     * Retrieves the number of nodes visited in each tree.
+     *
+     * @return The number of visits, indexed by tree.
+     */
+    long[] getTreeNodeVisits();
+
+    /**
+     * Retrieves the number of split evaluations of each attribute, most evaluated first.
+     *
+     * @return One {@code name=count} entry per attribute that was evaluated.
+     */
+    String[] getAttributeEvaluations();
+
+    /**
+     * Clears all counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,108 @@
+package net.paudan.weka.scoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with four logarithmic buckets per power of two.
+ * <p/>
+ * Recording only takes a few atomic increments; percentiles are approximated by the upper bound of the bucket they
+ * fall in, which is at most 25% above the exact value.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLongArray totals = new AtomicLongArray(2);
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketOf(Math.max(1, nanos)));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, nanos);
+    }
+
+    static int bucketOf(long nanos) {
+        int power = 63 - Long.numberOfLeadingZeros(nanos);
+        int fraction = power < 2 ? 0 : (int) ((nanos >>> (power - 2)) & (SUB_BUCKETS - 1));
+        return power * SUB_BUCKETS + fraction;
+    }
+
+    static long upperBoundOf(int bucket) {
+        int power = bucket / SUB_BUCKETS;
+        int fraction = bucket % SUB_BUCKETS;
+        if (power < 2) {
+            return (2L << power) - 1;
+        }
+        return ((long) (SUB_BUCKETS + fraction + 1) << (power - 2)) - 1;
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    /**
+     * Retrieves the mean of the recorded latencies.
+     *
+     * @return The mean latency in nanoseconds, or {@code 0} if nothing was recorded.
+     */
+    public double getMeanNanos() {
+        long count = totals.get(0);
+        return count == 0 ? 0 : (double) totals.get(1) / count;
+    }
+
+    /**
+     * Retrieves an approximate percentile of the recorded latencies.
+     *
+     * @param percentile The percentile, between {@code 0} and {@code 100}.
+     * @return The approximate latency in nanoseconds, or {@code 0} if nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(NUM_BUCKETS - 1);
+    }
+
+    /**
+     * Clears all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totals.set(0, 0);
+        totals.set(1, 0);
+    }
+
+    /**
+     * Summarizes the histogram in milliseconds.
+     *
+     * @return A line with the count, mean and main percentiles.
+     */
+    public String summary() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p999=%.3fms",
+                getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6,
+                getPercentileNanos(99) / 1e6, getPercentileNanos(99.9) / 1e6);
+    }
+}
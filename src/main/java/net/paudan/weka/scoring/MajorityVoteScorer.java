@@ -0,0 +1,202 @@
+package net.paudan.weka.scoring;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import weka.core.Instances;
+
+/**
+ * A {@link ForestScorer} that combines the trees by majority vote, as the exported PMML
+ * {@link org.dmg.pmml.MultipleModelMethodType#MAJORITY_VOTE MiningModel} does.
+ * <p/>
+ * Each tree votes for the most likely class of its distribution. In early-exit mode, {@link #classifyRow(double[])}
+ * stops as soon as the margin between the leading class and the runner-up exceeds the number of trees not yet
+ * evaluated, since no outcome of the remaining trees can change the winner. The trees can also be evaluated in
+ * decreasing order of decisiveness, the expected confidence of their leaves under the training proportions,
+ * which makes such margins appear sooner. Neither option changes any prediction.
+ */
+public class MajorityVoteScorer extends AbstractForestScorer {
+
+    private final CompiledForest forest;
+    private final int[] treeOrder;
+    private final boolean earlyExit;
+
+    /**
+     * Creates a new scorer that evaluates every tree, in the forest's order.
+     *
+     * @param forest The compiled forest.
+     */
+    public MajorityVoteScorer(CompiledForest forest) {
+        this(forest, false, false);
+    }
+
+    /**
+     * Creates a new scorer.
+     *
+     * @param forest         The compiled forest.
+     * @param earlyExit      Whether {@link #classifyRow(double[])} may stop once the winner is certain.
+     * @param decisiveFirst  Whether to evaluate the most decisive trees first.
+     */
+    public MajorityVoteScorer(CompiledForest forest, boolean earlyExit, boolean decisiveFirst) {
+        this.forest = forest;
+        this.earlyExit = earlyExit;
+        this.treeOrder = decisiveFirst ? orderByDecisiveness(forest) : identity(forest.numTrees());
+    }
+
+    private static int[] identity(int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    private static int[] orderByDecisiveness(CompiledForest forest) {
+        final double[] decisiveness = new double[forest.numTrees()];
+        Integer[] order = new Integer[forest.numTrees()];
+        for (int tree = 0; tree < order.length; tree++) {
+            decisiveness[tree] = decisiveness(forest, tree);
+            order[tree] = tree;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(decisiveness[b], decisiveness[a]);
+            }
+        });
+
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Computes the expected probability of the predicted class of a tree, weighting each leaf by the training
+     * proportion of the path that leads to it.
+     */
+    static double decisiveness(CompiledForest forest, int tree) {
+        int[] nodes = new int[64];
+        double[] reach = new double[64];
+        int size = 0;
+        nodes[size] = forest.root(tree);
+        reach[size++] = 1;
+
+        double expected = 0;
+        while (size > 0) {
+            int node = nodes[--size];
+            double weight = reach[size];
+            if (forest.isLeaf(node)) {
+                double[] distribution = forest.leafDistribution(node);
+                double max = 0;
+                for (double value : distribution) {
+                    max = Math.max(max, value);
+                }
+                expected += weight * max;
+                continue;
+            }
+            int first = forest.firstChild(node);
+            for (int i = 0; i < forest.numChildren(node); i++) {
+                if (size == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, size * 2);
+                    reach = Arrays.copyOf(reach, size * 2);
+                }
+                nodes[size] = first + i;
+                reach[size++] = weight * forest.proportion(first + i);
+            }
+        }
+        return expected;
+    }
+
+    @Override
+    public Instances getHeader() {
+        return forest.getHeader();
+    }
+
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+
+    /**
+     * Retrieves the order in which trees are evaluated.
+     *
+     * @return The tree indices, in evaluation order.
+     */
+    public int[] getTreeOrder() {
+        return treeOrder.clone();
+    }
+
+    /**
+     * Computes the vote fractions of all trees. This always evaluates every tree.
+     *
+     * @param row The encoded row.
+     * @return The fraction of the voting trees that voted for each class.
+     */
+    @Override
+    public double[] distributionForRow(double[] row) {
+        int[] votes = new int[forest.numClasses()];
+        vote(row, votes, false);
+
+        double[] distribution = new double[votes.length];
+        for (int i = 0; i < votes.length; i++) {
+            distribution[i] = votes[i];
+        }
+        return normalizeVotes(distribution);
+    }
+
+    @Override
+    public int classifyRow(double[] row) {
+        return classifyRow(row, new int[forest.numClasses()]);
+    }
+
+    /**
+     * Retrieves the majority vote for the given row.
+     *
+     * @param row   The encoded row.
+     * @param votes The array where to count the votes per class, which must be zero-filled. After the call,
+     *              its sum is the number of trees that were evaluated and did vote.
+     * @return The index of the winning class, or {@code -1} if no tree voted.
+     */
+    public int classifyRow(double[] row, int[] votes) {
+        vote(row, votes, earlyExit);
+        int winner = 0;
+        for (int i = 1; i < votes.length; i++) {
+            if (votes[i] > votes[winner]) {
+                winner = i;
+            }
+        }
+        return votes[winner] > 0 ? winner : -1;
+    }
+
+    private void vote(double[] row, int[] votes, boolean stopWhenDecided) {
+        double[] distribution = new double[votes.length];
+        int numTrees = treeOrder.length;
+        for (int i = 0; i < numTrees; i++) {
+            Arrays.fill(distribution, 0);
+            forest.addDistribution(forest.root(treeOrder[i]), row, distribution, 1);
+            int vote = classFromDistribution(distribution);
+            if (vote < 0) {
+                continue;
+            }
+            votes[vote]++;
+
+            if (stopWhenDecided && leadingMargin(votes) > numTrees - i - 1) {
+                return;
+            }
+        }
+    }
+
+    private static int leadingMargin(int[] votes) {
+        int first = 0;
+        int second = 0;
+        for (int count : votes) {
+            if (count > first) {
+                second = first;
+                first = count;
+            } else if (count > second) {
+                second = count;
+            }
+        }
+        return first - second;
+    }
+}
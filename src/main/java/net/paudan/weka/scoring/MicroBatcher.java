@@ -0,0 +1,222 @@
+package net.paudan.weka.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent single-row scoring requests into batches.
+ * <p/>
+ * Callers block in {@link #score(double[])} while dispatcher threads collect the queued rows: a dispatcher takes
+ * the first waiting row, keeps collecting until it holds {@code maxBatchSize} rows or {@code maxWaitMicros} have
+ * passed, and scores them with a single {@link ForestScorer#distributionsForRows(double[][])} call.
+ */
+public class MicroBatcher {
+
+    private final ForestScorer scorer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final BlockingQueue<Request> queue;
+    private final List<Thread> dispatchers = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a new micro-batcher.
+     *
+     * @param scorer         The scorer to feed the batches to.
+     * @param maxBatchSize   The maximum number of rows per batch.
+     * @param maxWaitMicros  How long a dispatcher waits for a batch to fill up, in microseconds.
+     * @param queueCapacity  The maximum number of queued rows; further requests are rejected.
+     * @param numDispatchers The number of dispatcher threads.
+     */
+    public MicroBatcher(ForestScorer scorer, int maxBatchSize, long maxWaitMicros, int queueCapacity, int numDispatchers) {
+        this(scorer, maxBatchSize, maxWaitMicros, new ArrayBlockingQueue<Request>(queueCapacity), numDispatchers);
+    }
+
+    MicroBatcher(ForestScorer scorer, int maxBatchSize, long maxWaitMicros, BlockingQueue<Request> queue,
+                 int numDispatchers) {
+        this.scorer = scorer;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.queue = queue;
+
+        for (int i = 0; i < Math.max(1, numDispatchers); i++) {
+            Thread dispatcher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            }, "micro-batcher-" + i);
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            dispatchers.add(dispatcher);
+        }
+    }
+
+    /**
+     * Scores a row as part of the next batch.
+     *
+     * @param row The encoded row.
+     * @return The class distribution of the row.
+     * @throws InterruptedException       If interrupted while waiting for the batch to be scored.
+     * @throws RejectedExecutionException If the queue is full or the batcher was shut down.
+     */
+    public double[] score(double[] row) throws InterruptedException {
+        if (!running) {
+            throw new RejectedExecutionException("The micro-batcher was shut down.");
+        }
+        Request request = new Request(row);
+        if (!queue.offer(request)) {
+            throw new RejectedExecutionException("The scoring queue is full.");
+        }
+        // A shutdown may have started since the check above, and the dispatchers may be gone already: whoever
+        // removes the request from the queue answers it.
+        if (!running && queue.remove(request)) {
+            throw new RejectedExecutionException("The micro-batcher was shut down.");
+        }
+        request.done.await();
+        if (request.failure instanceof RejectedExecutionException) {
+            throw (RejectedExecutionException) request.failure;
+        }
+        if (request.failure != null) {
+            throw new IllegalStateException("Failed to score the row.", request.failure);
+        }
+        return request.distribution;
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                // Requests already taken from the queue must not be left waiting, whatever happened.
+                for (Request request : batch) {
+                    if (request.done.getCount() > 0) {
+                        request.failure = new RejectedExecutionException("The micro-batcher was interrupted.");
+                        request.done.countDown();
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<Request> batch) {
+        double[][] rowsToScore = new double[batch.size()][];
+        for (int i = 0; i < rowsToScore.length; i++) {
+            rowsToScore[i] = batch.get(i).row;
+        }
+
+        try {
+            double[][] distributions = scorer.distributionsForRows(rowsToScore);
+            for (int i = 0; i < distributions.length; i++) {
+                batch.get(i).distribution = distributions[i];
+            }
+        } catch (Throwable e) {
+            // Errors too: the dispatcher must survive and every caller of the batch must be released.
+            for (Request request : batch) {
+                request.failure = e;
+            }
+        } finally {
+            long now = System.nanoTime();
+            for (Request request : batch) {
+                latency.record(now - request.enqueued);
+                request.done.countDown();
+            }
+        }
+        batches.incrementAndGet();
+        rows.addAndGet(batch.size());
+    }
+
+    /**
+     * Stops accepting rows, scores the queued ones and waits for the dispatchers to finish. Rows queued by callers
+     * that raced with the shutdown after the dispatchers were gone are rejected.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.join();
+        }
+        List<Request> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Request request : left) {
+            request.failure = new RejectedExecutionException("The micro-batcher was shut down.");
+            request.done.countDown();
+        }
+    }
+
+    /**
+     * Retrieves the histogram of the time rows spent between being queued and being scored.
+     *
+     * @return The latency histogram.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    /**
+     * Retrieves the average number of rows per batch.
+     *
+     * @return The average batch size, or {@code 0} if nothing was scored.
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) rows.get() / count;
+    }
+
+    static final class Request {
+
+        final double[] row;
+        final long enqueued = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile double[] distribution;
+        volatile Throwable failure;
+
+        Request(double[] row) {
+            this.row = row;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package net.paudan.weka.scoring;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Map;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * Scores the same rows against several forests, such as a champion and its challengers, preparing each row once.
+ * <p/>
+ * All the forests must have been compiled against compatible headers, i.e. the same {@code m_Info} or PMML
+ * {@link org.dmg.pmml.DataDictionary PMML DataDictionary}: same attributes in the same order, same nominal values
+ * and same class. A record is then bound, or an {@link weka.core.Instance} converted, only once for all of them,
+ * and a batch is scored in a single pass, every forest scoring a row before moving on to the next one. The time
+ * each forest takes is measured separately. Instances are thread safe.
+ */
+public class MultiModelScorer {
+
+    private final String[] names;
+    private final ForestScorer[] scorers;
+    private final Instances header;
+    private final RecordBinder binder;
+
+    /**
+     * Creates a new scorer.
+     *
+     * @param names   The names of the models, used in reports.
+     * @param scorers The scorers of the models, all with compatible headers.
+     * @throws IllegalArgumentException If there are no scorers, or a header is not compatible with the first one.
+     */
+    public MultiModelScorer(List<String> names, List<? extends ForestScorer> scorers) {
+        if (scorers.isEmpty() || names.size() != scorers.size()) {
+            throw new IllegalArgumentException("Expected one name per scorer and at least one scorer, got "
+                    + names.size() + " names and " + scorers.size() + " scorers.");
+        }
+        this.names = names.toArray(new String[names.size()]);
+        this.scorers = scorers.toArray(new ForestScorer[scorers.size()]);
+        this.header = this.scorers[0].getHeader();
+        for (int m = 1; m < this.scorers.length; m++) {
+            String message = header.equalHeadersMsg(this.scorers[m].getHeader());
+            if (message != null) {
+                throw new IllegalArgumentException("Model '" + this.names[m] + "' is not compatible with '"
+                        + this.names[0] + "': " + message);
+            }
+        }
+        this.binder = new RecordBinder(header);
+    }
+
+    /**
+     * Retrieves the header shared by all the models.
+     *
+     * @return The header {@link weka.core.Instances}, without any data.
+     */
+    public Instances getHeader() {
+        return header;
+    }
+
+    public int numModels() {
+        return scorers.length;
+    }
+
+    public String getModelName(int model) {
+        return names[model];
+    }
+
+    public ForestScorer getScorer(int model) {
+        return scorers[model];
+    }
+
+    /**
+     * Computes the class distribution of every model for a single row.
+     *
+     * @param row The encoded row.
+     * @return One class distribution per model.
+     */
+    public double[][] distributionsForRow(double[] row) {
+        double[][] distributions = new double[scorers.length][];
+        for (int m = 0; m < scorers.length; m++) {
+            distributions[m] = scorers[m].distributionForRow(row);
+        }
+        return distributions;
+    }
+
+    /**
+     * Scores a batch of rows against every model.
+     *
+     * @param rows The encoded rows.
+     * @return The distributions and timings of every model.
+     */
+    public Result scoreRows(double[][] rows) {
+        double[][][] distributions = new double[scorers.length][rows.length][];
+        long[] nanos = new long[scorers.length];
+        for (int r = 0; r < rows.length; r++) {
+            for (int m = 0; m < scorers.length; m++) {
+                long start = System.nanoTime();
+                distributions[m][r] = scorers[m].distributionForRow(rows[r]);
+                nanos[m] += System.nanoTime() - start;
+            }
+        }
+        return new Result(names, distributions, nanos);
+    }
+
+    /**
+     * Binds records once, with the shared header, and scores them against every model.
+     *
+     * @param records The records, keyed by field name.
+     * @return The distributions and timings of every model.
+     */
+    public Result scoreRecords(List<? extends Map<String, ?>> records) {
+        return scoreRows(binder.bindAll(records));
+    }
+
+    /**
+     * Scores instances against every model. Each instance is converted once; a {@link weka.core.SparseInstance} is
+     * kept sparse for the models that score sparse rows as such, see {@link AbstractForestScorer#scoresSparseRows()},
+     * and expanded once into a dense row that all the other models share.
+     *
+     * @param data The instances, with the shared header.
+     * @return The distributions and timings of every model.
+     */
+    public Result scoreInstances(Instances data) {
+        int numRows = data.numInstances();
+        double[][][] distributions = new double[scorers.length][numRows][];
+        long[] nanos = new long[scorers.length];
+        boolean[] scoresSparseRows = new boolean[scorers.length];
+        for (int m = 0; m < scorers.length; m++) {
+            scoresSparseRows[m] = scorers[m] instanceof AbstractForestScorer
+                    && ((AbstractForestScorer) scorers[m]).scoresSparseRows();
+        }
+        for (int r = 0; r < numRows; r++) {
+            Instance instance = data.instance(r);
+            SparseRow sparseRow = instance instanceof SparseInstance ? SparseRow.of(instance) : null;
+            double[] row = sparseRow == null ? instance.toDoubleArray() : null;
+            for (int m = 0; m < scorers.length; m++) {
+                long start = System.nanoTime();
+                if (sparseRow != null && scoresSparseRows[m]) {
+                    distributions[m][r] = ((AbstractForestScorer) scorers[m]).distributionForSparseRow(sparseRow);
+                } else {
+                    if (row == null) {
+                        row = sparseRow.toDense(header.numAttributes());
+                    }
+                    distributions[m][r] = scorers[m].distributionForRow(row);
+                }
+                nanos[m] += System.nanoTime() - start;
+            }
+        }
+        return new Result(names, distributions, nanos);
+    }
+
+    /**
+     * The class distributions and timings of every model over a batch.
+     */
+    public static final class Result {
+
+        private final String[] names;
+        private final double[][][] distributions;
+        private final long[] nanos;
+
+        Result(String[] names, double[][][] distributions, long[] nanos) {
+            this.names = names;
+            this.distributions = distributions;
+            this.nanos = nanos;
+        }
+
+        public int numModels() {
+            return names.length;
+        }
+
+        public int numRows() {
+            return distributions[0].length;
+        }
+
+        public String getModelName(int model) {
+            return names[model];
+        }
+
+        /**
+         * Retrieves the class distributions of a model.
+         *
+         * @param model The index of the model.
+         * @return One class distribution per row.
+         */
+        public double[][] getDistributions(int model) {
+            return distributions[model];
+        }
+
+        /**
+         * Retrieves the predicted class of a model for a row.
+         *
+         * @param model The index of the model.
+         * @param row   The index of the row.
+         * @return The index of the predicted class, or {@code -1} if no tree could classify the row.
+         */
+        public int classify(int model, int row) {
+            return AbstractForestScorer.classFromDistribution(distributions[model][row]);
+        }
+
+        /**
+         * Retrieves the time a model took to score the batch.
+         *
+         * @param model The index of the model.
+         * @return The time, in nanoseconds.
+         */
+        public long getNanos(int model) {
+            return nanos[model];
+        }
+
+        public double getNanosPerRow(int model) {
+            return numRows() == 0 ? 0 : (double) nanos[model] / numRows();
+        }
+
+        /**
+         * Computes the share of rows on which two models predict the same class.
+         *
+         * @param model     The index of the model.
+         * @param reference The index of the reference model, typically the champion.
+         * @return The agreement, between {@code 0} and {@code 1}.
+         */
+        public double agreement(int model, int reference) {
+            if (numRows() == 0) {
+                return 1;
+            }
+            int agreeing = 0;
+            for (int r = 0; r < numRows(); r++) {
+                if (classify(model, r) == classify(reference, r)) {
+                    agreeing++;
+                }
+            }
+            return (double) agreeing / numRows();
+        }
+
+        /**
+         * Prints the latency of every model and its agreement with the first one, one model per line.
+         *
+         * @param out Where to print the report.
+         */
+        public void report(PrintStream out) {
+            out.println("model,millis,nanosPerRow,agreement");
+            for (int m = 0; m < names.length; m++) {
+                out.println(names[m] + "," + nanos[m] / 1000000 + "," + String.format("%.0f", getNanosPerRow(m)) + ","
+                        + String.format("%.5f", agreement(m, 0)));
+            }
+        }
+    }
+}
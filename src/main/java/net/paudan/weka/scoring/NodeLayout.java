@@ -0,0 +1,150 @@
+package net.paudan.weka.scoring;
+
+import java.util.Arrays;
+
+/**
+ * Lays out the nodes of a {@link CompiledForest} so that the likely path through each tree is contiguous in memory.
+ * <p/>
+ * The successors of a node must stay contiguous, so the layout works on successor blocks: every tree is written
+ * depth first, visiting the successors of a node from the most to the least likely. The successor block of the
+ * most likely successor then directly follows the block of its parent, so a row taking the hot path reads
+ * consecutive cache lines, while the cold subtrees are placed after it.
+ * <p/>
+ * Branch probabilities come either from the training proportions of the nodes, which hold the share of the
+ * training data that went down each branch, or from a sample of rows, see {@link #estimateProbabilities}. The
+ * layout never changes what a forest predicts.
+ */
+public final class NodeLayout {
+
+    private NodeLayout() {
+    }
+
+    /**
+     * Lays out a forest using its training proportions.
+     *
+     * @param forest The forest.
+     * @return A new forest with the same trees, laid out hot path first.
+     */
+    public static CompiledForest optimize(CompiledForest forest) {
+        return optimize(forest, forest.proportion);
+    }
+
+    /**
+     * Lays out a forest using the given branch probabilities.
+     *
+     * @param forest        The forest.
+     * @param probabilities The probability of reaching each node from its parent, indexed by node.
+     * @return A new forest with the same trees, laid out hot path first.
+     */
+    public static CompiledForest optimize(CompiledForest forest, double[] probabilities) {
+        if (probabilities.length != forest.numNodes()) {
+            throw new IllegalArgumentException("Expected " + forest.numNodes() + " probabilities, got " + probabilities.length + ".");
+        }
+        CompiledForest.Builder builder = new CompiledForest.Builder(forest.getHeader());
+        int[] stack = new int[2 * 64];
+        for (int tree = 0; tree < forest.numTrees(); tree++) {
+            int size = 0;
+            stack[size++] = forest.root(tree);
+            stack[size++] = builder.addTree();
+            while (size > 0) {
+                int index = stack[--size];
+                int node = stack[--size];
+                builder.setProportion(index, forest.proportion[node]);
+                if (forest.attribute[node] == CompiledForest.LEAF) {
+                    builder.setLeaf(index, forest.leafDistribution(node));
+                    continue;
+                }
+
+                int first = forest.firstChild[node];
+                int count = forest.numChildren[node];
+                int newFirst = builder.addChildren(count);
+                builder.setSplit(index, forest.attribute[node], forest.splitPoint[node], newFirst, count);
+
+                if (size + 2 * count > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + 2 * count));
+                }
+                // Push the least likely successor first, so the most likely one is laid out next.
+                int[] order = byProbability(probabilities, first, count);
+                for (int i = count - 1; i >= 0; i--) {
+                    stack[size++] = first + order[i];
+                    stack[size++] = newFirst + order[i];
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Estimates the branch probabilities of a forest from a sample of rows, e.g. taken from live traffic.
+     * <p/>
+     * The probability of a node is the share of the rows reaching its parent that went down to it. It is smoothed
+     * towards the node's training proportion, so branches rarely or never seen in the sample keep a sensible
+     * order. Rows with the parent's split attribute missing are counted in every successor.
+     *
+     * @param forest The forest.
+     * @param rows   The sample, encoded as for {@link ForestScorer#distributionForRow(double[])}.
+     * @param prior  The weight, in rows, of the training proportions, e.g. {@code 1}.
+     * @return The probability of reaching each node from its parent, indexed by node.
+     */
+    public static double[] estimateProbabilities(CompiledForest forest, Iterable<double[]> rows, double prior) {
+        long[] visits = new long[forest.numNodes()];
+        int[] stack = new int[64];
+        for (double[] row : rows) {
+            for (int tree = 0; tree < forest.numTrees(); tree++) {
+                int size = 0;
+                stack[size++] = forest.root(tree);
+                while (size > 0) {
+                    int node = stack[--size];
+                    visits[node]++;
+                    int att = forest.attribute[node];
+                    if (att == CompiledForest.LEAF) {
+                        continue;
+                    }
+                    int first = forest.firstChild[node];
+                    double value = row[att];
+                    if (!Double.isNaN(value)) {
+                        stack[size++] = forest.nominal[att] ? first + (int) value
+                                : first + (value < forest.splitPoint[node] ? 0 : 1);
+                    } else {
+                        int count = forest.numChildren[node];
+                        if (size + count > stack.length) {
+                            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, size + count));
+                        }
+                        for (int i = 0; i < count; i++) {
+                            stack[size++] = first + i;
+                        }
+                    }
+                }
+            }
+        }
+
+        double[] probabilities = forest.proportion.clone();
+        for (int node = 0; node < forest.numNodes(); node++) {
+            if (forest.attribute[node] == CompiledForest.LEAF || visits[node] + prior <= 0) {
+                continue;
+            }
+            int first = forest.firstChild[node];
+            for (int i = 0; i < forest.numChildren[node]; i++) {
+                probabilities[first + i] = (visits[first + i] + prior * forest.proportion[first + i])
+                        / (visits[node] + prior);
+            }
+        }
+        return probabilities;
+    }
+
+    /**
+     * Orders the successors of a node by decreasing probability, keeping their original order on ties.
+     */
+    private static int[] byProbability(double[] probabilities, int first, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && probabilities[first + order[j - 1]] < probabilities[first + i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,243 @@
+package net.paudan.weka.scoring;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.paudan.weka.pmml.PMMLConversionException;
+import net.paudan.weka.pmml.PMMLUtils;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.MiningModel;
+import org.dmg.pmml.Model;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Predicate;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.TreeModel;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Compiles the PMML written by the tree producers of {@link net.paudan.weka.pmml.PMMLUtils.Algorithm} into a
+ * {@link CompiledForest}.
+ * <p/>
+ * The PMML holds either a {@link org.dmg.pmml.MiningModel} whose every {@link org.dmg.pmml.Segment} is a
+ * {@link org.dmg.pmml.TreeModel}, or a single top level {@link org.dmg.pmml.TreeModel}. Child
+ * {@link org.dmg.pmml.Node}s test a single field: one {@code equal} predicate per value of a nominal field,
+ * or a {@code lessThan} / {@code greaterOrEqual} (or {@code lessOrEqual} / {@code greaterThan}) pair on a
+ * numeric field. The class distribution of a node is
+ * read from the confidences of its {@link org.dmg.pmml.ScoreDistribution}s and the training proportions from
+ * its {@link net.paudan.weka.pmml.PMMLUtils#TRAINING_PROPORTION_ELEMENT} extensions.
+ */
+public final class PMMLForestCompiler {
+
+    private PMMLForestCompiler() {
+    }
+
+    /**
+     * Compiles the {@link org.dmg.pmml.MiningModel PMML MiningModel}, or else the {@link org.dmg.pmml.TreeModel PMML TreeModel},
+     * of a {@link org.dmg.pmml.PMML}.
+     *
+     * @param pmml The {@link org.dmg.pmml.PMML} to compile.
+     * @return The compiled forest.
+     * @throws PMMLConversionException If the PMML does not describe a supported tree ensemble.
+     */
+    public static CompiledForest compile(PMML pmml) throws PMMLConversionException {
+        MiningModel miningModel = null;
+        TreeModel treeModel = null;
+        for (Model model : pmml.getModels()) {
+            if (model instanceof MiningModel) {
+                miningModel = (MiningModel) model;
+                break;
+            } else if (model instanceof TreeModel && treeModel == null) {
+                treeModel = (TreeModel) model;
+            }
+        }
+        if (miningModel == null && treeModel == null) {
+            throw new PMMLConversionException("PMML MiningModel or TreeModel not found.");
+        }
+
+        Instances header = PMMLUtils.buildInstances(pmml.getDataDictionary());
+        header.setClassIndex(PMMLUtils.getClassIndex(header,
+                miningModel != null ? miningModel.getMiningSchema() : treeModel.getMiningSchema()));
+        if (!header.classAttribute().isNominal()) {
+            throw new PMMLConversionException("Only classification models can be compiled.");
+        }
+
+        CompiledForest.Builder builder = new CompiledForest.Builder(header);
+        Map<String, Double> numbers = new HashMap<>();
+        if (miningModel == null) {
+            addTree(builder, header, treeModel.getNode(), numbers);
+            return builder.build();
+        }
+        for (Segment segment : miningModel.getSegmentation().getSegments()) {
+            Model model = segment.getModel();
+            if (!(model instanceof TreeModel)) {
+                throw new PMMLConversionException("Segment " + segment.getId() + " is not a TreeModel.");
+            }
+            addTree(builder, header, ((TreeModel) model).getNode(), numbers);
+        }
+        return builder.build();
+    }
+
+    private static void addTree(CompiledForest.Builder builder, Instances header, Node rootNode,
+                                Map<String, Double> numbers) throws PMMLConversionException {
+        int root = builder.addTree();
+        double[] noDistribution = new double[builder.numClasses()];
+
+        ArrayDeque<Pending> queue = new ArrayDeque<>();
+        queue.add(new Pending(rootNode, root, noDistribution));
+        while (!queue.isEmpty()) {
+            Pending pending = queue.poll();
+            Node node = pending.node;
+            double[] classDistribution = PMMLUtils.getClassDistribution(node);
+            double[] distribution = classDistribution == null ? null : normalize(classDistribution);
+
+            List<Node> children = node.getNodes();
+            if (children.isEmpty()) {
+                if (distribution != null) {
+                    builder.setLeaf(pending.index, distribution);
+                } else {
+                    builder.setLeaf(pending.index, pending.parentDistribution);
+                    builder.setProportion(pending.index, 0);
+                }
+                continue;
+            }
+
+            SimplePredicate first = simplePredicate(children.get(0));
+            Attribute attribute = header.attribute(first.getField().getValue());
+            if (attribute == null) {
+                throw new PMMLConversionException("Unknown field '" + first.getField().getValue() + "'.");
+            }
+
+            Node[] ordered;
+            double splitPoint = Double.NaN;
+            if (attribute.isNominal()) {
+                ordered = new Node[attribute.numValues()];
+                for (Node child : children) {
+                    int value = attribute.indexOfValue(simplePredicate(child).getValue());
+                    if (value < 0) {
+                        throw new PMMLConversionException("Unknown value '" + simplePredicate(child).getValue()
+                                + "' for field '" + attribute.name() + "'.");
+                    }
+                    ordered[value] = child;
+                }
+            } else {
+                ordered = new Node[2];
+                for (Node child : children) {
+                    SimplePredicate predicate = simplePredicate(child);
+                    splitPoint = parseNumber(predicate.getValue(), numbers);
+                    SimplePredicate.Operator operator = predicate.getOperator();
+                    if (operator == SimplePredicate.Operator.LESS_OR_EQUAL
+                            || operator == SimplePredicate.Operator.GREATER_THAN) {
+                        // "value <= split" is exactly "value < nextUp(split)".
+                        splitPoint = Math.nextUp(splitPoint);
+                    }
+                    if (operator == SimplePredicate.Operator.LESS_THAN
+                            || operator == SimplePredicate.Operator.LESS_OR_EQUAL) {
+                        ordered[0] = child;
+                    } else if (operator == SimplePredicate.Operator.GREATER_OR_EQUAL
+                            || operator == SimplePredicate.Operator.GREATER_THAN) {
+                        ordered[1] = child;
+                    } else {
+                        throw new PMMLConversionException("Unsupported operator " + predicate.getOperator()
+                                + " for numeric field '" + attribute.name() + "'.");
+                    }
+                }
+            }
+
+            double[] proportions = trainingProportions(ordered, numbers);
+            int firstChild = builder.addChildren(ordered.length);
+            builder.setSplit(pending.index, attribute.index(), splitPoint, firstChild, ordered.length);
+            double[] childParentDistribution = distribution != null ? distribution : pending.parentDistribution;
+            for (int i = 0; i < ordered.length; i++) {
+                if (ordered[i] == null) {
+                    builder.setLeaf(firstChild + i, childParentDistribution);
+                    builder.setProportion(firstChild + i, 0);
+                    continue;
+                }
+                builder.setProportion(firstChild + i, proportions[i]);
+                queue.add(new Pending(ordered[i], firstChild + i, childParentDistribution));
+            }
+        }
+    }
+
+    private static SimplePredicate simplePredicate(Node node) throws PMMLConversionException {
+        Predicate predicate = node.getPredicate();
+        if (!(predicate instanceof SimplePredicate)) {
+            throw new PMMLConversionException("Node " + node.getId() + " does not have a SimplePredicate.");
+        }
+        return (SimplePredicate) predicate;
+    }
+
+    /**
+     * Reads the training proportions of sibling nodes.
+     * <p/>
+     * Older exports attach both proportions of a numeric split to the first node, so a node carrying several
+     * proportions provides them for its following siblings as well.
+     */
+    static double[] trainingProportions(Node[] siblings, Map<String, Double> numbers) {
+        List<Double> found = new ArrayList<>();
+        double[] proportions = new double[siblings.length];
+        for (int i = 0; i < siblings.length; i++) {
+            found.clear();
+            if (siblings[i] != null) {
+                for (Extension extension : siblings[i].getExtensions()) {
+                    if (PMMLUtils.TRAINING_PROPORTION_ELEMENT.equals(extension.getName())) {
+                        found.add(parseNumber(extension.getValue(), numbers));
+                    }
+                }
+            }
+            if (found.size() > 1) {
+                for (int j = 0; j < found.size() && i + j < proportions.length; j++) {
+                    proportions[i + j] = found.get(j);
+                }
+                i += found.size() - 1;
+            } else if (found.size() == 1) {
+                proportions[i] = found.get(0);
+            }
+        }
+        return proportions;
+    }
+
+    /**
+     * Parses a numeric attribute value, once per distinct value: split points and proportions repeat across the
+     * trees of a forest, and {@link net.paudan.weka.pmml.PMMLLoader} hands them over as shared instances.
+     */
+    private static double parseNumber(String value, Map<String, Double> numbers) {
+        Double number = numbers.get(value);
+        if (number == null) {
+            number = Double.valueOf(value);
+            numbers.put(value, number);
+        }
+        return number;
+    }
+
+    private static double[] normalize(double[] classDistribution) {
+        double sum = 0;
+        for (double value : classDistribution) {
+            sum += value;
+        }
+        if (sum != 0) {
+            for (int i = 0; i < classDistribution.length; i++) {
+                classDistribution[i] /= sum;
+            }
+        }
+        return classDistribution;
+    }
+
+    private static final class Pending {
+
+        final Node node;
+        final int index;
+        final double[] parentDistribution;
+
+        Pending(Node node, int index, double[] parentDistribution) {
+            this.node = node;
+            this.index = index;
+            this.parentDistribution = parentDistribution;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package net.paudan.weka.scoring;
+
+import java.util.Arrays;
+import weka.core.Instances;
+
+/**
+ * A {@link ForestScorer} that compares integer threshold ranks instead of {@code double} split points.
+ * <p/>
+ * The distinct split points of every numeric attribute, across all trees, are collected into a sorted table.
+ * Each row is converted once into ranks, the rank of a numeric value being the number of split points of its
+ * attribute that are lower or equal to it, and each split node stores the {@code short} position of its split
+ * point in the table. A value is lower than the split point at position {@code k} exactly when its rank is at
+ * most {@code k}, so the predictions are the same as {@link CompiledForestScorer}'s while every comparison is an
+ * integer compare and the nodes no longer carry a {@code double}.
+ * <p/>
+ * Nominal values keep their value index as rank, and missing values get a negative rank. An attribute with more
+ * distinct split points than a {@code short} can index, which happens with large forests over continuous
+ * features, is not rejected: its split nodes keep an {@code int} position instead, looked up in a separate array
+ * that is only allocated for such forests.
+ */
+public class QuantizedForestScorer extends AbstractForestScorer {
+
+    private static final int MISSING = -1;
+
+    /**
+     * The {@code short} position stored for split nodes whose position is in {@link #wideSplitRank}.
+     */
+    private static final short WIDE = Short.MIN_VALUE;
+
+    private final Instances header;
+    private final int numClasses;
+    private final boolean[] nominal;
+    private final double[][] splitPoints;
+    private final int[] roots;
+    private final int[] attribute;
+    private final short[] splitRank;
+    private final int[] wideSplitRank;
+    private final int[] firstChild;
+    private final int[] numChildren;
+    private final double[] proportion;
+    private final int[] distributionOffset;
+    private final double[] distributions;
+
+    /**
+     * Creates a new scorer from a compiled forest. The forest is not referenced afterwards.
+     *
+     * @param forest The compiled forest.
+     */
+    public QuantizedForestScorer(CompiledForest forest) {
+        this.header = forest.header;
+        this.numClasses = forest.numClasses;
+        this.nominal = forest.nominal;
+        this.roots = forest.roots;
+        this.attribute = forest.attribute;
+        this.firstChild = forest.firstChild;
+        this.numChildren = forest.numChildren;
+        this.proportion = forest.proportion;
+        this.distributionOffset = forest.distributionOffset;
+        this.distributions = forest.distributions;
+        this.splitPoints = buildSplitPointTables(forest);
+        this.splitRank = new short[forest.numNodes()];
+
+        boolean wide = false;
+        for (double[] table : splitPoints) {
+            wide |= table.length > Short.MAX_VALUE;
+        }
+        this.wideSplitRank = wide ? new int[forest.numNodes()] : null;
+
+        for (int node = 0; node < attribute.length; node++) {
+            int att = attribute[node];
+            if (att == CompiledForest.LEAF || nominal[att] || Double.isNaN(forest.splitPoint[node])) {
+                // A NaN split point sends every value right, which no rank can be greater than.
+                splitRank[node] = (short) MISSING;
+            } else if (splitPoints[att].length > Short.MAX_VALUE) {
+                splitRank[node] = WIDE;
+                wideSplitRank[node] = lowerBound(splitPoints[att], forest.splitPoint[node]);
+            } else {
+                splitRank[node] = (short) lowerBound(splitPoints[att], forest.splitPoint[node]);
+            }
+        }
+    }
+
+    private static double[][] buildSplitPointTables(CompiledForest forest) {
+        int numAttributes = forest.nominal.length;
+        int[] counts = new int[numAttributes];
+        for (int node = 0; node < forest.attribute.length; node++) {
+            int att = forest.attribute[node];
+            if (att != CompiledForest.LEAF && !forest.nominal[att] && !Double.isNaN(forest.splitPoint[node])) {
+                counts[att]++;
+            }
+        }
+
+        double[][] tables = new double[numAttributes][];
+        for (int att = 0; att < numAttributes; att++) {
+            tables[att] = new double[counts[att]];
+            counts[att] = 0;
+        }
+        for (int node = 0; node < forest.attribute.length; node++) {
+            int att = forest.attribute[node];
+            if (att != CompiledForest.LEAF && !forest.nominal[att] && !Double.isNaN(forest.splitPoint[node])) {
+                tables[att][counts[att]++] = forest.splitPoint[node];
+            }
+        }
+
+        for (int att = 0; att < numAttributes; att++) {
+            double[] table = tables[att];
+            Arrays.sort(table);
+            int distinct = 0;
+            for (int i = 0; i < table.length; i++) {
+                // Compare numerically, so that -0.0 and 0.0 share a slot.
+                if (distinct == 0 || table[i] != table[distinct - 1]) {
+                    table[distinct++] = table[i];
+                }
+            }
+            tables[att] = Arrays.copyOf(table, distinct);
+        }
+        return tables;
+    }
+
+    /**
+     * Retrieves the number of split points lower than the given value.
+     */
+    private static int lowerBound(double[] table, double value) {
+        int lo = 0;
+        int hi = table.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Retrieves the number of split points lower or equal to the given value.
+     */
+    private static int upperBound(double[] table, double value) {
+        int lo = 0;
+        int hi = table.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (table[mid] <= value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public Instances getHeader() {
+        return header;
+    }
+
+    /**
+     * Retrieves the sorted, distinct split points of an attribute.
+     *
+     * @param attributeIndex The index of the attribute.
+     * @return The split point table of the attribute, empty for nominal or unused attributes.
+     */
+    public double[] getSplitPoints(int attributeIndex) {
+        return splitPoints[attributeIndex].clone();
+    }
+
+    /**
+     * Converts a row into threshold ranks.
+     *
+     * @param row   The encoded row.
+     * @param ranks The array where to store the ranks, with one slot per attribute.
+     * @return The given {@code ranks} array.
+     */
+    public int[] quantize(double[] row, int[] ranks) {
+        for (int att = 0; att < nominal.length; att++) {
+            double value = row[att];
+            if (Double.isNaN(value)) {
+                ranks[att] = MISSING;
+            } else if (nominal[att]) {
+                ranks[att] = (int) value;
+            } else {
+                ranks[att] = upperBound(splitPoints[att], value);
+            }
+        }
+        return ranks;
+    }
+
+    @Override
+    public double[] distributionForRow(double[] row) {
+        return distributionForRanks(quantize(row, new int[nominal.length]));
+    }
+
+    /**
+     * Computes the class distribution of an already quantized row.
+     *
+     * @param ranks The ranks computed by {@link #quantize(double[], int[])}.
+     * @return The class distribution.
+     */
+    public double[] distributionForRanks(int[] ranks) {
+        double[] sums = new double[numClasses];
+        CompiledForest.WalkStack stack = new CompiledForest.WalkStack();
+        for (int tree = 0; tree < roots.length; tree++) {
+            addDistribution(roots[tree], ranks, sums, stack);
+        }
+        return normalizeVotes(sums);
+    }
+
+    /**
+     * Adds the class distribution of a tree to {@code sums}, walking down every successor of the splits on missing
+     * values through the given empty stack.
+     */
+    private void addDistribution(int node, int[] ranks, double[] sums, CompiledForest.WalkStack stack) {
+        double weight = 1;
+        while (true) {
+            int att;
+            while ((att = attribute[node]) != CompiledForest.LEAF) {
+                int rank = ranks[att];
+                if (rank < 0) {
+                    break;
+                }
+                if (nominal[att]) {
+                    node = firstChild[node] + rank;
+                } else {
+                    int split = splitRank[node];
+                    if (split == WIDE) {
+                        split = wideSplitRank[node];
+                    }
+                    node = firstChild[node] + (rank <= split ? 0 : 1);
+                }
+            }
+
+            if (att == CompiledForest.LEAF) {
+                int offset = distributionOffset[node];
+                for (int j = 0; j < numClasses; j++) {
+                    sums[j] += weight * distributions[offset + j];
+                }
+            } else {
+                stack.pushSuccessors(firstChild[node], numChildren[node], proportion, weight);
+            }
+            if (stack.isEmpty()) {
+                return;
+            }
+            weight = stack.weight();
+            node = stack.pop();
+        }
+    }
+}
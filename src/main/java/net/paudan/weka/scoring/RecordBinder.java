@@ -0,0 +1,163 @@
+package net.paudan.weka.scoring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.paudan.weka.pmml.PMMLUtils;
+import org.dmg.pmml.DataDictionary;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Converts records keyed by field name into encoded rows for a {@link ForestScorer}.
+ * <p/>
+ * The field names, their slots in the row and a value-to-index map for every nominal attribute are computed
+ * once, so binding a record costs one map lookup per field and does not allocate when the record holds
+ * {@link Number}s and {@link String}s. Absent fields, {@code null}s, unparseable numbers and nominal values
+ * unknown to the header are all bound as missing values.
+ */
+public class RecordBinder {
+
+    private final String[] names;
+    private final Map<String, Integer> slots;
+    private final Map<String, Integer>[] nominalIndices;
+
+    /**
+     * Creates a new binder for the attributes of a {@link weka.core.Instances} header, such as {@code m_Info}.
+     *
+     * @param header The header {@link weka.core.Instances}.
+     */
+    public RecordBinder(Instances header) {
+        this(attributesOf(header));
+    }
+
+    /**
+     * Creates a new binder for the given attributes, in row order.
+     *
+     * @param attributes The attributes, one per slot of the row.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RecordBinder(List<Attribute> attributes) {
+        names = new String[attributes.size()];
+        slots = new HashMap<>(attributes.size() * 2);
+        nominalIndices = new Map[attributes.size()];
+        for (int i = 0; i < names.length; i++) {
+            Attribute attribute = attributes.get(i);
+            names[i] = attribute.name();
+            slots.put(names[i], i);
+            if (attribute.isNominal()) {
+                Map<String, Integer> indices = new HashMap<>(attribute.numValues() * 2);
+                for (int v = 0; v < attribute.numValues(); v++) {
+                    indices.put(attribute.value(v), v);
+                }
+                nominalIndices[i] = indices;
+            }
+        }
+    }
+
+    /**
+     * Creates a new binder from a {@link org.dmg.pmml.DataDictionary PMML DataDictionary}.
+     *
+     * @param dataDictionary The {@link org.dmg.pmml.DataDictionary PMML DataDictionary} of the model.
+     * @return A new binder.
+     */
+    public static RecordBinder fromDataDictionary(DataDictionary dataDictionary) {
+        return new RecordBinder(PMMLUtils.buildAttributes(dataDictionary));
+    }
+
+    private static List<Attribute> attributesOf(Instances header) {
+        List<Attribute> attributes = new ArrayList<>(header.numAttributes());
+        for (int i = 0; i < header.numAttributes(); i++) {
+            attributes.add(header.attribute(i));
+        }
+        return attributes;
+    }
+
+    /**
+     * Retrieves the number of slots of the bound rows.
+     *
+     * @return The number of attributes.
+     */
+    public int numAttributes() {
+        return names.length;
+    }
+
+    /**
+     * Retrieves the slot of a field.
+     *
+     * @param name The name of the field.
+     * @return The index of the field's slot, or {@code -1} if the field is unknown.
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Binds a record into a new row.
+     *
+     * @param record The record, keyed by field name.
+     * @return The encoded row.
+     */
+    public double[] bind(Map<String, ?> record) {
+        return bind(record, new double[names.length]);
+    }
+
+    /**
+     * Binds a record into the given row.
+     *
+     * @param record The record, keyed by field name.
+     * @param row    The row to fill, with one slot per attribute.
+     * @return The given {@code row}.
+     */
+    public double[] bind(Map<String, ?> record, double[] row) {
+        for (int i = 0; i < names.length; i++) {
+            row[i] = encode(i, record.get(names[i]));
+        }
+        return row;
+    }
+
+    /**
+     * Binds records into rows.
+     *
+     * @param records The records, keyed by field name.
+     * @return One encoded row per record.
+     */
+    public double[][] bindAll(List<? extends Map<String, ?>> records) {
+        double[][] rows = new double[records.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = bind(records.get(i));
+        }
+        return rows;
+    }
+
+    /**
+     * Encodes a single value for the given slot.
+     *
+     * @param slot  The index of the slot.
+     * @param value The raw value.
+     * @return The encoded value, or a missing value if it cannot be encoded.
+     */
+    public double encode(int slot, Object value) {
+        if (value == null) {
+            return Utils.missingValue();
+        }
+
+        Map<String, Integer> indices = nominalIndices[slot];
+        if (indices != null) {
+            Integer index = indices.get(value instanceof String ? (String) value : String.valueOf(value));
+            return index == null ? Utils.missingValue() : index;
+        }
+
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return Utils.missingValue();
+        }
+    }
+}
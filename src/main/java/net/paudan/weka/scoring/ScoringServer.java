@@ -0,0 +1,281 @@
+package net.paudan.weka.scoring;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import weka.core.Instances;
+
+/**
+ * A self-contained HTTP scoring server built on the JDK's {@code com.sun.net.httpserver}.
+ * <p/>
+ * Endpoints:
+ * <ul>
+ * <li>{@code GET /score?field=value&...} or {@code POST /score} with a form-encoded body scores one record and
+ * answers with a CSV line holding the predicted label and the class probabilities. Concurrent requests are
+ * coalesced by a {@link MicroBatcher}.</li>
+ * <li>{@code GET /stats} answers with the request latency percentiles, the batching statistics and the queue
+ * depth.</li>
+ * </ul>
+ */
+public class ScoringServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ForestScorer scorer;
+    private final RecordBinder binder;
+    private final MicroBatcher batcher;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a new server. It does not accept connections until {@link #start()} is called.
+     *
+     * @param scorer         The scorer to serve.
+     * @param address        The address to bind to.
+     * @param maxBatchSize   The maximum number of rows per micro-batch.
+     * @param maxWaitMicros  How long to wait for a micro-batch to fill up, in microseconds.
+     * @param handlerThreads The number of threads handling HTTP requests.
+     * @throws IOException If it fails to bind to the address.
+     */
+    public ScoringServer(ForestScorer scorer, InetSocketAddress address, int maxBatchSize, long maxWaitMicros,
+                         int handlerThreads) throws IOException {
+        this.scorer = scorer;
+        this.binder = new RecordBinder(scorer.getHeader());
+        this.batcher = new MicroBatcher(scorer, maxBatchSize, maxWaitMicros, Math.max(1024, handlerThreads * 4),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        this.server = HttpServer.create(address, 1024);
+        this.handlers = Executors.newFixedThreadPool(handlerThreads);
+        server.setExecutor(handlers);
+        server.createContext("/score", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleScore(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, stats());
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server, letting the requests in progress finish.
+     *
+     * @throws InterruptedException If interrupted while waiting for the queued rows.
+     */
+    public void stop() throws InterruptedException {
+        server.stop(1);
+        batcher.shutdown();
+        handlers.shutdown();
+        handlers.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public MicroBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Retrieves the histogram of the time spent handling score requests.
+     *
+     * @return The request latency histogram.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    private void handleScore(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String query;
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            query = new String(readFully(exchange.getRequestBody()), UTF_8);
+        } else {
+            query = exchange.getRequestURI().getRawQuery();
+        }
+
+        double[] row;
+        try {
+            row = binder.bind(parseQuery(query));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Malformed record: " + e.getMessage() + "\n");
+            return;
+        }
+
+        double[] distribution;
+        try {
+            distribution = batcher.score(row);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            respond(exchange, 503, e.getMessage() + "\n");
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted.\n");
+            return;
+        } catch (RuntimeException e) {
+            // A failed batch, reported as an IllegalStateException caused by what the scorer threw.
+            respond(exchange, 500, e.getMessage() + (e.getCause() == null ? "" : " " + e.getCause()) + "\n");
+            return;
+        }
+
+        Instances header = scorer.getHeader();
+        StringBuilder builder = new StringBuilder();
+        int predicted = AbstractForestScorer.classFromDistribution(distribution);
+        builder.append(predicted < 0 ? "?" : header.classAttribute().value(predicted));
+        for (double probability : distribution) {
+            builder.append(',').append(probability);
+        }
+        respond(exchange, 200, builder.append('\n').toString());
+        requestLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Summarizes the server's statistics.
+     *
+     * @return One statistic per line.
+     */
+    public String stats() {
+        return "requests " + requestLatency.summary() + "\n"
+                + "queue " + batcher.getLatency().summary() + "\n"
+                + "batches=" + batcher.getBatchCount() + " rows=" + batcher.getRowCount()
+                + " averageBatchSize=" + String.format("%.2f", batcher.getAverageBatchSize()) + "\n"
+                + "queueDepth=" + batcher.getQueueDepth() + " rejected=" + rejected.get() + "\n";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        is.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses a form-encoded query string into a record.
+     *
+     * @param query The query string, possibly {@code null}.
+     * @return The record, keyed by field name.
+     */
+    static Map<String, Object> parseQuery(String query) throws IOException {
+        Map<String, Object> record = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return record;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                record.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Sends score requests to a server from several threads and reports the client-side throughput.
+     *
+     * @param scoreUrl    The URL of the server's {@code /score} endpoint.
+     * @param queries     The form-encoded records to send, reused in a round-robin fashion.
+     * @param concurrency The number of client threads.
+     * @param requests    The total number of requests to send.
+     * @param report      Where to report the results.
+     * @return The client-side latency histogram.
+     * @throws InterruptedException     If interrupted while waiting for the clients.
+     * @throws IllegalArgumentException If there are no queries or no client threads.
+     */
+    public static LatencyHistogram loadTest(final URL scoreUrl, final List<String> queries, int concurrency,
+                                            final int requests, PrintStream report) throws InterruptedException {
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("There are no queries to send.");
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be positive, got " + concurrency + ".");
+        }
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong failures = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int request;
+                    while ((request = next.getAndIncrement()) < requests) {
+                        byte[] body = queries.get(request % queries.size()).getBytes(UTF_8);
+                        long sent = System.nanoTime();
+                        try {
+                            HttpURLConnection connection = (HttpURLConnection) scoreUrl.openConnection();
+                            connection.setRequestMethod("POST");
+                            connection.setDoOutput(true);
+                            try (OutputStream os = connection.getOutputStream()) {
+                                os.write(body);
+                            }
+                            if (connection.getResponseCode() != 200) {
+                                failures.incrementAndGet();
+                            }
+                            InputStream response = connection.getResponseCode() == 200 ? connection.getInputStream()
+                                    : connection.getErrorStream();
+                            if (response != null) {
+                                readFully(response);
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latency.record(System.nanoTime() - sent);
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        report.println("Sent " + requests + " requests in " + elapsedMillis + " ms ("
+                + (requests * 1000L / elapsedMillis) + " requests/s), " + failures.get() + " failed.");
+        report.println("client " + latency.summary());
+        return latency;
+    }
+}
@@ -0,0 +1,106 @@
+package net.paudan.weka.scoring;
+
+import java.util.Arrays;
+import weka.core.Instance;
+
+/**
+ * A sparse row: the values of a few attributes, all others being {@code 0}, as in a
+ * {@link weka.core.SparseInstance}.
+ * <p/>
+ * The values are kept in a small open-addressing hash table keyed by attribute index, so that looking up the split
+ * attribute of a node takes constant time whatever the number of attributes, and scoring a sparse row costs in
+ * proportion to the length of the paths taken rather than to the width of the header. Missing values are stored
+ * explicitly, as {@link weka.core.Utils#missingValue()}.
+ */
+public final class SparseRow {
+
+    private static final int EMPTY = -1;
+
+    private final int[] indices;
+    private final double[] values;
+    private final int[] keys;
+    private final double[] slots;
+    private final int mask;
+
+    /**
+     * Creates a new sparse row.
+     *
+     * @param indices The indices of the attributes with a non-zero value, without duplicates.
+     * @param values  The values of these attributes, encoded as in {@link ForestScorer}.
+     */
+    public SparseRow(int[] indices, double[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Expected " + indices.length + " values, got " + values.length + ".");
+        }
+        this.indices = indices;
+        this.values = values;
+
+        int capacity = 4;
+        while (capacity < 2 * indices.length) {
+            capacity <<= 1;
+        }
+        this.keys = new int[capacity];
+        this.slots = new double[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < indices.length; i++) {
+            int slot = slotOf(indices[i]);
+            keys[slot] = indices[i];
+            slots[slot] = values[i];
+        }
+    }
+
+    /**
+     * Creates a sparse row holding the stored values of an {@link weka.core.Instance}, typically a
+     * {@link weka.core.SparseInstance}.
+     *
+     * @param instance The instance.
+     * @return A new sparse row.
+     */
+    public static SparseRow of(Instance instance) {
+        int[] indices = new int[instance.numValues()];
+        double[] values = new double[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = instance.index(i);
+            values[i] = instance.valueSparse(i);
+        }
+        return new SparseRow(indices, values);
+    }
+
+    /**
+     * Retrieves the value of an attribute.
+     *
+     * @param attribute The index of the attribute.
+     * @return The value of the attribute, {@code 0} if it is not stored.
+     */
+    public double value(int attribute) {
+        int slot = slotOf(attribute);
+        return keys[slot] == EMPTY ? 0 : slots[slot];
+    }
+
+    /**
+     * Expands the row.
+     *
+     * @param numAttributes The number of attributes of the header.
+     * @return The dense row.
+     */
+    public double[] toDense(int numAttributes) {
+        double[] row = new double[numAttributes];
+        for (int i = 0; i < indices.length; i++) {
+            row[indices[i]] = values[i];
+        }
+        return row;
+    }
+
+    /**
+     * Finds the slot holding an attribute, or the empty slot where it would be, by linear probing.
+     */
+    private int slotOf(int attribute) {
+        int hash = attribute * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != attribute) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,438 @@
+package net.paudan.weka.scoring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import net.paudan.weka.CsvUtils;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader;
+
+/**
+ * Scores CSV or ARFF input of any size with a bounded producer/worker/writer pipeline.
+ * <p/>
+ * The calling thread reads the input and groups it into batches, worker threads parse, score and format each
+ * batch, and a writer thread writes the formatted batches in input order. At most {@code maxPendingBatches}
+ * batches are in flight at any time, so memory stays bounded no matter how large the input is or how unevenly
+ * the workers progress.
+ * <p/>
+ * Each output line holds the predicted class label followed by the probability of every class. Input columns
+ * are matched to the model's attributes by name; columns the model does not know are ignored and attributes
+ * absent from the input are scored as missing.
+ */
+public class StreamingScorer {
+
+    private final ForestScorer scorer;
+    private final RecordBinder binder;
+    private final int numWorkers;
+    private final int batchSize;
+    private final int maxPendingBatches;
+    private final long reportIntervalMillis;
+    private final PrintStream report;
+
+    private final AtomicLong rowsScored = new AtomicLong();
+    private volatile BlockingQueue<Batch> workQueue;
+
+    /**
+     * Creates a new streaming scorer.
+     *
+     * @param scorer               The scorer to apply to every row.
+     * @param numWorkers           The number of worker threads.
+     * @param batchSize            The number of input lines per batch.
+     * @param maxPendingBatches    The maximum number of batches in flight.
+     * @param reportIntervalMillis How often to report progress, or {@code 0} to never report.
+     * @param report               Where to report progress.
+     */
+    public StreamingScorer(ForestScorer scorer, int numWorkers, int batchSize, int maxPendingBatches,
+                           long reportIntervalMillis, PrintStream report) {
+        this.scorer = scorer;
+        this.binder = new RecordBinder(scorer.getHeader());
+        this.numWorkers = Math.max(1, numWorkers);
+        this.batchSize = Math.max(1, batchSize);
+        this.maxPendingBatches = Math.max(this.numWorkers, maxPendingBatches);
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.report = report;
+    }
+
+    /**
+     * Scores a CSV input whose first line holds the column names.
+     *
+     * @param input  The CSV input.
+     * @param output Where to write the scores.
+     * @return The number of scored rows.
+     * @throws IOException If it fails to read the input or write the output.
+     */
+    public long scoreCsv(Reader input, Writer output) throws IOException {
+        BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input);
+        String headerLine = reader.readLine();
+        if (headerLine == null) {
+            writeHeader(output);
+            output.flush();
+            return 0;
+        }
+
+        List<String> columns = CsvUtils.splitLine(headerLine);
+        final int[] slots = new int[columns.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = binder.slotOf(columns.get(i));
+        }
+
+        final BufferedReader lines = reader;
+        return run(new Source() {
+            @Override
+            public Object next() throws IOException {
+                String line;
+                do {
+                    line = lines.readLine();
+                } while (line != null && line.trim().isEmpty());
+                return line;
+            }
+
+            @Override
+            public void parse(Object item, double[] row) {
+                List<String> values = CsvUtils.splitLine((String) item);
+                for (int i = 0; i < slots.length && i < values.size(); i++) {
+                    if (slots[i] >= 0) {
+                        String value = values.get(i);
+                        row[slots[i]] = "?".equals(value) || value.isEmpty() ? Utils.missingValue() : binder.encode(slots[i], value);
+                    }
+                }
+            }
+        }, output);
+    }
+
+    /**
+     * Scores an ARFF input, reading it one instance at a time.
+     *
+     * @param input  The ARFF input.
+     * @param output Where to write the scores.
+     * @return The number of scored rows.
+     * @throws IOException If it fails to read the input or write the output.
+     */
+    public long scoreArff(Reader input, Writer output) throws IOException {
+        final ArffLoader.ArffReader arff = new ArffLoader.ArffReader(input, 1);
+        final Instances structure = arff.getStructure();
+        final int[] slots = new int[structure.numAttributes()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = binder.slotOf(structure.attribute(i).name());
+        }
+
+        return run(new Source() {
+            @Override
+            public Object next() throws IOException {
+                return arff.readInstance(structure);
+            }
+
+            @Override
+            public void parse(Object item, double[] row) {
+                Instance instance = (Instance) item;
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] < 0 || instance.isMissing(i)) {
+                        continue;
+                    }
+                    Attribute attribute = structure.attribute(i);
+                    row[slots[i]] = attribute.isNumeric() ? binder.encode(slots[i], instance.value(i))
+                            : binder.encode(slots[i], instance.stringValue(i));
+                }
+            }
+        }, output);
+    }
+
+    /**
+     * Retrieves the number of rows scored so far.
+     *
+     * @return The number of scored rows.
+     */
+    public long getRowsScored() {
+        return rowsScored.get();
+    }
+
+    /**
+     * Retrieves the number of batches waiting for a worker.
+     *
+     * @return The depth of the work queue.
+     */
+    public int getQueueDepth() {
+        BlockingQueue<Batch> queue = workQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    private long run(final Source source, Writer output) throws IOException {
+        writeHeader(output);
+
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(maxPendingBatches);
+        final Semaphore inFlight = new Semaphore(maxPendingBatches);
+        final Reorderer reorderer = new Reorderer();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        workQueue = queue;
+        rowsScored.set(0);
+
+        List<Thread> workers = new ArrayList<>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(source, queue, reorderer, failure);
+                }
+            }, "scoring-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        Thread writer = new Thread(new WriterTask(output, reorderer, inFlight, failure), "scoring-writer");
+        writer.start();
+
+        ScheduledExecutorService reporter = startReporter();
+        long start = System.nanoTime();
+        long sequence = 0;
+        try {
+            try {
+                List<Object> items = new ArrayList<>(batchSize);
+                Object item;
+                while (failure.get() == null && (item = source.next()) != null) {
+                    items.add(item);
+                    if (items.size() == batchSize) {
+                        inFlight.acquire();
+                        queue.put(new Batch(sequence++, items));
+                        items = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!items.isEmpty()) {
+                    inFlight.acquire();
+                    queue.put(new Batch(sequence++, items));
+                }
+            } catch (IOException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+
+            // Drain the pipeline even if reading failed, so that no thread is left waiting.
+            for (int i = 0; i < numWorkers; i++) {
+                queue.put(Batch.END);
+            }
+            reorderer.complete(sequence, Batch.END_OUTPUT);
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring.", e);
+        } finally {
+            if (reporter != null) {
+                reporter.shutdownNow();
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Failed to score the input.", failure.get());
+        }
+
+        if (report != null) {
+            long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            report.println("Scored " + rowsScored.get() + " rows in " + elapsedMillis + " ms ("
+                    + (rowsScored.get() * 1000 / elapsedMillis) + " rows/s).");
+        }
+        return rowsScored.get();
+    }
+
+    private void work(Source source, BlockingQueue<Batch> queue, Reorderer reorderer, AtomicReference<Throwable> failure) {
+        int numAttributes = scorer.getHeader().numAttributes();
+        Instances header = scorer.getHeader();
+        double[] row = new double[numAttributes];
+        StringBuilder builder = new StringBuilder();
+        try {
+            Batch batch;
+            while ((batch = queue.take()) != Batch.END) {
+                builder.setLength(0);
+                try {
+                    if (failure.get() == null) {
+                        for (Object item : batch.items) {
+                            for (int i = 0; i < numAttributes; i++) {
+                                row[i] = Utils.missingValue();
+                            }
+                            source.parse(item, row);
+                            double[] distribution = scorer.distributionForRow(row);
+                            format(builder, header, distribution);
+                        }
+                        rowsScored.addAndGet(batch.items.size());
+                    }
+                } catch (Throwable e) {
+                    // Errors too, such as an OutOfMemoryError: the writer waits for every sequence.
+                    failure.compareAndSet(null, e);
+                    builder.setLength(0);
+                } finally {
+                    reorderer.complete(batch.sequence, builder.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void format(StringBuilder builder, Instances header, double[] distribution) {
+        int predicted = AbstractForestScorer.classFromDistribution(distribution);
+        builder.append(predicted < 0 ? "?" : quote(header.classAttribute().value(predicted)));
+        for (double probability : distribution) {
+            builder.append(',').append(probability);
+        }
+        builder.append('\n');
+    }
+
+    private void writeHeader(Writer output) throws IOException {
+        Attribute classAttribute = scorer.getHeader().classAttribute();
+        StringBuilder builder = new StringBuilder("predicted");
+        for (int i = 0; i < classAttribute.numValues(); i++) {
+            builder.append(',').append(quote("P(" + classAttribute.value(i) + ")"));
+        }
+        output.write(builder.append('\n').toString());
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private ScheduledExecutorService startReporter() {
+        if (reportIntervalMillis <= 0 || report == null) {
+            return null;
+        }
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "scoring-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final long start = System.nanoTime();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                long rows = rowsScored.get();
+                report.println("Scored " + rows + " rows (" + (rows * 1000 / elapsedMillis) + " rows/s), "
+                        + getQueueDepth() + "/" + maxPendingBatches + " batches queued.");
+            }
+        }, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        return reporter;
+    }
+
+    /**
+     * Supplies input items on the reading thread and turns them into rows on the worker threads.
+     */
+    private interface Source {
+
+        /**
+         * @return The next input item, or {@code null} at the end of the input.
+         */
+        Object next() throws IOException;
+
+        /**
+         * Fills a row, already set to missing values, from an input item.
+         */
+        void parse(Object item, double[] row);
+    }
+
+    private static final class Batch {
+
+        static final Batch END = new Batch(-1, null);
+        static final String END_OUTPUT = new String();
+
+        final long sequence;
+        final List<Object> items;
+
+        Batch(long sequence, List<Object> items) {
+            this.sequence = sequence;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Hands formatted batches to the writer in sequence order.
+     */
+    private static final class Reorderer {
+
+        private final Map<Long, String> completed = new HashMap<>();
+        private long next;
+
+        synchronized void complete(long sequence, String output) {
+            completed.put(sequence, output);
+            if (sequence == next) {
+                notifyAll();
+            }
+        }
+
+        synchronized String takeNext() throws InterruptedException {
+            String output;
+            while ((output = completed.remove(next)) == null) {
+                wait();
+            }
+            next++;
+            return output;
+        }
+    }
+
+    /**
+     * Writes the batches in sequence order. Once the run has failed, batches are only acknowledged, so that the
+     * reading thread, which waits for a permit before queuing a batch, stops at its next check of the failure.
+     */
+    private static final class WriterTask implements Runnable {
+
+        private final Writer output;
+        private final Reorderer reorderer;
+        private final Semaphore inFlight;
+        private final AtomicReference<Throwable> failure;
+
+        WriterTask(Writer output, Reorderer reorderer, Semaphore inFlight, AtomicReference<Throwable> failure) {
+            this.output = output;
+            this.reorderer = reorderer;
+            this.inFlight = inFlight;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String batch;
+                while ((batch = reorderer.takeNext()) != Batch.END_OUTPUT) {
+                    try {
+                        if (failure.get() == null) {
+                            output.write(batch);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+                if (failure.get() == null) {
+                    output.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+}
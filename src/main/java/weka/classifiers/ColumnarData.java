@@ -0,0 +1,455 @@
+package weka.classifiers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.paudan.weka.CsvUtils;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+/**
+ * A training set stored column by column in a memory-mapped file, so that trees can be trained on data much larger
+ * than the heap (see {@link RandomTreeWrapper#buildClassifier(ColumnarData, int[])}).
+ * <p/>
+ * An ARFF or CSV file is converted once, in two streaming passes: the first counts the rows and, for CSV, finds
+ * which columns are numeric, and the second writes every value into the column of its attribute. Numeric
+ * attributes are stored as doubles, {@code NaN} being missing, and nominal attributes as value indices,
+ * {@code -1} being missing; the instance weights have a column too. Rows with a missing class are dropped, as
+ * training would. The file starts with the number of rows and attributes and ends with the ARFF header of the
+ * data, so only the header is ever held on the heap; each column is mapped read-only on its own, which limits a
+ * column to 2 GB, i.e. about 268 million rows. Reads do not move any buffer position, so an instance can be shared
+ * by trees trained concurrently.
+ */
+public final class ColumnarData implements Closeable {
+
+    private static final int MAGIC = 0x434F4C31;
+    private static final int PREAMBLE_BYTES = 24;
+
+    private final RandomAccessFile file;
+    private final Instances header;
+    private final int numRows;
+    private final DoubleBuffer weights;
+    private final DoubleBuffer[] numericColumns;
+    private final IntBuffer[] nominalColumns;
+
+    private ColumnarData(RandomAccessFile file, Instances header, int numRows, DoubleBuffer weights,
+                         DoubleBuffer[] numericColumns, IntBuffer[] nominalColumns) {
+        this.file = file;
+        this.header = header;
+        this.numRows = numRows;
+        this.weights = weights;
+        this.numericColumns = numericColumns;
+        this.nominalColumns = nominalColumns;
+    }
+
+    /**
+     * Converts an ARFF file, or a CSV file for a {@code .csv} extension, and opens the result.
+     *
+     * @param source The ARFF or CSV file.
+     * @param target The columnar file to write.
+     * @return The opened columnar data.
+     * @throws IOException If it fails to read the source or write the target.
+     */
+    public static ColumnarData convert(File source, File target) throws IOException {
+        if (source.getName().toLowerCase().endsWith(".csv")) {
+            convertCsv(source, target);
+        } else {
+            convertArff(source, target);
+        }
+        return open(target);
+    }
+
+    /**
+     * Converts an ARFF file. The class is the last attribute.
+     *
+     * @param arff   The ARFF file.
+     * @param target The columnar file to write.
+     * @throws IOException If it fails to read the source or write the target.
+     */
+    public static void convertArff(File arff, File target) throws IOException {
+        Instances structure;
+        int numRows = 0;
+        try (Reader reader = new BufferedReader(new FileReader(arff), 1 << 16)) {
+            ArffLoader.ArffReader arffReader = new ArffLoader.ArffReader(reader, 1);
+            structure = arffReader.getStructure();
+            structure.setClassIndex(structure.numAttributes() - 1);
+            Instance instance;
+            while ((instance = arffReader.readInstance(structure)) != null) {
+                if (!instance.classIsMissing()) {
+                    numRows = incrementRows(numRows);
+                }
+            }
+        }
+
+        boolean[] nominal = new boolean[structure.numAttributes()];
+        for (int i = 0; i < nominal.length; i++) {
+            Attribute attribute = structure.attribute(i);
+            if (!attribute.isNumeric() && !attribute.isNominal()) {
+                throw new IllegalArgumentException("Attribute '" + attribute.name() + "' is neither numeric nor nominal.");
+            }
+            nominal[i] = attribute.isNominal();
+        }
+
+        try (Reader reader = new BufferedReader(new FileReader(arff), 1 << 16);
+             ColumnWriter writer = new ColumnWriter(target, nominal, numRows)) {
+            ArffLoader.ArffReader arffReader = new ArffLoader.ArffReader(reader, 1);
+            Instance instance;
+            while ((instance = arffReader.readInstance(structure)) != null) {
+                if (instance.classIsMissing()) {
+                    continue;
+                }
+                for (int i = 0; i < nominal.length; i++) {
+                    writer.set(i, instance.isMissing(i) ? Double.NaN : instance.value(i));
+                }
+                writer.endRow(instance.weight());
+            }
+            writer.finish(new Instances(structure, 0));
+        }
+    }
+
+    /**
+     * Converts a CSV file with a header line. A column whose values all parse as numbers, {@code ?} and empty
+     * values being missing, becomes a numeric attribute; any other column, and the last one, which is the class,
+     * becomes a nominal attribute with its values in order of appearance.
+     *
+     * @param csv    The CSV file.
+     * @param target The columnar file to write.
+     * @throws IOException If it fails to read the source or write the target.
+     */
+    public static void convertCsv(File csv, File target) throws IOException {
+        List<String> names;
+        boolean[] nominal;
+        int numRows = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(csv), 1 << 16)) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IOException("The CSV file " + csv + " has no header line.");
+            }
+            names = CsvUtils.splitLine(headerLine);
+            nominal = new boolean[names.size()];
+            nominal[nominal.length - 1] = true;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> values = CsvUtils.splitLine(line);
+                if (isMissing(value(values, nominal.length - 1))) {
+                    continue;
+                }
+                for (int i = 0; i < nominal.length; i++) {
+                    String value = value(values, i);
+                    if (!nominal[i] && !isMissing(value)) {
+                        try {
+                            Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            nominal[i] = true;
+                        }
+                    }
+                }
+                numRows = incrementRows(numRows);
+            }
+        }
+
+        List<Map<String, Integer>> indices = new ArrayList<>();
+        for (boolean isNominal : nominal) {
+            indices.add(isNominal ? new LinkedHashMap<String, Integer>() : null);
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(csv), 1 << 16);
+             ColumnWriter writer = new ColumnWriter(target, nominal, numRows)) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> values = CsvUtils.splitLine(line);
+                if (isMissing(value(values, nominal.length - 1))) {
+                    continue;
+                }
+                for (int i = 0; i < nominal.length; i++) {
+                    String value = value(values, i);
+                    if (isMissing(value)) {
+                        writer.set(i, Double.NaN);
+                    } else if (nominal[i]) {
+                        Map<String, Integer> valueIndices = indices.get(i);
+                        Integer index = valueIndices.get(value);
+                        if (index == null) {
+                            index = valueIndices.size();
+                            valueIndices.put(value, index);
+                        }
+                        writer.set(i, index);
+                    } else {
+                        writer.set(i, Double.parseDouble(value));
+                    }
+                }
+                writer.endRow(1);
+            }
+
+            ArrayList<Attribute> attributes = new ArrayList<>();
+            for (int i = 0; i < nominal.length; i++) {
+                attributes.add(nominal[i] ? new Attribute(names.get(i), new ArrayList<>(indices.get(i).keySet()))
+                        : new Attribute(names.get(i)));
+            }
+            String relation = csv.getName().replaceAll("\\.[^.]*$", "");
+            writer.finish(new Instances(relation, attributes, 0));
+        }
+    }
+
+    /**
+     * Opens a columnar file.
+     *
+     * @param columnarFile The file written by one of the {@code convert} methods.
+     * @return The columnar data; {@link #close()} releases the file.
+     * @throws IOException If the file cannot be read or is not a columnar file.
+     */
+    public static ColumnarData open(File columnarFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(columnarFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, preamble, 0);
+            preamble.flip();
+            if (preamble.getInt() != MAGIC) {
+                throw new IOException(columnarFile + " is not a columnar data file.");
+            }
+            int numAttributes = preamble.getInt();
+            int classIndex = preamble.getInt();
+            int numRows = preamble.getInt();
+            long headerOffset = preamble.getLong();
+
+            ByteBuffer headerBytes = ByteBuffer.allocate((int) (channel.size() - headerOffset));
+            readFully(channel, headerBytes, headerOffset);
+            Instances header = new Instances(new StringReader(new String(headerBytes.array(), "UTF-8")));
+            header.setClassIndex(classIndex);
+            if (header.numAttributes() != numAttributes) {
+                throw new IOException(columnarFile + " is corrupt: " + numAttributes + " columns for "
+                        + header.numAttributes() + " attributes.");
+            }
+
+            long offset = PREAMBLE_BYTES;
+            DoubleBuffer weights = map(channel, offset, 8L * numRows).asDoubleBuffer();
+            offset += align(8L * numRows);
+            DoubleBuffer[] numericColumns = new DoubleBuffer[numAttributes];
+            IntBuffer[] nominalColumns = new IntBuffer[numAttributes];
+            for (int i = 0; i < numAttributes; i++) {
+                boolean nominal = header.attribute(i).isNominal();
+                long bytes = (nominal ? 4L : 8L) * numRows;
+                ByteBuffer column = map(channel, offset, bytes);
+                if (nominal) {
+                    nominalColumns[i] = column.asIntBuffer();
+                } else {
+                    numericColumns[i] = column.asDoubleBuffer();
+                }
+                offset += align(bytes);
+            }
+            return new ColumnarData(file, header, numRows, weights, numericColumns, nominalColumns);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieves the header of the data.
+     *
+     * @return The header {@link weka.core.Instances}, with its class index set and no data.
+     */
+    public Instances getHeader() {
+        return header;
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public double weight(int row) {
+        return weights.get(row);
+    }
+
+    /**
+     * Retrieves a value, encoded as in {@link weka.core.Instance#value(int)}.
+     *
+     * @param row       The index of the row.
+     * @param attribute The index of the attribute.
+     * @return The value, or the index of a nominal value, {@code NaN} if missing.
+     */
+    public double value(int row, int attribute) {
+        IntBuffer nominal = nominalColumns[attribute];
+        if (nominal != null) {
+            int index = nominal.get(row);
+            return index < 0 ? Double.NaN : index;
+        }
+        return numericColumns[attribute].get(row);
+    }
+
+    /**
+     * Retrieves the class of a row.
+     *
+     * @param row The index of the row.
+     * @return The index of the class value.
+     */
+    public int classValue(int row) {
+        return nominalColumns[header.classIndex()].get(row);
+    }
+
+    /**
+     * Copies a row into an {@link weka.core.Instance}, for the few places that need one.
+     *
+     * @param row The index of the row.
+     * @return A new {@link weka.core.DenseInstance} with the row's weight and values, whose dataset is the header.
+     */
+    public Instance instance(int row) {
+        double[] values = new double[header.numAttributes()];
+        for (int att = 0; att < values.length; att++) {
+            values[att] = value(row, att);
+        }
+        Instance instance = new DenseInstance(weight(row), values);
+        instance.setDataset(header);
+        return instance;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static int incrementRows(int numRows) throws IOException {
+        if (numRows == Integer.MAX_VALUE / 8) {
+            throw new IOException("Too many rows for a columnar file.");
+        }
+        return numRows + 1;
+    }
+
+    private static String value(List<String> values, int column) {
+        return column < values.size() ? values.get(column) : "";
+    }
+
+    private static boolean isMissing(String value) {
+        return value.isEmpty() || "?".equals(value);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long bytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the columnar file.");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes the rows of a columnar file into its mapped columns, then its header.
+     */
+    private static final class ColumnWriter implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int numRows;
+        private final long headerOffset;
+        private final DoubleBuffer weights;
+        private final DoubleBuffer[] numericColumns;
+        private final IntBuffer[] nominalColumns;
+        private final List<MappedByteBuffer> mapped = new ArrayList<>();
+        private int row;
+
+        ColumnWriter(File target, boolean[] nominal, int numRows) throws IOException {
+            this.file = new RandomAccessFile(target, "rw");
+            this.channel = file.getChannel();
+            this.numRows = numRows;
+            file.setLength(0);
+
+            long offset = PREAMBLE_BYTES;
+            weights = map(offset, 8L * numRows).asDoubleBuffer();
+            offset += align(8L * numRows);
+            numericColumns = new DoubleBuffer[nominal.length];
+            nominalColumns = new IntBuffer[nominal.length];
+            for (int i = 0; i < nominal.length; i++) {
+                long bytes = (nominal[i] ? 4L : 8L) * numRows;
+                if (nominal[i]) {
+                    nominalColumns[i] = map(offset, bytes).asIntBuffer();
+                } else {
+                    numericColumns[i] = map(offset, bytes).asDoubleBuffer();
+                }
+                offset += align(bytes);
+            }
+            headerOffset = offset;
+        }
+
+        private ByteBuffer map(long offset, long bytes) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, bytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.add(buffer);
+            return buffer;
+        }
+
+        void set(int attribute, double value) {
+            if (nominalColumns[attribute] != null) {
+                nominalColumns[attribute].put(row, Double.isNaN(value) ? -1 : (int) value);
+            } else {
+                numericColumns[attribute].put(row, value);
+            }
+        }
+
+        void endRow(double weight) {
+            weights.put(row++, weight);
+        }
+
+        void finish(Instances header) throws IOException {
+            if (row != numRows) {
+                throw new IOException("The source changed while it was converted: " + numRows + " rows counted, "
+                        + row + " written.");
+            }
+            for (MappedByteBuffer buffer : mapped) {
+                buffer.force();
+            }
+
+            ByteBuffer headerBytes = ByteBuffer.wrap(header.toString().getBytes("UTF-8"));
+            channel.position(headerOffset);
+            while (headerBytes.hasRemaining()) {
+                channel.write(headerBytes);
+            }
+
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            preamble.putInt(MAGIC).putInt(header.numAttributes()).putInt(header.numAttributes() - 1)
+                    .putInt(numRows).putLong(headerOffset);
+            preamble.flip();
+            channel.position(0);
+            while (preamble.hasRemaining()) {
+                channel.write(preamble);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package weka.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Externalizable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A compact binary form of a {@link weka.classifiers.trees.RandomForest}, or of a
+ * {@link weka.classifiers.meta.Bagging} of {@link weka.classifiers.trees.RandomTree}s.
+ * <p/>
+ * Default Java serialization writes every {@code RandomTree.Tree} as an object, with its class descriptor
+ * references and handles, and recurses once per tree level both ways. Here the header is written once for the
+ * whole forest, as ARFF, and the nodes of each tree are listed breadth first and written column by column as
+ * primitive arrays, without recursion. Trees are read back as {@link RandomTreeWrapper}s, which predict and convert
+ * to PMML exactly as the original trees.
+ * <p/>
+ * Instances are {@link java.io.Externalizable}, so a file written by {@link #write(Bagging, File)} is still read
+ * with an {@link java.io.ObjectInputStream}, and yields a {@link CompactForest} to unwrap with {@link #getForest()}.
+ */
+public class CompactForest implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Version 2 added whether the forest predicts a numeric class, which version 1 left to the header.
+     */
+    private static final int VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Field INFO = TreeReader.field(RandomTree.class, "m_Info");
+    private static final Field TREE = TreeReader.field(RandomTree.class, "m_Tree");
+    private static final Field ZERO_R = TreeReader.field(RandomTree.class, "m_zeroR");
+    private static final Field ATTRIBUTE;
+    private static final Field SPLIT_POINT;
+    private static final Field SUCCESSORS;
+    private static final Field PROP;
+    private static final Field CLASS_DISTRIBUTION;
+    private static final Field DISTRIBUTION;
+
+    static {
+        Class<?> nodeClass;
+        try {
+            nodeClass = Class.forName("weka.classifiers.trees.RandomTree$Tree");
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        ATTRIBUTE = TreeReader.field(nodeClass, "m_Attribute");
+        SPLIT_POINT = TreeReader.field(nodeClass, "m_SplitPoint");
+        SUCCESSORS = TreeReader.field(nodeClass, "m_Successors");
+        PROP = TreeReader.field(nodeClass, "m_Prop");
+        CLASS_DISTRIBUTION = TreeReader.field(nodeClass, "m_ClassDistribution");
+        DISTRIBUTION = TreeReader.field(nodeClass, "m_Distribution");
+    }
+
+    private static final byte HAS_PROP = 1;
+    private static final byte HAS_CLASS_DISTRIBUTION = 2;
+    private static final byte HAS_DISTRIBUTION = 4;
+
+    private Bagging forest;
+
+    /**
+     * Creates an empty instance, to be filled by {@link #readExternal(ObjectInput)}.
+     */
+    public CompactForest() {
+    }
+
+    /**
+     * Wraps a trained forest.
+     *
+     * @param forest A trained {@link weka.classifiers.trees.RandomForest}, or {@link weka.classifiers.meta.Bagging}
+     *               of {@link weka.classifiers.trees.RandomTree}s.
+     */
+    public CompactForest(Bagging forest) {
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(forest);
+        if (trees == null || trees.length == 0) {
+            throw new IllegalArgumentException("The forest has not been trained.");
+        }
+        for (Classifier tree : trees) {
+            if (!(tree instanceof RandomTree)) {
+                throw new IllegalArgumentException("Unsupported tree '" + tree.getClass().getSimpleName() + "'.");
+            }
+        }
+        this.forest = forest;
+    }
+
+    public Bagging getForest() {
+        return forest;
+    }
+
+    /**
+     * Writes a forest in the compact form.
+     *
+     * @param forest The trained forest.
+     * @param file   The file to write.
+     * @throws IOException If it fails to write the file.
+     */
+    public static void write(Bagging forest, File file) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            oos.writeObject(new CompactForest(forest));
+        }
+    }
+
+    /**
+     * Reads a forest written in the compact form.
+     *
+     * @param file The file to read.
+     * @return The forest.
+     * @throws IOException            If it fails to read the file.
+     * @throws ClassNotFoundException If the file does not hold a compact forest.
+     */
+    public static Bagging read(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            Object object = ois.readObject();
+            if (!(object instanceof CompactForest)) {
+                throw new InvalidObjectException("The file " + file + " does not hold a compact forest.");
+            }
+            return ((CompactForest) object).getForest();
+        }
+    }
+
+    /**
+     * Converts a Java serialized forest {@code .model} file to the compact form.
+     *
+     * @param modelFile   The serialized forest.
+     * @param compactFile The file to write.
+     * @throws IOException            If it fails to read or write a file.
+     * @throws ClassNotFoundException If the model file holds an unknown class.
+     */
+    public static void convert(File modelFile, File compactFile) throws IOException, ClassNotFoundException {
+        Object model;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(modelFile), 1 << 16))) {
+            model = ois.readObject();
+        }
+        if (!(model instanceof Bagging)) {
+            throw new InvalidObjectException("The file " + modelFile + " does not hold a RandomForest or Bagging.");
+        }
+        write((Bagging) model, compactFile);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(forest);
+        // Trees that fell back to ZeroR have no header.
+        Instances header = null;
+        for (int t = 0; t < trees.length && header == null; t++) {
+            header = (Instances) TreeReader.get(INFO, trees[t]);
+        }
+
+        out.writeInt(VERSION);
+        writeString(out, forest.getClass().getName());
+        writeString(out, Utils.joinOptions(forest.getOptions()));
+        try {
+            out.writeBoolean(RandomForestUtils.isNumeric(forest));
+        } catch (Exception e) {
+            throw new IOException("Failed to read the forest.", e);
+        }
+        out.writeBoolean(header != null);
+        if (header != null) {
+            writeString(out, new Instances(header, 0).toString());
+            out.writeInt(header.classIndex());
+        }
+        out.writeInt(trees.length);
+        for (Classifier tree : trees) {
+            writeString(out, Utils.joinOptions(((RandomTree) tree).getOptions()));
+            Object zeroR = TreeReader.get(ZERO_R, tree);
+            out.writeBoolean(zeroR != null);
+            if (zeroR != null) {
+                out.writeObject(zeroR);
+            } else {
+                writeNodes(out, TreeReader.get(TREE, tree));
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new InvalidObjectException("Unsupported compact forest version " + version + ".");
+        }
+        try {
+            forest = Class.forName(readString(in)).asSubclass(Bagging.class).getDeclaredConstructor().newInstance();
+            forest.setOptions(Utils.splitOptions(readString(in)));
+            Boolean numeric = version >= 2 ? in.readBoolean() : null;
+            Instances header = null;
+            if (in.readBoolean()) {
+                header = new Instances(new StringReader(readString(in)));
+                header.setClassIndex(in.readInt());
+            }
+            if (numeric == null) {
+                numeric = header != null && header.classAttribute().isNumeric();
+            }
+            RandomForestUtils.setNumeric(forest, numeric);
+
+            Classifier[] trees = new Classifier[in.readInt()];
+            for (int t = 0; t < trees.length; t++) {
+                RandomTreeWrapper tree = new RandomTreeWrapper();
+                tree.setOptions(Utils.splitOptions(readString(in)));
+                if (in.readBoolean()) {
+                    tree.setM_ZeroR((Classifier) in.readObject());
+                } else {
+                    tree.setM_Info(header);
+                    tree.setM_Tree(readNodes(in, tree));
+                }
+                trees[t] = tree;
+            }
+            RandomForestUtils.setBaggingClassifiers(forest, trees);
+        } catch (IOException | ClassNotFoundException e) {
+            throw e;
+        } catch (Exception e) {
+            InvalidObjectException exception = new InvalidObjectException("Failed to read the compact forest.");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Writes the nodes of a tree breadth first, column by column.
+     */
+    private static void writeNodes(ObjectOutput out, Object root) throws IOException {
+        List<Object> nodes = new ArrayList<>();
+        ArrayDeque<Object> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Object node = queue.poll();
+            nodes.add(node);
+            Object[] successors = (Object[]) TreeReader.get(SUCCESSORS, node);
+            if (successors != null) {
+                for (Object successor : successors) {
+                    queue.add(successor);
+                }
+            }
+        }
+
+        int numNodes = nodes.size();
+        out.writeInt(numNodes);
+        for (Object node : nodes) {
+            out.writeInt((Integer) TreeReader.get(ATTRIBUTE, node));
+        }
+        for (Object node : nodes) {
+            out.writeDouble((Double) TreeReader.get(SPLIT_POINT, node));
+        }
+        for (Object node : nodes) {
+            Object[] successors = (Object[]) TreeReader.get(SUCCESSORS, node);
+            out.writeInt(successors == null ? -1 : successors.length);
+        }
+        for (Object node : nodes) {
+            byte flags = 0;
+            if (TreeReader.get(PROP, node) != null) {
+                flags |= HAS_PROP;
+            }
+            if (TreeReader.get(CLASS_DISTRIBUTION, node) != null) {
+                flags |= HAS_CLASS_DISTRIBUTION;
+            }
+            if (TreeReader.get(DISTRIBUTION, node) != null) {
+                flags |= HAS_DISTRIBUTION;
+            }
+            out.writeByte(flags);
+        }
+        for (Field field : new Field[] {PROP, CLASS_DISTRIBUTION, DISTRIBUTION}) {
+            for (Object node : nodes) {
+                double[] values = (double[]) TreeReader.get(field, node);
+                if (values != null) {
+                    out.writeInt(values.length);
+                    for (double value : values) {
+                        out.writeDouble(value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the nodes written by {@link #writeNodes(ObjectOutput, Object)}.
+     *
+     * @return The root node.
+     */
+    private static RandomTreeWrapper.TreeWrapper readNodes(ObjectInput in, RandomTreeWrapper tree) throws IOException {
+        int numNodes = in.readInt();
+        RandomTreeWrapper.TreeWrapper[] nodes = new RandomTreeWrapper.TreeWrapper[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            nodes[i] = tree.new TreeWrapper();
+            nodes[i].setM_Attribute(in.readInt());
+        }
+        for (int i = 0; i < numNodes; i++) {
+            nodes[i].setM_SplitPoint(in.readDouble());
+        }
+        int next = 1;
+        for (int i = 0; i < numNodes; i++) {
+            int numSuccessors = in.readInt();
+            if (numSuccessors >= 0) {
+                if (next + numSuccessors > numNodes) {
+                    throw new InvalidObjectException("Corrupt tree: successors out of range.");
+                }
+                RandomTreeWrapper.TreeWrapper[] successors = new RandomTreeWrapper.TreeWrapper[numSuccessors];
+                System.arraycopy(nodes, next, successors, 0, numSuccessors);
+                nodes[i].setM_Successors(successors);
+                next += numSuccessors;
+            }
+        }
+        byte[] flags = new byte[numNodes];
+        in.readFully(flags);
+        for (int i = 0; i < numNodes; i++) {
+            if ((flags[i] & HAS_PROP) != 0) {
+                nodes[i].setM_Prop(readDoubles(in));
+            }
+        }
+        for (int i = 0; i < numNodes; i++) {
+            if ((flags[i] & HAS_CLASS_DISTRIBUTION) != 0) {
+                nodes[i].setM_ClassDistribution(readDoubles(in));
+            }
+        }
+        for (int i = 0; i < numNodes; i++) {
+            if ((flags[i] & HAS_DISTRIBUTION) != 0) {
+                nodes[i].setM_Distribution(readDoubles(in));
+            }
+        }
+        return nodes[0];
+    }
+
+    private static double[] readDoubles(ObjectInput in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+
+    private static void writeString(ObjectOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,258 @@
+package weka.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+/**
+ * Trains a {@link weka.classifiers.trees.RandomForest} of {@link RandomTreeWrapper}s in parallel over a single
+ * shared dataset.
+ * <p/>
+ * {@link weka.classifiers.meta.Bagging} gives each tree its own resampled copy of the data. Here, the bootstrap
+ * sample of a tree is only an array with the number of times each instance was drawn, and the tree trains on a
+ * weighted view of the shared, read-only dataset (see {@link RandomTreeWrapper#buildClassifier(Instances, int[])}),
+ * so memory does not grow with the number of trees times the dataset size.
+ * <p/>
+ * Every tree gets its own seed, drawn from the forest's seed before training starts, and draws its sample from it,
+ * so the forest is the same whatever the number of threads. Instances are drawn with probabilities proportional to
+ * their weights, as {@link Instances#resampleWithWeights(java.util.Random)} does. The bags are recorded as in-bag
+ * flags, so out-of-bag evaluation works as for a forest trained with the out-of-bag error calculated.
+ */
+public class ParallelRandomForestBuilder {
+
+    private int m_NumTrees = 100;
+    private int m_NumFeatures;
+    private int m_MaxDepth;
+    private double m_MinNum = 1;
+    private int m_BagSizePercent = 100;
+    private int m_Seed = 1;
+    private int m_NumThreads = Runtime.getRuntime().availableProcessors();
+    private boolean m_ReuseScratchBuffers;
+
+    public int getNumTrees() {
+        return m_NumTrees;
+    }
+
+    public void setNumTrees(int numTrees) {
+        this.m_NumTrees = numTrees;
+    }
+
+    public int getNumFeatures() {
+        return m_NumFeatures;
+    }
+
+    /**
+     * Sets the number of attributes randomly investigated at each node; {@code 0} uses
+     * {@code log2(numAttributes - 1) + 1}, as {@link weka.classifiers.trees.RandomTree} does.
+     *
+     * @param numFeatures The number of attributes.
+     */
+    public void setNumFeatures(int numFeatures) {
+        this.m_NumFeatures = numFeatures;
+    }
+
+    public int getMaxDepth() {
+        return m_MaxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.m_MaxDepth = maxDepth;
+    }
+
+    public double getMinNum() {
+        return m_MinNum;
+    }
+
+    public void setMinNum(double minNum) {
+        this.m_MinNum = minNum;
+    }
+
+    public int getBagSizePercent() {
+        return m_BagSizePercent;
+    }
+
+    public void setBagSizePercent(int bagSizePercent) {
+        this.m_BagSizePercent = bagSizePercent;
+    }
+
+    public int getSeed() {
+        return m_Seed;
+    }
+
+    public void setSeed(int seed) {
+        this.m_Seed = seed;
+    }
+
+    public int getNumThreads() {
+        return m_NumThreads;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.m_NumThreads = numThreads;
+    }
+
+    public boolean getReuseScratchBuffers() {
+        return m_ReuseScratchBuffers;
+    }
+
+    /**
+     * Sets whether the trees reuse per-thread scratch buffers while they are built, see
+     * {@link RandomTreeWrapper#setReuseScratchBuffers(boolean)}.
+     *
+     * @param reuseScratchBuffers {@code true} to reuse the scratch buffers.
+     */
+    public void setReuseScratchBuffers(boolean reuseScratchBuffers) {
+        this.m_ReuseScratchBuffers = reuseScratchBuffers;
+    }
+
+    /**
+     * Trains a forest.
+     *
+     * @param data The training data. Instances with a missing class should be removed beforehand, so that the
+     *             in-bag flags line up with the data.
+     * @return The trained forest.
+     * @throws Exception If a tree fails to train.
+     */
+    public RandomForest build(final Instances data) throws Exception {
+        double[] weights = new double[data.numInstances()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = data.instance(i).weight();
+        }
+        return build(weights, data.classAttribute().isNumeric(), true, new Trainer() {
+            @Override
+            public void train(RandomTreeWrapper tree, int[] counts) throws Exception {
+                tree.buildClassifier(data, counts);
+            }
+        });
+    }
+
+    /**
+     * Trains a forest out of core, on memory-mapped columnar data (see
+     * {@link RandomTreeWrapper#buildClassifier(ColumnarData, int[])}). The heap holds the bootstrap counts of the
+     * trees being trained, not the data. No in-bag flags are recorded, as they would take a byte per tree and row.
+     *
+     * @param data The columnar training data.
+     * @return The trained forest.
+     * @throws Exception If a tree fails to train.
+     */
+    public RandomForest build(final ColumnarData data) throws Exception {
+        double[] weights = new double[data.numRows()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = data.weight(i);
+        }
+        return build(weights, data.getHeader().classAttribute().isNumeric(), false, new Trainer() {
+            @Override
+            public void train(RandomTreeWrapper tree, int[] counts) throws Exception {
+                tree.buildClassifier(data, counts);
+            }
+        });
+    }
+
+    private RandomForest build(double[] weights, boolean numeric, boolean recordInBag, final Trainer trainer)
+            throws Exception {
+        Random random = new Random(m_Seed);
+        int[] seeds = new int[m_NumTrees];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextInt();
+        }
+
+        final double[] cumulativeWeights = new double[weights.length];
+        double totalWeight = 0;
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            totalWeight += weights[i];
+            cumulativeWeights[i] = totalWeight;
+        }
+        final int bagSize = (int) ((long) weights.length * m_BagSizePercent / 100);
+
+        final RandomTreeWrapper[] trees = new RandomTreeWrapper[m_NumTrees];
+        final boolean[][] inBag = recordInBag ? new boolean[m_NumTrees][] : null;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(m_NumThreads, m_NumTrees)));
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < m_NumTrees; t++) {
+                final int tree = t;
+                final int seed = seeds[t];
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int[] counts = bootstrap(cumulativeWeights, bagSize, new Random(seed));
+                        RandomTreeWrapper randomTree = new RandomTreeWrapper();
+                        randomTree.setKValue(m_NumFeatures);
+                        randomTree.setMaxDepth(m_MaxDepth);
+                        randomTree.setMinNum(m_MinNum);
+                        randomTree.setSeed(seed);
+                        randomTree.setReuseScratchBuffers(m_ReuseScratchBuffers);
+                        trainer.train(randomTree, counts);
+                        trees[tree] = randomTree;
+                        if (inBag != null) {
+                            boolean[] drawn = new boolean[counts.length];
+                            for (int i = 0; i < counts.length; i++) {
+                                drawn[i] = counts[i] > 0;
+                            }
+                            inBag[tree] = drawn;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        RandomForest forest = new RandomForest();
+        forest.setSeed(m_Seed);
+        forest.setNumFeatures(m_NumFeatures);
+        forest.setMaxDepth(m_MaxDepth);
+        forest.setBagSizePercent(m_BagSizePercent);
+        forest.setNumIterations(m_NumTrees);
+        RandomForestUtils.setBaggingClassifiers(forest, trees);
+        RandomForestUtils.setNumeric(forest, numeric);
+        if (inBag != null) {
+            RandomForestUtils.setInBag(forest, inBag);
+        }
+        return forest;
+    }
+
+    /**
+     * Draws a bootstrap sample, with probabilities proportional to the instance weights.
+     *
+     * @param cumulativeWeights The cumulative weights of the instances.
+     * @param bagSize           The number of draws.
+     * @param random            The random number generator of the tree.
+     * @return The number of times each instance was drawn.
+     */
+    static int[] bootstrap(double[] cumulativeWeights, int bagSize, Random random) {
+        int[] counts = new int[cumulativeWeights.length];
+        if (counts.length == 0) {
+            return counts;
+        }
+        double totalWeight = cumulativeWeights[cumulativeWeights.length - 1];
+        for (int i = 0; i < bagSize; i++) {
+            int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+            index = index < 0 ? -index - 1 : index + 1;
+            counts[Math.min(index, counts.length - 1)]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Trains one tree on its bootstrap sample.
+     */
+    private interface Trainer {
+
+        void train(RandomTreeWrapper tree, int[] counts) throws Exception;
+    }
+}
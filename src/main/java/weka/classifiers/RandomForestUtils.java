@@ -21,6 +21,8 @@
  */
 package weka.classifiers;
 
+import java.lang.reflect.Field;
+import weka.classifiers.meta.Bagging;
 import weka.classifiers.trees.RandomTree;
 
 /**
@@ -50,4 +52,71 @@ public final class RandomForestUtils {
     public static void setupBaggingClassifiers(IteratedSingleClassifierEnhancer bagging) throws Exception {
         bagging.m_Classifiers = AbstractClassifier.makeCopies(bagging.m_Classifier, bagging.m_NumIterations);
     }
+
+    /**
+     * Replaces the classifiers in a bagging, e.g. by a subset of them.
+     *
+     * @param bagging     The bag for which to set the classifiers.
+     * @param classifiers The new classifiers.
+     */
+    public static void setBaggingClassifiers(IteratedSingleClassifierEnhancer bagging, Classifier[] classifiers) {
+        bagging.m_Classifiers = classifiers;
+        bagging.m_NumIterations = classifiers.length;
+    }
+
+    /**
+     * Tells whether a bagging averages numeric predictions, as Weka decides when training it.
+     *
+     * @param bagging The bagging.
+     * @return {@code true} if the bagging was trained on a numeric class.
+     * @throws Exception If it fails to read the bagging.
+     */
+    public static boolean isNumeric(Bagging bagging) throws Exception {
+        Field field = Bagging.class.getDeclaredField("m_Numeric");
+        field.setAccessible(true);
+        return field.getBoolean(bagging);
+    }
+
+    /**
+     * Sets whether a bagging averages numeric predictions, which Weka only sets when training it. A bagging whose
+     * classifiers were set with {@link #setBaggingClassifiers} predicts a numeric class only once this is set.
+     *
+     * @param bagging The bagging.
+     * @param numeric {@code true} if the classifiers predict a numeric class.
+     * @throws Exception If it fails to update the bagging.
+     */
+    public static void setNumeric(Bagging bagging, boolean numeric) throws Exception {
+        Field field = Bagging.class.getDeclaredField("m_Numeric");
+        field.setAccessible(true);
+        field.setBoolean(bagging, numeric);
+    }
+
+    /**
+     * Retrieves which training instances went into the bag of each classifier.
+     * <p/>
+     * Weka only keeps this information when the out-of-bag error was calculated.
+     *
+     * @param bagging The trained bagging.
+     * @return One array per classifier flagging the in-bag training instances, or {@code null} if not available.
+     * @throws Exception If it fails to read the bagging.
+     */
+    public static boolean[][] getInBag(Bagging bagging) throws Exception {
+        Field field = Bagging.class.getDeclaredField("m_inBag");
+        field.setAccessible(true);
+        return (boolean[][]) field.get(bagging);
+    }
+
+    /**
+     * Sets which training instances went into the bag of each classifier, as Weka does when calculating the
+     * out-of-bag error.
+     *
+     * @param bagging The bagging.
+     * @param inBag   One array per classifier flagging the in-bag training instances.
+     * @throws Exception If it fails to update the bagging.
+     */
+    public static void setInBag(Bagging bagging, boolean[][] inBag) throws Exception {
+        Field field = Bagging.class.getDeclaredField("m_inBag");
+        field.setAccessible(true);
+        field.set(bagging, inBag);
+    }
 }
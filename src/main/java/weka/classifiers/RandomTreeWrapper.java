@@ -2,12 +2,48 @@ package weka.classifiers;
 
 import java.util.Random;
 import weka.classifiers.trees.RandomTree;
+import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
 
 public class RandomTreeWrapper extends RandomTree {
 
+    private static final double[] NO_VALUES = new double[0];
+    private static final double[][] NO_DISTRIBUTIONS = new double[0][0];
+
+    /**
+     * The scratch buffers of the trees built on each thread, when they are reused.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private boolean m_ReuseScratchBuffers;
+
+    /**
+     * Tells whether node construction reuses per-thread scratch buffers.
+     *
+     * @return {@code true} if the scratch buffers are reused.
+     */
+    public boolean getReuseScratchBuffers() {
+        return m_ReuseScratchBuffers;
+    }
+
+    /**
+     * Sets whether node construction reuses per-thread scratch buffers instead of allocating, for every node, the
+     * holders of the candidate splits and, for numeric classes, two arrays as wide as the header. The trees built
+     * are the same either way.
+     *
+     * @param reuseScratchBuffers {@code true} to reuse the scratch buffers.
+     */
+    public void setReuseScratchBuffers(boolean reuseScratchBuffers) {
+        this.m_ReuseScratchBuffers = reuseScratchBuffers;
+    }
+
     /**
     * Builds classifier.
     * 
@@ -104,6 +140,116 @@ public class RandomTreeWrapper extends RandomTree {
      }
    }
 
+    /**
+     * Builds the tree on a bootstrap sample of a shared dataset, given as the number of times each instance was
+     * drawn.
+     * <p/>
+     * The sample is a view of {@code data}: each drawn instance is a shallow copy that shares its attribute values
+     * with the original and is weighted by its draw count, so the dataset is neither copied nor modified and can be
+     * shared by trees built concurrently.
+     *
+     * @param data   the shared data to train with
+     * @param counts the number of times each instance of {@code data} was drawn
+     * @throws Exception if something goes wrong or the data doesn't fit
+     */
+    public void buildClassifier(Instances data, int[] counts) throws Exception {
+        int size = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                size++;
+            }
+        }
+        Instances bag = new Instances(data, size);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                bag.add(data.instance(i));
+                bag.lastInstance().setWeight(counts[i]);
+            }
+        }
+        buildClassifier(bag);
+    }
+
+    /**
+     * Builds the tree out of core, on a bootstrap sample of memory-mapped columnar data given as the number of times
+     * each row was drawn.
+     * <p/>
+     * Nodes find their split through the columns of the attributes they try, and pass down arrays of row indices and
+     * weights instead of {@link weka.core.Instances}, so the heap only holds those arrays and the data itself can be
+     * much larger than the heap. Splits are chosen as {@link weka.classifiers.trees.RandomTree} chooses them, missing
+     * values included, and rows are weighted and the random number generator seeded as in
+     * {@link #buildClassifier(Instances, int[])}, so both give the same tree; only nominal classes are supported,
+     * rows with a missing class are skipped, and no data is held out for backfitting.
+     *
+     * @param data   the columnar data to train with
+     * @param counts the number of times each row was drawn, or {@code null} to use every row once
+     * @throws Exception if something goes wrong or the data doesn't fit
+     */
+    public void buildClassifier(ColumnarData data, int[] counts) throws Exception {
+        Instances header = data.getHeader();
+        if (!header.classAttribute().isNominal()) {
+            throw new IllegalArgumentException("Out-of-core training only supports a nominal class.");
+        }
+        if (header.numAttributes() == 1) {
+            throw new IllegalArgumentException("Cannot build model, only class attribute present in data!");
+        }
+
+        // Make sure K value is in range
+        if (m_KValue > header.numAttributes() - 1) {
+            m_KValue = header.numAttributes() - 1;
+        }
+        if (m_KValue < 1) {
+            m_KValue = (int) Utils.log2(header.numAttributes() - 1) + 1;
+        }
+        m_zeroR = null;
+
+        int size = 0;
+        for (int row = 0; row < data.numRows(); row++) {
+            if ((counts == null || counts[row] > 0) && data.classValue(row) >= 0) {
+                size++;
+            }
+        }
+        int[] rows = new int[size];
+        double[] weights = new double[size];
+        double[] classProbs = new double[header.numClasses()];
+        for (int row = 0, i = 0; row < data.numRows(); row++) {
+            if ((counts == null || counts[row] > 0) && data.classValue(row) >= 0) {
+                rows[i] = row;
+                // A drawn row is weighted by its draw count alone, as the in-memory bag is.
+                weights[i] = counts == null ? data.weight(row) : counts[row];
+                classProbs[data.classValue(row)] += weights[i];
+                i++;
+            }
+        }
+
+        // Create the attribute indices window
+        int[] attIndicesWindow = new int[header.numAttributes() - 1];
+        int j = 0;
+        for (int i = 0; i < attIndicesWindow.length; i++) {
+            if (j == header.classIndex()) {
+                j++; // do not include the class
+            }
+            attIndicesWindow[i] = j++;
+        }
+
+        m_Tree = new TreeWrapper();
+        m_Info = new Instances(header, 0);
+        Random random = getRandomNumberGenerator(data, rows, m_randomSeed);
+        ((TreeWrapper) m_Tree).buildTree(data, rows, weights, classProbs, attIndicesWindow, random, 0,
+            new ColumnarScratch(rows.length));
+    }
+
+    /**
+     * Creates the random number generator that {@link weka.core.Instances#getRandomNumberGenerator(long)} would
+     * create for the given rows.
+     */
+    private static Random getRandomNumberGenerator(ColumnarData data, int[] rows, long seed) {
+        Random random = new Random(seed);
+        if (rows.length > 0) {
+            random.setSeed(data.instance(rows[random.nextInt(rows.length)]).toStringNoWeight().hashCode() + seed);
+        }
+        return random;
+    }
+
     public Instances getM_Info() {
         return m_Info;
     }
@@ -119,6 +265,10 @@ public class RandomTreeWrapper extends RandomTree {
     public void setM_Info(Instances m_Info) {
         this.m_Info = m_Info;
     }
+
+    public void setM_ZeroR(Classifier m_zeroR) {
+        this.m_zeroR = m_zeroR;
+    }
     
     
 
@@ -268,16 +418,29 @@ public class RandomTreeWrapper extends RandomTree {
              int bestIndex = 0;
 
              // Handles to get arrays out of distribution method
-             double[][] props = new double[1][0];
-             double[][][] dists = new double[1][0][0];
-             double[][] totalSubsetWeights = new double[data.numAttributes()][0];
+             double[][] props;
+             double[][][] dists;
+             double[][] totalSubsetWeights;
+             double[] tempNumericVals;
+             if (m_ReuseScratchBuffers) {
+               Scratch scratch = SCRATCH.get();
+               scratch.reset(data.numAttributes());
+               props = scratch.props;
+               dists = scratch.dists;
+               totalSubsetWeights = scratch.totalSubsetWeights;
+               tempNumericVals = scratch.tempNumericVals;
+             } else {
+               props = new double[1][0];
+               dists = new double[1][0][0];
+               totalSubsetWeights = new double[data.numAttributes()][0];
+               tempNumericVals = new double[data.numAttributes()];
+             }
 
              // Investigate K random attributes
              int attIndex = 0;
              int windowSize = attIndicesWindow.length;
              int k = m_KValue;
              boolean gainFound = false;
-             double[] tempNumericVals = new double[data.numAttributes()];
              while ((windowSize > 0) && (k-- > 0 || !gainFound)) {
 
                int chosenIndex = random.nextInt(windowSize);
@@ -288,6 +451,12 @@ public class RandomTreeWrapper extends RandomTree {
                attIndicesWindow[windowSize - 1] = attIndex;
                windowSize--;
 
+               if (m_ReuseScratchBuffers) {
+                 // Clear what an earlier node left for this attribute
+                 totalSubsetWeights[attIndex] = NO_VALUES;
+                 tempNumericVals[attIndex] = 0;
+               }
+
                double currSplit = data.classAttribute().isNominal() ? distribution(
                  props, dists, attIndex, data) : numericDistribution(props, dists,
                  attIndex, totalSubsetWeights, data, tempNumericVals);
@@ -352,6 +521,409 @@ public class RandomTreeWrapper extends RandomTree {
                }
              }
            }
+
+        /**
+        * Recursively generates a tree from columnar data, as
+        * {@link #buildTree(Instances, double[], int[], double, Random, int, double)} does from instances.
+        *
+        * @param data the columnar data
+        * @param rows the rows reaching this node
+        * @param weights the weights of these rows at this node
+        * @param classProbs the class distribution
+        * @param attIndicesWindow the attribute window to choose attributes from
+        * @param random random number generator for choosing random attributes
+        * @param depth the current depth
+        * @param scratch the buffers shared by the nodes of the tree, as large as the rows reaching the root
+        */
+        void buildTree(ColumnarData data, int[] rows, double[] weights, double[] classProbs,
+          int[] attIndicesWindow, Random random, int depth, ColumnarScratch scratch) {
+
+             // Make leaf if there are no training instances
+             if (rows.length == 0) {
+               m_Attribute = -1;
+               m_ClassDistribution = null;
+               m_Prop = null;
+               return;
+             }
+
+             // Check if node doesn't contain enough instances or is pure
+             // or maximum depth reached
+             double totalWeight = Utils.sum(classProbs);
+             if (totalWeight < 2 * m_MinNum
+               || Utils.eq(classProbs[Utils.maxIndex(classProbs)], totalWeight)
+               || ((getMaxDepth() > 0) && (depth >= getMaxDepth()))) {
+
+               // Make leaf
+               m_Attribute = -1;
+               m_ClassDistribution = classProbs.clone();
+               m_Prop = null;
+               return;
+             }
+
+             double val = -Double.MAX_VALUE;
+             double split = -Double.MAX_VALUE;
+             double[][] bestDists = null;
+             double[] bestProps = null;
+             int bestIndex = 0;
+
+             // Handles to get arrays out of distribution method
+             double[][] props = new double[1][0];
+             double[][][] dists = new double[1][0][0];
+
+             // Investigate K random attributes
+             int attIndex = 0;
+             int windowSize = attIndicesWindow.length;
+             int k = m_KValue;
+             boolean gainFound = false;
+             while ((windowSize > 0) && (k-- > 0 || !gainFound)) {
+
+               int chosenIndex = random.nextInt(windowSize);
+               attIndex = attIndicesWindow[chosenIndex];
+
+               // shift chosen attIndex out of window
+               attIndicesWindow[chosenIndex] = attIndicesWindow[windowSize - 1];
+               attIndicesWindow[windowSize - 1] = attIndex;
+               windowSize--;
+
+               double currSplit = distribution(props, dists, attIndex, data, rows, weights, scratch);
+               double currVal = gain(dists[0], priorVal(dists[0]));
+
+               if (Utils.gr(currVal, 0)) {
+                 gainFound = true;
+               }
+
+               if ((currVal > val) || ((currVal == val) && (attIndex < bestIndex))) {
+                 val = currVal;
+                 bestIndex = attIndex;
+                 split = currSplit;
+                 bestProps = props[0];
+                 bestDists = dists[0];
+               }
+             }
+
+             // Find best attribute
+             m_Attribute = bestIndex;
+
+             // Any useful split found?
+             if (Utils.gr(val, 0)) {
+
+               // Build subtrees
+               m_SplitPoint = split;
+               m_Prop = bestProps;
+               int[][] subsetRows = new int[bestDists.length][];
+               double[][] subsetWeights = new double[bestDists.length][];
+               splitRows(data, rows, weights, subsetRows, subsetWeights, scratch);
+               // The rows of this node are no longer needed; the caller dropped its reference before the call.
+               rows = null;
+               weights = null;
+               m_Successors = new TreeWrapper[bestDists.length];
+
+               for (int i = 0; i < bestDists.length; i++) {
+                 m_Successors[i] = new TreeWrapper();
+                 // Hand the subset over, so that it can be collected as soon as the successor is done with it.
+                 int[] successorRows = subsetRows[i];
+                 double[] successorWeights = subsetWeights[i];
+                 subsetRows[i] = null;
+                 subsetWeights[i] = null;
+                 ((TreeWrapper)m_Successors[i]).buildTree(data, successorRows, successorWeights, bestDists[i],
+                   attIndicesWindow, random, depth + 1, scratch);
+               }
+
+               // If all successors are non-empty, we don't need to store the class
+               // distribution
+               boolean emptySuccessor = false;
+               for (int i = 0; i < m_Successors.length; i++) {
+                 if (((TreeWrapper)m_Successors[i]).m_ClassDistribution == null) {
+                   emptySuccessor = true;
+                   break;
+                 }
+               }
+               if (emptySuccessor) {
+                 m_ClassDistribution = classProbs.clone();
+               }
+             } else {
+
+               // Make leaf
+               m_Attribute = -1;
+               m_ClassDistribution = classProbs.clone();
+             }
+           }
+
+        /**
+        * Computes the class distribution of each successor of a split on an attribute, and the split point of a
+        * numeric attribute, from columnar data. Rows with a missing value are spread over the successors by their
+        * proportions.
+        *
+        * @param props where to put the proportions of the successors
+        * @param dists where to put the class distributions of the successors
+        * @param att the attribute to split on
+        * @param data the columnar data
+        * @param rows the rows reaching the node
+        * @param weights the weights of these rows
+        * @param scratch the buffers to read the values and sort them in
+        * @return the split point, NaN for a nominal attribute
+        */
+        double distribution(double[][] props, double[][][] dists, int att, ColumnarData data,
+          int[] rows, double[] weights, ColumnarScratch scratch) {
+
+             double splitPoint = Double.NaN;
+             Attribute attribute = data.getHeader().attribute(att);
+             int numClasses = data.getHeader().numClasses();
+             double[][] dist;
+             int[] order;
+             double[] values = scratch.values;
+             for (int i = 0; i < rows.length; i++) {
+               values[i] = data.value(rows[i], att);
+             }
+             int indexOfFirstMissingValue = rows.length;
+
+             if (attribute.isNominal()) {
+
+               // For nominal attributes
+               order = null;
+               dist = new double[attribute.numValues()][numClasses];
+               for (int i = 0; i < rows.length; i++) {
+                 if (Double.isNaN(values[i])) {
+                   continue;
+                 }
+                 dist[(int) values[i]][data.classValue(rows[i])] += weights[i];
+               }
+             } else {
+
+               // For numeric attributes, in increasing order, missing values last
+               order = scratch.sort(rows.length);
+               double[][] currDist = new double[2][numClasses];
+               dist = new double[2][numClasses];
+
+               // Move all instances into second subset
+               for (int j = 0; j < rows.length; j++) {
+                 if (Double.isNaN(values[order[j]])) {
+                   indexOfFirstMissingValue = j;
+                   break;
+                 }
+                 currDist[1][data.classValue(rows[order[j]])] += weights[order[j]];
+               }
+
+               // Value before splitting
+               double priorVal = priorVal(currDist);
+
+               // Save initial distribution
+               for (int j = 0; j < currDist.length; j++) {
+                 System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+               }
+
+               // Try all possible split points
+               double currSplit = values[order[0]];
+               double currVal, bestVal = -Double.MAX_VALUE;
+               for (int i = 0; i < indexOfFirstMissingValue; i++) {
+                 double attVal = values[order[i]];
+
+                 // Can we place a sensible split point here?
+                 if (attVal > currSplit) {
+
+                   // Compute gain for split point
+                   currVal = gain(currDist, priorVal);
+
+                   // Is the current split point the best point so far?
+                   if (currVal > bestVal) {
+
+                     // Store value of current point
+                     bestVal = currVal;
+
+                     // Save split point
+                     splitPoint = (currSplit + attVal) / 2.0;
+
+                     // Check for numeric precision problems
+                     if (splitPoint <= currSplit) {
+                       splitPoint = attVal;
+                     }
+
+                     // Save distribution
+                     for (int j = 0; j < currDist.length; j++) {
+                       System.arraycopy(currDist[j], 0, dist[j], 0, dist[j].length);
+                     }
+                   }
+
+                   // Update value
+                   currSplit = attVal;
+                 }
+
+                 // Shift over the weight
+                 int classVal = data.classValue(rows[order[i]]);
+                 currDist[0][classVal] += weights[order[i]];
+                 currDist[1][classVal] -= weights[order[i]];
+               }
+             }
+
+             // Compute weights for subsets
+             props[0] = new double[dist.length];
+             for (int k = 0; k < props[0].length; k++) {
+               props[0][k] = Utils.sum(dist[k]);
+             }
+             if (Utils.eq(Utils.sum(props[0]), 0)) {
+               for (int k = 0; k < props[0].length; k++) {
+                 props[0][k] = 1.0 / props[0].length;
+               }
+             } else {
+               Utils.normalize(props[0]);
+             }
+
+             // Distribute weights for instances with missing values
+             for (int i = 0; i < rows.length; i++) {
+               int index = order == null ? i : order[i];
+               if (order != null && i < indexOfFirstMissingValue) {
+                 continue;
+               }
+               if (!Double.isNaN(values[index])) {
+                 continue;
+               }
+               for (int j = 0; j < dist.length; j++) {
+                 dist[j][data.classValue(rows[index])] += props[0][j] * weights[index];
+               }
+             }
+
+             // Return distribution and split point
+             dists[0] = dist;
+             return splitPoint;
+           }
+
+        /**
+        * Splits the rows of this node between its successors; rows with a missing value go to every successor,
+        * weighted by its proportion.
+        *
+        * @param data the columnar data
+        * @param rows the rows reaching this node
+        * @param weights the weights of these rows
+        * @param subsetRows where to put the rows of each successor
+        * @param subsetWeights where to put the weights of these rows
+        * @param scratch the buffers to note the successor of each row in
+        */
+        private void splitRows(ColumnarData data, int[] rows, double[] weights, int[][] subsetRows,
+          double[][] subsetWeights, ColumnarScratch scratch) {
+
+             boolean nominal = data.getHeader().attribute(m_Attribute).isNominal();
+             int[] successors = scratch.order;
+             int[] sizes = new int[m_Prop.length];
+             for (int i = 0; i < rows.length; i++) {
+               double value = data.value(rows[i], m_Attribute);
+               if (Double.isNaN(value)) {
+                 successors[i] = -1;
+                 for (int k = 0; k < m_Prop.length; k++) {
+                   if (m_Prop[k] > 0) {
+                     sizes[k]++;
+                   }
+                 }
+               } else {
+                 successors[i] = nominal ? (int) value : (value < m_SplitPoint) ? 0 : 1;
+                 sizes[successors[i]]++;
+               }
+             }
+
+             for (int k = 0; k < m_Prop.length; k++) {
+               subsetRows[k] = new int[sizes[k]];
+               subsetWeights[k] = new double[sizes[k]];
+               sizes[k] = 0;
+             }
+             for (int i = 0; i < rows.length; i++) {
+               if (successors[i] >= 0) {
+                 int k = successors[i];
+                 subsetRows[k][sizes[k]] = rows[i];
+                 subsetWeights[k][sizes[k]++] = weights[i];
+                 continue;
+               }
+               for (int k = 0; k < m_Prop.length; k++) {
+                 if (m_Prop[k] > 0) {
+                   subsetRows[k][sizes[k]] = rows[i];
+                   subsetWeights[k][sizes[k]++] = m_Prop[k] * weights[i];
+                 }
+               }
+             }
+           }
+    }
+
+    /**
+     * The buffers a tree trained on columnar data reads and sorts the values of a candidate attribute in. A node
+     * never has more rows than the root, and is done with the buffers before its successors are built, so one set
+     * sized for the root serves every node of the tree.
+     */
+    static final class ColumnarScratch {
+
+        final double[] values;
+        final int[] order;
+        private final int[] merge;
+
+        ColumnarScratch(int size) {
+            this.values = new double[size];
+            this.order = new int[size];
+            this.merge = new int[size];
+        }
+
+        /**
+         * Sorts the indices of the first {@code length} values by increasing value, missing values last, keeping
+         * the order of equal values.
+         *
+         * @return {@link #order}, whose first {@code length} elements are the sorted indices.
+         */
+        int[] sort(int length) {
+            int[] from = order;
+            int[] to = merge;
+            for (int i = 0; i < length; i++) {
+                from[i] = i;
+            }
+            // Bottom-up merge sort, so that no buffer is allocated and nothing recurses.
+            for (int width = 1; width < length; width *= 2) {
+                for (int left = 0; left < length; left += 2 * width) {
+                    int middle = Math.min(left + width, length);
+                    int right = Math.min(left + 2 * width, length);
+                    int i = left;
+                    int j = middle;
+                    for (int k = left; k < right; k++) {
+                        if (i < middle && (j >= right || !before(from[j], from[i]))) {
+                            to[k] = from[i++];
+                        } else {
+                            to[k] = from[j++];
+                        }
+                    }
+                }
+                int[] swap = from;
+                from = to;
+                to = swap;
+            }
+            if (from != order) {
+                System.arraycopy(from, 0, order, 0, length);
+            }
+            return order;
+        }
+
+        private boolean before(int index1, int index2) {
+            double value1 = values[index1];
+            double value2 = values[index2];
+            return Double.isNaN(value2) ? !Double.isNaN(value1) : value1 < value2;
+        }
+    }
+
+    /**
+     * The scratch buffers of node construction. They only live while a node chooses its split: what the chosen
+     * split needs is taken out of them before the successors are built, so the nodes of a tree, and the trees built
+     * one after the other on a thread, can all share one set.
+     */
+    private static final class Scratch {
+
+        final double[][] props = new double[1][];
+        final double[][][] dists = new double[1][][];
+        double[][] totalSubsetWeights = new double[0][];
+        double[] tempNumericVals = NO_VALUES;
+
+        /**
+         * Prepares the buffers for a node, as freshly allocated buffers would be.
+         */
+        void reset(int numAttributes) {
+            props[0] = NO_VALUES;
+            dists[0] = NO_DISTRIBUTIONS;
+            if (tempNumericVals.length != numAttributes) {
+                totalSubsetWeights = new double[numAttributes][];
+                tempNumericVals = new double[numAttributes];
+            }
+        }
     }
-    
 }
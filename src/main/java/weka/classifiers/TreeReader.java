@@ -0,0 +1,550 @@
+package weka.classifiers;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import weka.classifiers.rules.ZeroR;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.REPTree;
+import weka.classifiers.trees.RandomTree;
+import weka.classifiers.trees.j48.BinC45Split;
+import weka.classifiers.trees.j48.C45Split;
+import weka.classifiers.trees.j48.ClassifierSplitModel;
+import weka.classifiers.trees.j48.ClassifierTree;
+import weka.classifiers.trees.j48.Distribution;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Reads the nodes of a trained Weka decision tree through a single interface.
+ * <p/>
+ * {@link weka.classifiers.trees.RandomTree}, {@link weka.classifiers.trees.REPTree} and
+ * {@link weka.classifiers.trees.J48} keep their nodes in different, mostly protected, structures. A reader exposes
+ * the same view of all of them, so that every tree is walked by the same extraction code: a node either is a leaf
+ * or splits on one attribute, with one successor per value of a nominal attribute or two successors around a
+ * split point for a numeric one.
+ * <p/>
+ * Nodes are opaque objects only meaningful to the reader that returned them.
+ */
+public abstract class TreeReader {
+
+    /**
+     * The attribute index returned for leaves.
+     */
+    public static final int LEAF = -1;
+
+    /**
+     * Creates a reader for the given tree.
+     *
+     * @param tree A trained {@link RandomTree}, {@link REPTree} or {@link J48}.
+     * @return A new reader.
+     * @throws Exception If the tree is not supported or cannot be read.
+     */
+    public static TreeReader forTree(Classifier tree) throws Exception {
+        if (tree instanceof RandomTree) {
+            return new RandomTreeReader((RandomTree) tree);
+        } else if (tree instanceof REPTree) {
+            return new REPTreeReader((REPTree) tree);
+        } else if (tree instanceof J48) {
+            return new J48Reader((J48) tree);
+        }
+        throw new IllegalArgumentException("Unsupported tree '" + tree.getClass().getSimpleName() + "'.");
+    }
+
+    /**
+     * Retrieves the header the tree was trained with.
+     *
+     * @return The header {@link weka.core.Instances}.
+     */
+    public abstract Instances getHeader();
+
+    /**
+     * Retrieves the root node.
+     *
+     * @return The root node, or {@code null} if the tree was replaced by a constant model, in which case
+     * {@link #getConstantDistribution()} holds its prediction.
+     */
+    public abstract Object getRoot();
+
+    /**
+     * Retrieves the class distribution of a tree that has no root.
+     *
+     * @return The normalized class distribution predicted for every instance.
+     */
+    public double[] getConstantDistribution() {
+        return null;
+    }
+
+    /**
+     * Retrieves the split attribute of a node.
+     *
+     * @param node The node.
+     * @return The index of the split attribute, or {@link #LEAF}.
+     */
+    public abstract int getAttribute(Object node);
+
+    /**
+     * Retrieves the split point of a numeric split.
+     *
+     * @param node The node.
+     * @return The split point.
+     */
+    public abstract double getSplitPoint(Object node);
+
+    /**
+     * Tells whether the first successor of a numeric split takes values equal to the split point.
+     *
+     * @return {@code true} if values lower or equal to the split point go to the first successor, {@code false}
+     * if only lower values do.
+     */
+    public boolean isSplitInclusive() {
+        return false;
+    }
+
+    /**
+     * Retrieves the successors of a split node.
+     *
+     * @param node The node.
+     * @return The successors, in Weka's order.
+     */
+    public abstract Object[] getSuccessors(Object node);
+
+    /**
+     * Retrieves the weights given to the successors of a split node when the split attribute is missing.
+     *
+     * @param node The node.
+     * @return One weight per successor.
+     */
+    public abstract double[] getProportions(Object node);
+
+    /**
+     * Retrieves the training class distribution of a node.
+     *
+     * @param node The node.
+     * @return The class distribution, not necessarily normalized, or {@code null} if the node holds none. A
+     * leaf without distribution is empty: Weka ignores it when splitting up a missing value and otherwise uses
+     * {@link #getEmptySuccessorDistribution(Object, int)}.
+     */
+    public abstract double[] getClassDistribution(Object node);
+
+    /**
+     * Retrieves the normalized distribution Weka predicts when an instance reaches an empty successor.
+     *
+     * @param parent    The parent of the empty successor.
+     * @param successor The index of the empty successor.
+     * @return The normalized class distribution, or {@code null} if the parent holds none either.
+     */
+    public double[] getEmptySuccessorDistribution(Object parent, int successor) {
+        double[] distribution = getClassDistribution(parent);
+        return distribution == null ? null : normalize(distribution.clone());
+    }
+
+    /**
+     * Computes a fingerprint of the tree: a digest of its header and of the split, successor proportions and class
+     * distribution of every node. Trees with the same fingerprint convert to the same PMML.
+     *
+     * @return The SHA-1 digest, as a lowercase hexadecimal string.
+     */
+    public String fingerprint() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Instances header = getHeader();
+        if (header != null) {
+            digest.update(new Instances(header, 0).toString().getBytes(Charset.forName("UTF-8")));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put((byte) (isSplitInclusive() ? 1 : 0));
+
+        Object root = getRoot();
+        if (root == null) {
+            putValues(digest, buffer, getConstantDistribution());
+        } else {
+            ArrayDeque<Object> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                Object node = queue.poll();
+                int attribute = getAttribute(node);
+                ensure(digest, buffer, 4);
+                buffer.putInt(attribute);
+                putValues(digest, buffer, getClassDistribution(node));
+                if (attribute == LEAF) {
+                    continue;
+                }
+                ensure(digest, buffer, 8);
+                buffer.putDouble(getSplitPoint(node));
+                putValues(digest, buffer, getProportions(node));
+                for (Object successor : getSuccessors(node)) {
+                    queue.add(successor);
+                }
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Appends a length-prefixed array of values to the buffer of {@link #fingerprint()}, {@code -1} standing for
+     * {@code null}.
+     */
+    private static void putValues(MessageDigest digest, ByteBuffer buffer, double[] values) {
+        ensure(digest, buffer, 4);
+        buffer.putInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (double value : values) {
+                ensure(digest, buffer, 8);
+                buffer.putDouble(value);
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffer of {@link #fingerprint()} into the digest when fewer than {@code bytes} bytes remain.
+     */
+    private static void ensure(MessageDigest digest, ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Normalizes a distribution in place, the way {@link weka.core.Utils#normalize(double[])} does, leaving
+     * all-zero distributions untouched.
+     *
+     * @param distribution The distribution to normalize.
+     * @return The given array.
+     */
+    public static double[] normalize(double[] distribution) {
+        double sum = 0;
+        for (double value : distribution) {
+            sum += value;
+        }
+        if (sum != 0) {
+            for (int i = 0; i < distribution.length; i++) {
+                distribution[i] /= sum;
+            }
+        }
+        return distribution;
+    }
+
+    static Field field(Class<?> klass, String name) {
+        for (Class<?> c = klass; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // Try the superclass.
+            }
+        }
+        throw new IllegalStateException("Field " + name + " not found in " + klass.getName() + ".");
+    }
+
+    static Object get(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static double[] constantDistribution(Classifier zeroR, Instances header) {
+        Instance instance = new DenseInstance(header.numAttributes());
+        instance.setDataset(header);
+        try {
+            return zeroR.distributionForInstance(instance);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads {@link RandomTree}s, including {@link RandomTreeWrapper}s.
+     */
+    static final class RandomTreeReader extends TreeReader {
+
+        private static final Field INFO = field(RandomTree.class, "m_Info");
+        private static final Field TREE = field(RandomTree.class, "m_Tree");
+        private static final Field ZERO_R = field(RandomTree.class, "m_zeroR");
+        private static final Field ZERO_R_CLASS = field(ZeroR.class, "m_Class");
+        private static final Class<?> NODE_CLASS;
+        private static final Field ATTRIBUTE;
+        private static final Field SPLIT_POINT;
+        private static final Field SUCCESSORS;
+        private static final Field PROP;
+        private static final Field CLASS_DISTRIBUTION;
+
+        static {
+            try {
+                NODE_CLASS = Class.forName("weka.classifiers.trees.RandomTree$Tree");
+            } catch (ClassNotFoundException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+            ATTRIBUTE = field(NODE_CLASS, "m_Attribute");
+            SPLIT_POINT = field(NODE_CLASS, "m_SplitPoint");
+            SUCCESSORS = field(NODE_CLASS, "m_Successors");
+            PROP = field(NODE_CLASS, "m_Prop");
+            CLASS_DISTRIBUTION = field(NODE_CLASS, "m_ClassDistribution");
+        }
+
+        private final RandomTree tree;
+        private final Instances header;
+        private final boolean allowUnclassified;
+
+        RandomTreeReader(RandomTree tree) {
+            this.tree = tree;
+            Instances info = (Instances) get(INFO, tree);
+            Object zeroR = get(ZERO_R, tree);
+            if (info == null && zeroR instanceof ZeroR) {
+                // A tree that fell back to ZeroR keeps no header; its data held the class alone.
+                ArrayList<Attribute> attributes = new ArrayList<>();
+                attributes.add((Attribute) get(ZERO_R_CLASS, zeroR));
+                info = new Instances("ZeroR", attributes, 0);
+                info.setClassIndex(0);
+            }
+            this.header = info;
+            this.allowUnclassified = tree.getAllowUnclassifiedInstances();
+        }
+
+        @Override
+        public Instances getHeader() {
+            return header;
+        }
+
+        @Override
+        public Object getRoot() {
+            return get(TREE, tree);
+        }
+
+        @Override
+        public double[] getConstantDistribution() {
+            return constantDistribution((Classifier) get(ZERO_R, tree), header);
+        }
+
+        @Override
+        public int getAttribute(Object node) {
+            return (Integer) get(ATTRIBUTE, node);
+        }
+
+        @Override
+        public double getSplitPoint(Object node) {
+            return (Double) get(SPLIT_POINT, node);
+        }
+
+        @Override
+        public Object[] getSuccessors(Object node) {
+            return (Object[]) get(SUCCESSORS, node);
+        }
+
+        @Override
+        public double[] getProportions(Object node) {
+            return (double[]) get(PROP, node);
+        }
+
+        @Override
+        public double[] getClassDistribution(Object node) {
+            double[] distribution = (double[]) get(CLASS_DISTRIBUTION, node);
+            if (distribution == null && allowUnclassified && getAttribute(node) == LEAF) {
+                // Unclassified instances get an all-zero distribution instead of their parent's.
+                return new double[header.numClasses()];
+            }
+            return distribution;
+        }
+    }
+
+    /**
+     * Reads {@link REPTree}s.
+     */
+    static final class REPTreeReader extends TreeReader {
+
+        private static final Field TREE = field(REPTree.class, "m_Tree");
+        private static final Class<?> NODE_CLASS;
+        private static final Field ATTRIBUTE;
+        private static final Field SPLIT_POINT;
+        private static final Field SUCCESSORS;
+        private static final Field PROP;
+        private static final Field CLASS_PROBS;
+        private static final Field INFO;
+
+        static {
+            try {
+                NODE_CLASS = Class.forName("weka.classifiers.trees.REPTree$Tree");
+            } catch (ClassNotFoundException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+            ATTRIBUTE = field(NODE_CLASS, "m_Attribute");
+            SPLIT_POINT = field(NODE_CLASS, "m_SplitPoint");
+            SUCCESSORS = field(NODE_CLASS, "m_Successors");
+            PROP = field(NODE_CLASS, "m_Prop");
+            CLASS_PROBS = field(NODE_CLASS, "m_ClassProbs");
+            INFO = field(NODE_CLASS, "m_Info");
+        }
+
+        private final REPTree tree;
+        private final Instances header;
+
+        REPTreeReader(REPTree tree) {
+            this.tree = tree;
+            Object root = get(TREE, tree);
+            if (root == null) {
+                throw new IllegalArgumentException("REPTrees replaced by a ZeroR model are not supported.");
+            }
+            this.header = (Instances) get(INFO, root);
+        }
+
+        @Override
+        public Instances getHeader() {
+            return header;
+        }
+
+        @Override
+        public Object getRoot() {
+            return get(TREE, tree);
+        }
+
+        @Override
+        public int getAttribute(Object node) {
+            return (Integer) get(ATTRIBUTE, node);
+        }
+
+        @Override
+        public double getSplitPoint(Object node) {
+            return (Double) get(SPLIT_POINT, node);
+        }
+
+        @Override
+        public Object[] getSuccessors(Object node) {
+            return (Object[]) get(SUCCESSORS, node);
+        }
+
+        @Override
+        public double[] getProportions(Object node) {
+            return (double[]) get(PROP, node);
+        }
+
+        @Override
+        public double[] getClassDistribution(Object node) {
+            return (double[]) get(CLASS_PROBS, node);
+        }
+    }
+
+    /**
+     * Reads {@link J48} trees built with multi-way nominal splits.
+     * <p/>
+     * J48 sends values lower or equal to the split point to the first successor, weights successors by their
+     * share of the training data when the split attribute is missing, and predicts the parent's distribution
+     * for the subset of an empty successor.
+     */
+    static final class J48Reader extends TreeReader {
+
+        private static final Field ROOT = field(J48.class, "m_root");
+        private static final Field TRAIN = field(ClassifierTree.class, "m_train");
+        private static final Field IS_EMPTY = field(ClassifierTree.class, "m_isEmpty");
+
+        private final J48 tree;
+        private final Instances header;
+
+        J48Reader(J48 tree) {
+            if (tree.getUseLaplace()) {
+                throw new IllegalArgumentException("J48 trees using the Laplace correction are not supported.");
+            }
+            this.tree = tree;
+            this.header = (Instances) get(TRAIN, get(ROOT, tree));
+        }
+
+        @Override
+        public Instances getHeader() {
+            return header;
+        }
+
+        @Override
+        public Object getRoot() {
+            return get(ROOT, tree);
+        }
+
+        private static ClassifierSplitModel model(Object node) {
+            return ((ClassifierTree) node).getLocalModel();
+        }
+
+        @Override
+        public int getAttribute(Object node) {
+            if (((ClassifierTree) node).isLeaf()) {
+                return LEAF;
+            }
+            ClassifierSplitModel model = model(node);
+            if (model instanceof C45Split) {
+                return ((C45Split) model).attIndex();
+            } else if (model instanceof BinC45Split) {
+                throw new IllegalArgumentException("J48 trees with binary splits are not supported.");
+            }
+            throw new IllegalArgumentException("Unsupported J48 split model '" + model.getClass().getSimpleName() + "'.");
+        }
+
+        @Override
+        public double getSplitPoint(Object node) {
+            return ((C45Split) model(node)).splitPoint();
+        }
+
+        @Override
+        public boolean isSplitInclusive() {
+            return true;
+        }
+
+        @Override
+        public Object[] getSuccessors(Object node) {
+            return ((ClassifierTree) node).getSons();
+        }
+
+        @Override
+        public double[] getProportions(Object node) {
+            Distribution distribution = model(node).distribution();
+            Object[] sons = getSuccessors(node);
+            double[] proportions = new double[sons.length];
+            for (int i = 0; i < sons.length; i++) {
+                proportions[i] = distribution.perBag(i) / distribution.total();
+            }
+            return proportions;
+        }
+
+        @Override
+        public double[] getClassDistribution(Object node) {
+            if ((Boolean) get(IS_EMPTY, node)) {
+                return null;
+            }
+            Distribution distribution = model(node).distribution();
+            double[] classDistribution = new double[distribution.numClasses()];
+            for (int i = 0; i < classDistribution.length; i++) {
+                classDistribution[i] = distribution.perClass(i);
+            }
+            return classDistribution;
+        }
+
+        @Override
+        public double[] getEmptySuccessorDistribution(Object parent, int successor) {
+            Distribution distribution = model(parent).distribution();
+            double[] classDistribution = new double[distribution.numClasses()];
+            for (int i = 0; i < classDistribution.length; i++) {
+                classDistribution[i] = distribution.perBag(successor) > 0 ? distribution.prob(i, successor)
+                        : distribution.prob(i);
+            }
+            return classDistribution;
+        }
+    }
+}
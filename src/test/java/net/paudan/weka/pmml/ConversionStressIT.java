@@ -0,0 +1,279 @@
+package net.paudan.weka.pmml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.RandomForestUtils;
+import weka.classifiers.SyntheticForestGenerator;
+import weka.classifiers.trees.RandomForest;
+import weka.core.SerializationHelper;
+
+/**
+ * Finds where PMML conversion falls over: converts synthetic forests of increasing size with {@code Main}, each in
+ * its own JVM with a fixed maximum heap, and compares the time, peak heap and output size against the baselines in
+ * {@code stress-baseline.csv}.
+ * <p/>
+ * Forests come from a {@link SyntheticForestGenerator} and are generated and serialized by the test JVM, so that
+ * the measured JVM only loads the model and converts it, as a user would. Peak heap is the sum of the peak usages
+ * of the heap memory pools, which may exceed the true peak. A scale without a baseline fails the test; run with
+ * {@code -Dstress.update=path/to/stress-baseline.csv} to write the measurements as the new baselines instead.
+ * <p/>
+ * System properties: {@code stress.xmx} (512m), {@code stress.maxTrees} (1000), {@code stress.tolerance} (0.5) and
+ * {@code stress.update}.
+ */
+public class ConversionStressIT {
+
+    private static final String RESULT_PREFIX = "RESULT ";
+
+    private static final String CSV_HEADER = "trees,nodes,millis,peakHeapBytes,outputBytes,failure";
+
+    /**
+     * Time regressions are only reported above this duration, below which measurements are mostly noise.
+     */
+    private static final long MIN_COMPARED_MILLIS = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void conversionDoesNotRegress() throws Exception {
+        String maxHeap = System.getProperty("stress.xmx", "512m");
+        int maxTrees = Integer.getInteger("stress.maxTrees", 1000);
+        double tolerance = Double.parseDouble(System.getProperty("stress.tolerance", "0.5"));
+        String update = System.getProperty("stress.update");
+
+        List<Measurement> measurements = new ArrayList<>();
+        for (long trees = 10; trees <= maxTrees; trees *= 10) {
+            Measurement measurement = measure((int) trees, maxHeap);
+            System.out.println(measurement.toCsv());
+            measurements.add(measurement);
+        }
+        assertTrue("No scale up to " + maxTrees + " trees.", !measurements.isEmpty());
+
+        if (update != null) {
+            writeBaselines(new File(update), measurements);
+            return;
+        }
+        List<String> regressions = compare(measurements, readBaselines(), tolerance);
+        assertTrue("Regressions against stress-baseline.csv: " + regressions, regressions.isEmpty());
+    }
+
+    /**
+     * Generates and serializes a forest, then converts it with {@code Main} in a new JVM.
+     */
+    private Measurement measure(int numTrees, String maxHeap) throws Exception {
+        SyntheticForestGenerator generator = new SyntheticForestGenerator();
+        generator.setNumTrees(numTrees);
+        RandomForest forest = generator.generate();
+        long numNodes = PMMLSizeEstimator.estimate(RandomForestUtils.getBaggingClassifiers(forest)).getNumNodes();
+
+        File directory = folder.newFolder();
+        String name = "forest-" + numTrees;
+        SerializationHelper.write(new File(directory, name + ".model").getPath(), forest);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-Xmx" + maxHeap, "-cp", System.getProperty("java.class.path"),
+                Conversion.class.getName(), name + ".model")
+                .directory(directory).redirectErrorStream(true).start();
+        String result = null;
+        String lastLine = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    result = line.substring(RESULT_PREFIX.length());
+                } else if (!line.trim().isEmpty()) {
+                    lastLine = line.trim();
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (result == null) {
+            return new Measurement(numTrees, numNodes, 0, 0, 0, "exit " + exitCode
+                    + (lastLine == null ? "" : ": " + lastLine));
+        }
+
+        // The child only knows how long the conversion took, how much heap it used and whether it failed.
+        String[] fields = result.split(",", 3);
+        File output = new File(directory, name + ".xml");
+        String failure = fields[2].isEmpty() ? null : fields[2];
+        // Main reports a failed conversion on the console only, which may leave a partial file behind.
+        if (failure == null && !isComplete(output)) {
+            failure = "incomplete output" + (lastLine == null ? "" : ": " + lastLine);
+        }
+        return new Measurement(numTrees, numNodes, Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                failure == null ? output.length() : 0, failure);
+    }
+
+    private static boolean isComplete(File output) throws IOException {
+        if (!output.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            byte[] tail = new byte[(int) Math.min(file.length(), 64)];
+            file.seek(file.length() - tail.length);
+            file.readFully(tail);
+            return new String(tail, "UTF-8").trim().endsWith("</PMML>");
+        }
+    }
+
+    /**
+     * Compares measurements with baselines.
+     *
+     * @return One description per regression: a scale without a baseline, a scale that used to pass and fails, or
+     * one whose time, peak heap or output size grew beyond the tolerance.
+     */
+    static List<String> compare(List<Measurement> measurements, Map<Integer, Measurement> baselines,
+                                double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (Measurement measurement : measurements) {
+            String scale = measurement.numTrees + " trees: ";
+            Measurement baseline = baselines.get(measurement.numTrees);
+            if (baseline == null) {
+                regressions.add(scale + "no baseline");
+                continue;
+            }
+            if (!baseline.isPassed()) {
+                continue;
+            }
+            if (!measurement.isPassed()) {
+                regressions.add(scale + "failed (" + measurement.failure + ")");
+                continue;
+            }
+            if (measurement.millis > Math.max(baseline.millis, MIN_COMPARED_MILLIS) * (1 + tolerance)) {
+                regressions.add(scale + "took " + measurement.millis + " ms, baseline " + baseline.millis + " ms");
+            }
+            if (measurement.peakHeapBytes > baseline.peakHeapBytes * (1 + tolerance)) {
+                regressions.add(scale + "peak heap " + (measurement.peakHeapBytes >> 20) + " MB, baseline "
+                        + (baseline.peakHeapBytes >> 20) + " MB");
+            }
+            if (measurement.outputBytes > baseline.outputBytes * (1 + tolerance)) {
+                regressions.add(scale + "output " + measurement.outputBytes + " bytes, baseline "
+                        + baseline.outputBytes + " bytes");
+            }
+        }
+        return regressions;
+    }
+
+    private static Map<Integer, Measurement> readBaselines() throws IOException {
+        InputStream is = ConversionStressIT.class.getResourceAsStream("/stress-baseline.csv");
+        assertNotNull("stress-baseline.csv is missing from the test resources.", is);
+        Map<Integer, Measurement> baselines = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"))) {
+            assertEquals(CSV_HEADER, reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    Measurement measurement = Measurement.parse(line);
+                    baselines.put(measurement.numTrees, measurement);
+                }
+            }
+        }
+        return baselines;
+    }
+
+    private static void writeBaselines(File file, List<Measurement> measurements) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println(CSV_HEADER);
+            for (Measurement measurement : measurements) {
+                writer.println(measurement.toCsv());
+            }
+        }
+    }
+
+    /**
+     * Converts a model with {@code Main} in this JVM and prints how long it took, the peak heap and the failure,
+     * if any, as {@code RESULT millis,peakHeapBytes,failure}.
+     */
+    public static final class Conversion {
+
+        public static void main(String[] args) {
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heapPools.add(pool);
+                }
+            }
+            System.gc();
+            for (MemoryPoolMXBean pool : heapPools) {
+                pool.resetPeakUsage();
+            }
+
+            String failure = "";
+            long start = System.nanoTime();
+            try {
+                // Main is in the default package, which cannot be imported.
+                Class.forName("Main").getMethod("main", String[].class).invoke(null, (Object) args);
+            } catch (InvocationTargetException e) {
+                failure = String.valueOf(e.getCause());
+            } catch (Throwable e) {
+                failure = String.valueOf(e);
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+            System.out.println(RESULT_PREFIX + millis + "," + peakHeap + "," + failure.replace('\n', ' '));
+        }
+    }
+
+    private static final class Measurement {
+
+        private final int numTrees;
+        private final long numNodes;
+        private final long millis;
+        private final long peakHeapBytes;
+        private final long outputBytes;
+        private final String failure;
+
+        Measurement(int numTrees, long numNodes, long millis, long peakHeapBytes, long outputBytes, String failure) {
+            this.numTrees = numTrees;
+            this.numNodes = numNodes;
+            this.millis = millis;
+            this.peakHeapBytes = peakHeapBytes;
+            this.outputBytes = outputBytes;
+            this.failure = failure;
+        }
+
+        static Measurement parse(String csv) {
+            String[] fields = csv.split(",", 6);
+            if (fields.length != 6) {
+                fail("Malformed baseline: " + csv);
+            }
+            return new Measurement(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]), fields[5].isEmpty() ? null : fields[5]);
+        }
+
+        String toCsv() {
+            return numTrees + "," + numNodes + "," + millis + "," + peakHeapBytes + "," + outputBytes + ","
+                    + (failure == null ? "" : failure.replace('\n', ' ').replace(',', ';'));
+        }
+
+        boolean isPassed() {
+            return failure == null;
+        }
+    }
+}
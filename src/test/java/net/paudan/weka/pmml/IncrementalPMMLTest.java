@@ -0,0 +1,118 @@
+package net.paudan.weka.pmml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.Classifier;
+import weka.classifiers.RandomForestUtils;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+/**
+ * Checks that patching a previous export gives the very file a full export would.
+ */
+public class IncrementalPMMLTest {
+
+    private static Classifier[] trees;
+    private static Classifier[] otherTrees;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void train() throws Exception {
+        Instances data;
+        try (Reader reader = new InputStreamReader(
+                IncrementalPMMLTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        trees = RandomForestUtils.getBaggingClassifiers(train(data, 1));
+        otherTrees = RandomForestUtils.getBaggingClassifiers(train(data, 2));
+    }
+
+    private static RandomForest train(Instances data, int seed) throws Exception {
+        RandomForest forest = new RandomForest();
+        forest.setNumIterations(12);
+        forest.setSeed(seed);
+        forest.buildClassifier(data);
+        return forest;
+    }
+
+    private static RandomForest forest(Classifier[] trees) {
+        RandomForest forest = new RandomForest();
+        RandomForestUtils.setBaggingClassifiers(forest, trees);
+        return forest;
+    }
+
+    private File export(Classifier[] trees) throws Exception {
+        File file = folder.newFile();
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(2);
+        try {
+            marshaller.marshal(new RandomForestPMMLProducer().produce(forest(trees)), file);
+        } finally {
+            marshaller.shutdown();
+        }
+        return file;
+    }
+
+    private static void assertSameFile(File expected, File actual) throws Exception {
+        assertEquals(new String(Files.readAllBytes(expected.toPath()), "UTF-8"),
+                new String(Files.readAllBytes(actual.toPath()), "UTF-8"));
+    }
+
+    /**
+     * Patches an export of the base trees into one of the updated trees, in a new file, in place and through a
+     * delta, and compares each result with a full export of the updated trees.
+     */
+    private void assertPatchedAsExported(Classifier[] updated, int expectedReused) throws Exception {
+        RandomForestPMMLProducer producer = new RandomForestPMMLProducer();
+        File base = export(trees);
+        File expected = export(updated);
+
+        File target = folder.newFile();
+        IncrementalPMML.Result result = producer.produceIncremental(forest(updated), base, target, 2);
+        assertEquals(expectedReused, result.getReusedSegments());
+        assertEquals(updated.length - expectedReused, result.getConvertedSegments());
+        assertSameFile(expected, target);
+
+        File delta = folder.newFile();
+        producer.produceDelta(forest(updated), base, delta, 2);
+        File applied = folder.newFile();
+        result = IncrementalPMML.apply(base, delta, applied);
+        assertEquals(expectedReused, result.getReusedSegments());
+        assertSameFile(expected, applied);
+
+        producer.produceIncremental(forest(updated), base, base, 2);
+        assertSameFile(expected, base);
+    }
+
+    @Test
+    public void replacingTreesPatchesAsAFullExport() throws Exception {
+        Classifier[] updated = trees.clone();
+        updated[0] = otherTrees[0];
+        updated[5] = otherTrees[5];
+        updated[11] = otherTrees[11];
+        assertPatchedAsExported(updated, trees.length - 3);
+    }
+
+    @Test
+    public void removingTreesPatchesAsAFullExport() throws Exception {
+        Classifier[] updated = Arrays.copyOfRange(trees, 2, 9);
+        assertPatchedAsExported(updated, updated.length);
+    }
+
+    @Test
+    public void replacingAndRemovingTreesPatchesAsAFullExport() throws Exception {
+        Classifier[] updated = {trees[3], otherTrees[1], trees[0], trees[7], otherTrees[4]};
+        assertPatchedAsExported(updated, 3);
+    }
+}
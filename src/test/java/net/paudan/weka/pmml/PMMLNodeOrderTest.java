@@ -0,0 +1,175 @@
+package net.paudan.weka.pmml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.xml.transform.stream.StreamResult;
+import net.paudan.weka.scoring.CompiledForestScorer;
+import net.paudan.weka.scoring.PMMLForestCompiler;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.Node;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.dmg.pmml.SimplePredicate;
+import org.dmg.pmml.TreeModel;
+import org.jpmml.model.JAXBUtil;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import weka.classifiers.trees.RandomForest;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class PMMLNodeOrderTest {
+
+    private static RandomForest forest;
+    private static Instances header;
+    private static List<double[]> rows;
+
+    @BeforeClass
+    public static void train() throws Exception {
+        Instances data;
+        try (Reader reader = new InputStreamReader(
+                PMMLNodeOrderTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        forest = new RandomForest();
+        forest.setNumIterations(20);
+        forest.buildClassifier(data);
+        header = new Instances(data, 0);
+
+        // The training rows, and the same rows with some values missing.
+        Random random = new Random(9);
+        rows = new ArrayList<>();
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] row = data.instance(i).toDoubleArray();
+            rows.add(row);
+            row = row.clone();
+            for (int a = 0; a < row.length; a++) {
+                if (a != data.classIndex() && random.nextDouble() < 0.3) {
+                    row[a] = Utils.missingValue();
+                }
+            }
+            rows.add(row);
+        }
+    }
+
+    private static PMML produce() throws Exception {
+        return new RandomForestPMMLProducer().produce(forest);
+    }
+
+    private static List<double[]> score(PMML pmml) throws Exception {
+        CompiledForestScorer scorer = new CompiledForestScorer(PMMLForestCompiler.compile(pmml));
+        List<double[]> distributions = new ArrayList<>();
+        for (double[] row : rows) {
+            distributions.add(scorer.distributionForRow(row));
+        }
+        return distributions;
+    }
+
+    private static void assertSameDistributions(List<double[]> expected, List<double[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i), 1e-12);
+        }
+    }
+
+    private static String marshal(PMML pmml) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JAXBUtil.marshalPMML(pmml, new StreamResult(bytes));
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    private static List<Node> nodes(PMML pmml) {
+        List<Node> nodes = new ArrayList<>();
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        for (Segment segment : PMMLUtils.getMiningModel(pmml).getSegmentation().getSegments()) {
+            stack.push(((TreeModel) segment.getModel()).getNode());
+        }
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            nodes.add(node);
+            if (node.hasNodes()) {
+                for (Node child : node.getNodes()) {
+                    stack.push(child);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Rewrites a document as older exports wrote it: both training proportions of a numeric split on the lower
+     * child.
+     */
+    private static int toLegacyProportions(PMML pmml) {
+        int moved = 0;
+        for (Node node : nodes(pmml)) {
+            if (!node.hasNodes() || node.getNodes().size() != 2) {
+                continue;
+            }
+            Node lo = node.getNodes().get(0);
+            Node hi = node.getNodes().get(1);
+            SimplePredicate.Operator operator = ((SimplePredicate) lo.getPredicate()).getOperator();
+            if (operator == SimplePredicate.Operator.LESS_THAN || operator == SimplePredicate.Operator.LESS_OR_EQUAL) {
+                List<Extension> extensions = hi.getExtensions();
+                for (int i = 0; i < extensions.size(); i++) {
+                    if (PMMLUtils.TRAINING_PROPORTION_ELEMENT.equals(extensions.get(i).getName())) {
+                        lo.addExtensions(extensions.remove(i));
+                        moved++;
+                        break;
+                    }
+                }
+            }
+        }
+        return moved;
+    }
+
+    @Test
+    public void reorderingKeepsThePredictions() throws Exception {
+        List<double[]> expected = score(produce());
+        for (int i = 0; i < rows.size(); i++) {
+            Instance instance = new DenseInstance(1, rows.get(i));
+            instance.setDataset(header);
+            assertArrayEquals(forest.distributionForInstance(instance), expected.get(i), 1e-9);
+        }
+
+        PMML pmml = produce();
+        PMMLNodeOrder.reorder(pmml);
+        for (Node node : nodes(pmml)) {
+            if (node.hasNodes()) {
+                List<Node> children = node.getNodes();
+                for (int i = 1; i < children.size(); i++) {
+                    assertTrue(PMMLUtils.getNodeTrainingProportion(children.get(i - 1))
+                            >= PMMLUtils.getNodeTrainingProportion(children.get(i)));
+                }
+            }
+        }
+        assertSameDistributions(expected, score(pmml));
+    }
+
+    @Test
+    public void legacyProportionsReadBackAsCurrentOnes() throws Exception {
+        PMML current = produce();
+        List<double[]> expected = score(current);
+
+        PMML legacy = produce();
+        assertTrue(toLegacyProportions(legacy) > 0);
+        assertSameDistributions(expected, score(legacy));
+
+        PMMLNodeOrder.reorder(current);
+        PMMLNodeOrder.reorder(legacy);
+        assertEquals(marshal(current), marshal(legacy));
+        assertSameDistributions(expected, score(legacy));
+    }
+}
@@ -0,0 +1,146 @@
+package net.paudan.weka.pmml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.transform.stream.StreamResult;
+import org.dmg.pmml.Extension;
+import org.dmg.pmml.PMML;
+import org.dmg.pmml.Segment;
+import org.jpmml.model.JAXBUtil;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.J48;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+/**
+ * Checks that the concurrent marshaller writes exactly what {@link JAXBUtil#marshalPMML} writes.
+ */
+public class ParallelPMMLMarshallerTest {
+
+    private static Instances data;
+
+    @BeforeClass
+    public static void loadData() throws Exception {
+        try (Reader reader = new InputStreamReader(
+                ParallelPMMLMarshallerTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+    }
+
+    private static String marshalWhole(PMML pmml) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JAXBUtil.marshalPMML(pmml, new StreamResult(bytes));
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    private static String marshalConcurrently(PMML pmml) throws Exception {
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(3);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            marshaller.marshal(pmml, bytes);
+            return new String(bytes.toByteArray(), "UTF-8");
+        } finally {
+            marshaller.shutdown();
+        }
+    }
+
+    private static PMML randomForest() throws Exception {
+        RandomForest forest = new RandomForest();
+        forest.setNumIterations(20);
+        forest.buildClassifier(data);
+        return new RandomForestPMMLProducer().produce(forest);
+    }
+
+    @Test
+    public void randomForestOutputMatchesJAXB() throws Exception {
+        PMML pmml = randomForest();
+        assertEquals(marshalWhole(pmml), marshalConcurrently(pmml));
+    }
+
+    @Test
+    public void baggingOutputMatchesJAXB() throws Exception {
+        Bagging bagging = new Bagging();
+        bagging.setNumIterations(15);
+        bagging.buildClassifier(data);
+        PMML pmml = new BaggingPMMLProducer().produce(bagging);
+        assertEquals(marshalWhole(pmml), marshalConcurrently(pmml));
+    }
+
+    @Test
+    public void j48OutputMatchesJAXB() throws Exception {
+        J48 j48 = new J48();
+        j48.buildClassifier(data);
+        PMML pmml = new J48PMMLProducer().produce(j48);
+        assertEquals(marshalWhole(pmml), marshalConcurrently(pmml));
+    }
+
+    @Test
+    public void multiLineTextIsNotReindented() throws Exception {
+        PMML pmml = randomForest();
+        Extension extension = new Extension();
+        extension.setName("note");
+        extension.getContent().add("first line\n  second line\n<third>\n");
+        PMMLUtils.getMiningModel(pmml).getSegmentation().getSegments().get(1).addExtensions(extension);
+        assertEquals(marshalWhole(pmml), marshalConcurrently(pmml));
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedSegmentCancelsTheOthers() throws Exception {
+        PMML envelope = randomForest();
+        PMMLUtils.getMiningModel(envelope).getSegmentation().getSegments().clear();
+
+        final CountDownLatch never = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        List<Callable<Segment>> segments = new ArrayList<>();
+        segments.add(new Callable<Segment>() {
+            @Override
+            public Segment call() {
+                throw new IllegalStateException("Broken tree.");
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            segments.add(new Callable<Segment>() {
+                @Override
+                public Segment call() throws InterruptedException {
+                    started.incrementAndGet();
+                    try {
+                        never.await();
+                    } catch (InterruptedException e) {
+                        interrupted.incrementAndGet();
+                        throw e;
+                    }
+                    return new Segment();
+                }
+            });
+        }
+
+        ParallelPMMLMarshaller marshaller = new ParallelPMMLMarshaller(3);
+        try {
+            marshaller.marshal(envelope, segments, new ByteArrayOutputStream());
+            fail("Expected the marshalling to fail.");
+        } catch (PMMLConversionException e) {
+            // Expected.
+        } finally {
+            marshaller.shutdown();
+        }
+        // Builders that were still waiting are interrupted, and the queued ones never start.
+        while (interrupted.get() < started.get()) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(started.get(), interrupted.get());
+    }
+}
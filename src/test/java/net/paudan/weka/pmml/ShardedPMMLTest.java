@@ -0,0 +1,75 @@
+package net.paudan.weka.pmml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import javax.xml.transform.stream.StreamResult;
+import org.dmg.pmml.DataField;
+import org.dmg.pmml.PMML;
+import org.jpmml.model.JAXBUtil;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+public class ShardedPMMLTest {
+
+    private static PMML pmml;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void produce() throws Exception {
+        Instances data;
+        try (Reader reader = new InputStreamReader(
+                ShardedPMMLTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        RandomForest forest = new RandomForest();
+        forest.setNumIterations(20);
+        forest.buildClassifier(data);
+        pmml = new RandomForestPMMLProducer().produce(forest);
+    }
+
+    private static String marshal(PMML pmml) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JAXBUtil.marshalPMML(pmml, new StreamResult(bytes));
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    @Test
+    public void writtenShardsLoadBackAsTheWholeDocument() throws Exception {
+        String expected = marshal(pmml);
+        File manifest = folder.newFile("model.xml");
+        List<File> shards = ShardedPMML.write(pmml, manifest, 7);
+
+        assertEquals(3, shards.size());
+        assertEquals(expected, marshal(pmml));
+        assertFalse(PMMLUtils.getMiningModel(PMMLLoader.load(manifest)).isScorable());
+        for (File shard : shards) {
+            // Every shard can be used on its own.
+            List<DataField> fields = PMMLLoader.load(shard).getDataDictionary().getDataFields();
+            assertEquals(pmml.getDataDictionary().getDataFields().size(), fields.size());
+            for (int i = 0; i < fields.size(); i++) {
+                assertEquals(pmml.getDataDictionary().getDataFields().get(i).getName(), fields.get(i).getName());
+            }
+        }
+        assertEquals(expected, marshal(ShardedPMML.load(manifest, 2, null)));
+    }
+
+    @Test
+    public void aRegularDocumentIsLoadedAsIs() throws Exception {
+        File file = folder.newFile("model.xml");
+        PMMLUtils.marshal(pmml, file);
+        assertEquals(marshal(pmml), marshal(ShardedPMML.load(file, 2, null)));
+    }
+}
@@ -0,0 +1,77 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class CachingForestScorerTest {
+
+    /**
+     * Predicts class {@code a} with the value of {@code x} as probability, and counts its calls.
+     */
+    private static final class CountingScorer extends AbstractForestScorer {
+
+        private final Instances header;
+        int calls;
+
+        CountingScorer() {
+            ArrayList<Attribute> attributes = new ArrayList<>();
+            attributes.add(new Attribute("x"));
+            attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+            header = new Instances("test", attributes, 0);
+            header.setClassIndex(1);
+        }
+
+        @Override
+        public Instances getHeader() {
+            return header;
+        }
+
+        @Override
+        public double[] distributionForRow(double[] row) {
+            calls++;
+            return new double[]{row[0], 1 - row[0]};
+        }
+    }
+
+    @Test
+    public void rowsDifferingOnlyInTheClassSlotShareAnEntry() {
+        CountingScorer scorer = new CountingScorer();
+        CachingForestScorer cache = new CachingForestScorer(scorer, 1 << 20, 4);
+        cache.distributionForRow(new double[]{0.25, 0});
+        assertArrayEquals(new double[]{0.25, 0.75}, cache.distributionForRow(new double[]{0.25, 1}), 0);
+        assertEquals(1, scorer.calls);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void changingTheCallersRowDoesNotChangeACachedKey() {
+        CountingScorer scorer = new CountingScorer();
+        CachingForestScorer cache = new CachingForestScorer(scorer, 1 << 20, 4);
+        double[] row = {0.25, 0};
+        cache.distributionForRow(row);
+        row[0] = 0.5;
+        assertArrayEquals(new double[]{0.5, 0.5}, cache.distributionForRow(row), 0);
+        assertArrayEquals(new double[]{0.25, 0.75}, cache.distributionForRow(new double[]{0.25, 0}), 0);
+        assertEquals(2, scorer.calls);
+    }
+
+    @Test
+    public void smallBudgetsUseFewerStripes() {
+        CountingScorer scorer = new CountingScorer();
+        CachingForestScorer cache = new CachingForestScorer(scorer, 200, 64);
+        cache.distributionForRow(new double[]{0.25, 0});
+        cache.distributionForRow(new double[]{0.25, 0});
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetsBelowOneEntryAreRejected() {
+        new CachingForestScorer(new CountingScorer(), 16, 1);
+    }
+}
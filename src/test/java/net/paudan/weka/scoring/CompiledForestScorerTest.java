@@ -0,0 +1,76 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+import weka.classifiers.SyntheticForestGenerator;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+public class CompiledForestScorerTest {
+
+    /**
+     * Scores rows mostly made of zeros, some of them missing, as dense rows, as sparse rows looked up directly, as
+     * sparse rows expanded by {@link AbstractForestScorer}, and with the Weka forest itself. A nominal value
+     * {@code 0} is not stored in a sparse row, so every nominal attribute at its first value is read from the
+     * default, and missing values are stored in the sparse row.
+     */
+    @Test
+    public void sparseRowsScoreAsDenseRows() throws Exception {
+        SyntheticForestGenerator generator = new SyntheticForestGenerator();
+        generator.setNumTrees(20);
+        generator.setMaxDepth(8);
+        RandomForest forest = generator.generate();
+        CompiledForest compiled = ForestCompiler.compile(forest);
+        Instances header = compiled.getHeader();
+        final CompiledForestScorer scorer = new CompiledForestScorer(compiled);
+        AbstractForestScorer expanding = new AbstractForestScorer() {
+            @Override
+            public Instances getHeader() {
+                return scorer.getHeader();
+            }
+
+            @Override
+            public double[] distributionForRow(double[] row) {
+                return scorer.distributionForRow(row);
+            }
+        };
+
+        Random random = new Random(3);
+        int numMissing = 0;
+        int numNominalZeros = 0;
+        for (int r = 0; r < 500; r++) {
+            double[] dense = new double[header.numAttributes()];
+            for (int a = 0; a < dense.length; a++) {
+                if (a == header.classIndex() || random.nextDouble() < 0.6) {
+                    continue;
+                }
+                if (random.nextDouble() < 0.15) {
+                    dense[a] = Utils.missingValue();
+                    numMissing++;
+                } else if (header.attribute(a).isNominal()) {
+                    dense[a] = random.nextInt(header.attribute(a).numValues());
+                } else {
+                    dense[a] = random.nextGaussian();
+                }
+                if (header.attribute(a).isNominal() && dense[a] == 0) {
+                    numNominalZeros++;
+                }
+            }
+            SparseInstance instance = new SparseInstance(1, dense);
+            instance.setDataset(header);
+            SparseRow row = SparseRow.of(instance);
+
+            double[] expected = scorer.distributionForRow(dense);
+            assertArrayEquals(expected, scorer.distributionForSparseRow(row), 1e-12);
+            assertArrayEquals(expected, expanding.distributionForSparseRow(row), 1e-12);
+            assertArrayEquals(expected, forest.distributionForInstance(instance), 1e-9);
+        }
+        assertTrue(numMissing > 0);
+        assertTrue(numNominalZeros > 0);
+    }
+}
@@ -0,0 +1,73 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class CompiledForestTest {
+
+    /**
+     * Builds a single tree of the given depth: every split on {@code x} has a leaf on its left and the rest of the
+     * chain on its right.
+     */
+    private static CompiledForest chain(int depth) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(1);
+
+        CompiledForest.Builder builder = new CompiledForest.Builder(header);
+        int node = builder.addTree();
+        for (int level = 0; level < depth; level++) {
+            int first = builder.addChildren(2);
+            builder.setSplit(node, 0, level, first, 2);
+            builder.setLeaf(first, new double[]{level % 2, 1 - level % 2});
+            builder.setProportion(first, 0.25);
+            builder.setProportion(first + 1, 0.75);
+            node = first + 1;
+        }
+        builder.setLeaf(node, new double[]{1, 0});
+        return builder.build();
+    }
+
+    @Test(timeout = 60000)
+    public void deepTreesAreWalkedOnADefaultStackWithMissingValues() throws Exception {
+        final CompiledForest forest = chain(100000);
+        final List<double[]> distributions = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        // A new thread gets the default stack size, which the main thread may not have.
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    double[] row = {Double.NaN, Double.NaN};
+                    distributions.add(new CompiledForestScorer(forest).distributionForRow(row));
+                    distributions.add(new CompiledForestScorer(forest).distributionForSparseRow(
+                            new SparseRow(new int[]{0}, new double[]{Double.NaN})));
+                    distributions.add(new QuantizedForestScorer(forest).distributionForRow(row));
+                    distributions.add(new InstrumentedForestScorer(forest).distributionForRow(row));
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNull(failure.get());
+
+        double[] expected = distributions.get(0);
+        assertEquals(1, expected[0] + expected[1], 1e-9);
+        for (double[] distribution : distributions) {
+            assertArrayEquals(expected, distribution, 0);
+        }
+    }
+}
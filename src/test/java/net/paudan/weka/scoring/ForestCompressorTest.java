@@ -0,0 +1,84 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ForestCompressorTest {
+
+    private static Instances data;
+    private static RandomForest forest;
+
+    @BeforeClass
+    public static void train() throws Exception {
+        try (Reader reader = new InputStreamReader(
+                ForestCompressorTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        forest = new RandomForest();
+        forest.setNumIterations(20);
+        forest.buildClassifier(data);
+    }
+
+    private static double accuracy(CompiledForest forest) {
+        CompiledForestScorer scorer = new CompiledForestScorer(forest);
+        double correct = 0;
+        double total = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            if (data.instance(i).classIsMissing()) {
+                continue;
+            }
+            total += data.instance(i).weight();
+            if (Utils.maxIndex(scorer.distributionForInstance(data.instance(i))) == (int) data.instance(i).classValue()) {
+                correct += data.instance(i).weight();
+            }
+        }
+        return correct / total;
+    }
+
+    /**
+     * Checks every step of the curve against the accuracy of the ensemble compressed to the trees selected so far,
+     * on data holding missing values, whose votes are walked again rather than read from a leaf.
+     */
+    @Test
+    public void curveAccuraciesAreThoseOfTheCompressedEnsembles() throws Exception {
+        ForestCompressor.Result result = ForestCompressor.select(forest, data, 0);
+
+        assertEquals(accuracy(ForestCompiler.compile(forest)), result.getFullAccuracy(), 1e-12);
+        int[] selected = result.getSelectedTrees();
+        List<ForestCompressor.Step> curve = result.getCurve();
+        assertEquals(selected.length, curve.size());
+        assertTrue(curve.get(curve.size() - 1).getAccuracy() >= result.getFullAccuracy());
+        for (int s = 0; s < curve.size(); s++) {
+            RandomForest compressed = ForestCompressor.compress(forest, Arrays.copyOf(selected, s + 1));
+            assertEquals(curve.get(s).getAccuracy(), accuracy(ForestCompiler.compile(compressed)), 1e-12);
+        }
+    }
+
+    /**
+     * Only compares accuracies, since ties between trees are broken on their measured time.
+     */
+    @Test
+    public void largeDataIsSampled() throws Exception {
+        CompiledForest compiled = ForestCompiler.compile(forest);
+        ForestCompressor.Result all = ForestCompressor.select(compiled, data, null, 0.01);
+        ForestCompressor.Result unsampled = ForestCompressor.select(compiled, data, null, 0.01, data.numInstances());
+        assertEquals(all.getFullAccuracy(), unsampled.getFullAccuracy(), 0);
+
+        ForestCompressor.Result sampled = ForestCompressor.select(compiled, data, null, 0.01, 50);
+        double correct = sampled.getFullAccuracy() * 50;
+        assertEquals(Math.rint(correct), correct, 1e-9);
+        assertEquals(sampled.getFullAccuracy(),
+                ForestCompressor.select(compiled, data, null, 0.01, 50).getFullAccuracy(), 0);
+    }
+}
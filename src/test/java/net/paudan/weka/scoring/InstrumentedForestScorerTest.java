@@ -0,0 +1,159 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import weka.classifiers.SyntheticForestGenerator;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class InstrumentedForestScorerTest {
+
+    private static CompiledForest stump() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(1);
+        CompiledForest.Builder builder = new CompiledForest.Builder(header);
+        int root = builder.addTree();
+        int first = builder.addChildren(2);
+        builder.setSplit(root, 0, 0.5, first, 2);
+        builder.setLeaf(first, new double[]{1, 0});
+        builder.setLeaf(first + 1, new double[]{0, 1});
+        builder.setProportion(first, 0.5);
+        builder.setProportion(first + 1, 0.5);
+        return builder.build();
+    }
+
+    @Test
+    public void countsOfThreadsHavingEndedAreKept() throws InterruptedException {
+        final InstrumentedForestScorer scorer = new InstrumentedForestScorer(stump(), 8);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        scorer.distributionForRow(new double[]{i % 2, 0});
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        InstrumentedForestScorer.Snapshot snapshot = scorer.snapshot();
+        assertEquals(16000, snapshot.getRowsScored());
+        assertEquals(16000, snapshot.getNodeVisits()[0]);
+        assertEquals(8000, snapshot.getNodeVisits()[1]);
+        assertEquals(Long.valueOf(16000), snapshot.getAttributeEvaluations().get("x"));
+
+        scorer.reset();
+        scorer.distributionForRow(new double[]{0, 0});
+        assertEquals(1, scorer.getRowsScored());
+    }
+
+    @Test
+    public void countsOfLiveThreadsAreReadAndReset() throws InterruptedException {
+        final InstrumentedForestScorer scorer = new InstrumentedForestScorer(stump(), 8);
+        final CountDownLatch scored = new CountDownLatch(1);
+        final CountDownLatch reset = new CountDownLatch(1);
+        final CountDownLatch scoredAgain = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        scorer.distributionForRow(new double[]{i % 2, 0});
+                    }
+                    scored.countDown();
+                    reset.await();
+                    scorer.distributionForRow(new double[]{1, 0});
+                    scoredAgain.countDown();
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        try {
+            scored.await();
+            assertEquals(100, scorer.getRowsScored());
+            assertEquals(50, scorer.snapshot().getNodeVisits()[1]);
+
+            scorer.reset();
+            assertEquals(0, scorer.getRowsScored());
+            reset.countDown();
+            scoredAgain.await();
+            InstrumentedForestScorer.Snapshot snapshot = scorer.snapshot();
+            assertEquals(1, snapshot.getRowsScored());
+            assertArrayEquals(new long[]{1, 0, 1}, snapshot.getNodeVisits());
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+        assertEquals(1, scorer.getRowsScored());
+    }
+
+    /**
+     * Compares the throughput of an instrumented scorer with that of a plain one on the same forest and rows. The
+     * bound is loose, so that the test does not fail on a busy machine; the measured figures are printed.
+     */
+    @Test
+    public void instrumentationCostsLittleThroughput() throws Exception {
+        SyntheticForestGenerator generator = new SyntheticForestGenerator();
+        generator.setNumTrees(50);
+        generator.setMaxDepth(12);
+        CompiledForest forest = ForestCompiler.compile(generator.generate());
+        Instances header = forest.getHeader();
+        Random random = new Random(1);
+        double[][] rows = new double[2000][header.numAttributes()];
+        for (double[] row : rows) {
+            for (int a = 0; a < row.length; a++) {
+                Attribute attribute = header.attribute(a);
+                row[a] = attribute.isNominal() ? random.nextInt(attribute.numValues()) : random.nextGaussian();
+            }
+        }
+
+        CompiledForestScorer plain = new CompiledForestScorer(forest);
+        InstrumentedForestScorer instrumented = new InstrumentedForestScorer(forest);
+        for (int warmUp = 0; warmUp < 5; warmUp++) {
+            score(plain, rows);
+            score(instrumented, rows);
+        }
+        long plainNanos = Long.MAX_VALUE;
+        long instrumentedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            plainNanos = Math.min(plainNanos, score(plain, rows));
+            instrumentedNanos = Math.min(instrumentedNanos, score(instrumented, rows));
+        }
+        double ratio = (double) instrumentedNanos / plainNanos;
+        System.out.println(String.format("%d rows: compiled %.1f ms, instrumented %.1f ms (x%.2f)", rows.length,
+                plainNanos / 1e6, instrumentedNanos / 1e6, ratio));
+        assertTrue("Instrumented scoring is " + ratio + " times slower.", ratio < 3);
+    }
+
+    private static long score(ForestScorer scorer, double[][] rows) {
+        long start = System.nanoTime();
+        double sum = 0;
+        for (double[] row : rows) {
+            sum += scorer.distributionForRow(row)[0];
+        }
+        long nanos = System.nanoTime() - start;
+        assertTrue(sum >= 0);
+        return nanos;
+    }
+}
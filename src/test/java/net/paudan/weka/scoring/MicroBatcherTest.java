@@ -0,0 +1,112 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class MicroBatcherTest {
+
+    @Test(timeout = 10000)
+    public void anErrorFailsTheBatchAndKeepsTheDispatcherAlive() throws InterruptedException {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        final Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(1);
+        final StackOverflowError error = new StackOverflowError();
+        ForestScorer scorer = new AbstractForestScorer() {
+            @Override
+            public Instances getHeader() {
+                return header;
+            }
+
+            @Override
+            public double[] distributionForRow(double[] row) {
+                if (row[0] < 0) {
+                    throw error;
+                }
+                return new double[]{1, 0};
+            }
+        };
+
+        MicroBatcher batcher = new MicroBatcher(scorer, 1, 0, 16, 1);
+        try {
+            batcher.score(new double[]{-1, 0});
+            fail("Expected the row to fail.");
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+        assertArrayEquals(new double[]{1, 0}, batcher.score(new double[]{1, 0}), 0);
+        batcher.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void aCallerQueuingAfterTheDispatchersStoppedIsRejected() throws Exception {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        final Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(1);
+        ForestScorer scorer = new AbstractForestScorer() {
+            @Override
+            public Instances getHeader() {
+                return header;
+            }
+
+            @Override
+            public double[] distributionForRow(double[] row) {
+                return new double[]{1, 0};
+            }
+        };
+
+        // Holds the caller between its check of the batcher's state and the queuing of its row.
+        final CountDownLatch offering = new CountDownLatch(1);
+        final CountDownLatch shutDown = new CountDownLatch(1);
+        BlockingQueue<MicroBatcher.Request> queue = new ArrayBlockingQueue<MicroBatcher.Request>(16) {
+            @Override
+            public boolean offer(MicroBatcher.Request request) {
+                offering.countDown();
+                try {
+                    shutDown.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.offer(request);
+            }
+        };
+        final MicroBatcher batcher = new MicroBatcher(scorer, 4, 50, queue, 2);
+        final AtomicReference<Throwable> outcome = new AtomicReference<>();
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batcher.score(new double[]{1, 0});
+                } catch (Throwable e) {
+                    outcome.set(e);
+                }
+            }
+        });
+        caller.setDaemon(true);
+        caller.start();
+
+        offering.await();
+        batcher.shutdown();
+        shutDown.countDown();
+        caller.join(5000);
+        assertFalse("The caller was left waiting.", caller.isAlive());
+        assertTrue(String.valueOf(outcome.get()), outcome.get() instanceof RejectedExecutionException);
+    }
+}
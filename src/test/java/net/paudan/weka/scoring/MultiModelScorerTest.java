@@ -0,0 +1,91 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+public class MultiModelScorerTest {
+
+    private static CompiledForest stump() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("y"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(2);
+
+        CompiledForest.Builder builder = new CompiledForest.Builder(header);
+        int root = builder.addTree();
+        int first = builder.addChildren(2);
+        builder.setSplit(root, 1, 0.5, first, 2);
+        builder.setLeaf(first, new double[]{0.9, 0.1});
+        builder.setLeaf(first + 1, new double[]{0.2, 0.8});
+        builder.setProportion(first, 0.5);
+        builder.setProportion(first + 1, 0.5);
+        return builder.build();
+    }
+
+    /**
+     * Records the dense rows it is given, and fails if asked to score a sparse row.
+     */
+    private static final class RecordingScorer extends AbstractForestScorer {
+
+        private final CompiledForestScorer scorer;
+        private final List<double[]> rows = new ArrayList<>();
+
+        RecordingScorer(CompiledForest forest) {
+            this.scorer = new CompiledForestScorer(forest);
+        }
+
+        @Override
+        public Instances getHeader() {
+            return scorer.getHeader();
+        }
+
+        @Override
+        public double[] distributionForRow(double[] row) {
+            rows.add(row);
+            return scorer.distributionForRow(row);
+        }
+
+        @Override
+        public double[] distributionForSparseRow(SparseRow row) {
+            throw new AssertionError("Sparse rows are expanded before reaching this scorer.");
+        }
+    }
+
+    @Test
+    public void sparseInstancesAreExpandedOnceForTheScorersThatNeedIt() {
+        CompiledForest forest = stump();
+        RecordingScorer first = new RecordingScorer(forest);
+        RecordingScorer second = new RecordingScorer(forest);
+        CompiledForestScorer compiled = new CompiledForestScorer(forest);
+        MultiModelScorer scorer = new MultiModelScorer(Arrays.asList("first", "compiled", "second"),
+                Arrays.<ForestScorer>asList(first, compiled, second));
+
+        Instances data = new Instances(forest.getHeader(), 0);
+        data.add(new SparseInstance(1, new double[]{0, 0, 0}));
+        data.add(new SparseInstance(1, new double[]{3, 1, 0}));
+        data.add(new SparseInstance(1, new double[]{0, 0.7, 1}));
+        MultiModelScorer.Result result = scorer.scoreInstances(data);
+
+        assertEquals(data.numInstances(), first.rows.size());
+        assertEquals(data.numInstances(), second.rows.size());
+        for (int r = 0; r < data.numInstances(); r++) {
+            assertSame(first.rows.get(r), second.rows.get(r));
+            assertArrayEquals(data.instance(r).toDoubleArray(), first.rows.get(r), 0);
+            double[] expected = compiled.distributionForRow(data.instance(r).toDoubleArray());
+            for (int m = 0; m < result.numModels(); m++) {
+                assertArrayEquals(expected, result.getDistributions(m)[r], 1e-12);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.SyntheticForestGenerator;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class NodeLayoutTest {
+
+    private CompiledForest forest;
+    private List<double[]> rows;
+
+    @Before
+    public void generate() throws Exception {
+        SyntheticForestGenerator generator = new SyntheticForestGenerator();
+        generator.setNumTrees(20);
+        generator.setMaxDepth(8);
+        forest = ForestCompiler.compile(generator.generate());
+
+        Instances header = forest.getHeader();
+        Random random = new Random(5);
+        rows = new ArrayList<>();
+        for (int r = 0; r < 500; r++) {
+            double[] row = new double[header.numAttributes()];
+            for (int a = 0; a < row.length; a++) {
+                Attribute attribute = header.attribute(a);
+                if (random.nextDouble() < 0.1) {
+                    row[a] = Utils.missingValue();
+                } else {
+                    row[a] = attribute.isNominal() ? random.nextInt(attribute.numValues()) : random.nextGaussian();
+                }
+            }
+            rows.add(row);
+        }
+    }
+
+    private void assertSamePredictions(CompiledForest laidOut) {
+        assertEquals(forest.numTrees(), laidOut.numTrees());
+        assertEquals(forest.numNodes(), laidOut.numNodes());
+        CompiledForestScorer expected = new CompiledForestScorer(forest);
+        CompiledForestScorer actual = new CompiledForestScorer(laidOut);
+        for (double[] row : rows) {
+            assertArrayEquals(expected.distributionForRow(row), actual.distributionForRow(row), 1e-12);
+        }
+    }
+
+    @Test
+    public void layingOutByTrainingProportionsKeepsThePredictions() {
+        CompiledForest laidOut = NodeLayout.optimize(forest);
+        assertSamePredictions(laidOut);
+
+        // The successors of the most likely child of each root directly follow the root's successors.
+        for (int tree = 0; tree < laidOut.numTrees(); tree++) {
+            int root = laidOut.root(tree);
+            if (laidOut.attribute[root] == CompiledForest.LEAF) {
+                continue;
+            }
+            int first = laidOut.firstChild[root];
+            int count = laidOut.numChildren[root];
+            int likely = first;
+            for (int child = first + 1; child < first + count; child++) {
+                if (laidOut.proportion[child] > laidOut.proportion[likely]) {
+                    likely = child;
+                }
+            }
+            if (laidOut.attribute[likely] != CompiledForest.LEAF) {
+                assertEquals(first + count, laidOut.firstChild[likely]);
+            }
+        }
+    }
+
+    @Test
+    public void layingOutByEstimatedProbabilitiesKeepsThePredictions() {
+        double[] probabilities = NodeLayout.estimateProbabilities(forest, rows.subList(0, 100), 1);
+        assertEquals(forest.numNodes(), probabilities.length);
+        assertSamePredictions(NodeLayout.optimize(forest, probabilities));
+    }
+}
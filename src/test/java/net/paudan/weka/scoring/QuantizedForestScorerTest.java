@@ -0,0 +1,65 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class QuantizedForestScorerTest {
+
+    private static Instances header() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("y"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(2);
+        return header;
+    }
+
+    /**
+     * Builds one stump per split point, on attribute {@code x}, plus one stump on {@code y}.
+     */
+    private static CompiledForest stumps(int numSplits, Random random) {
+        CompiledForest.Builder builder = new CompiledForest.Builder(header());
+        for (int i = 0; i <= numSplits; i++) {
+            int root = builder.addTree();
+            int first = builder.addChildren(2);
+            double split = i < numSplits ? i + random.nextDouble() : 0.5;
+            builder.setSplit(root, i < numSplits ? 0 : 1, split, first, 2);
+            double p = random.nextDouble();
+            builder.setLeaf(first, new double[]{p, 1 - p});
+            builder.setLeaf(first + 1, new double[]{1 - p, p});
+            builder.setProportion(first, 0.5);
+            builder.setProportion(first + 1, 0.5);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void attributesWithTooManySplitPointsForAShortAreStillExact() {
+        Random random = new Random(1);
+        CompiledForest forest = stumps(Short.MAX_VALUE + 1000, random);
+        QuantizedForestScorer quantized = new QuantizedForestScorer(forest);
+        CompiledForestScorer reference = new CompiledForestScorer(forest);
+        assertEquals(Short.MAX_VALUE + 1000, quantized.getSplitPoints(0).length);
+        assertEquals(1, quantized.getSplitPoints(1).length);
+
+        double[][] rows = new double[200][];
+        for (int r = 0; r < rows.length; r++) {
+            double x = random.nextInt(10) == 0 ? Double.NaN : random.nextDouble() * (Short.MAX_VALUE + 1000);
+            rows[r] = new double[]{x, random.nextDouble(), 0};
+        }
+        // Values equal to split points take the right branch in both scorers.
+        rows[0][0] = quantized.getSplitPoints(0)[Short.MAX_VALUE + 500];
+        rows[1][0] = quantized.getSplitPoints(0)[10];
+        for (double[] row : rows) {
+            assertArrayEquals(reference.distributionForRow(row), quantized.distributionForRow(row), 1e-9);
+        }
+    }
+}
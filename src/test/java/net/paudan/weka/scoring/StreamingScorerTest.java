@@ -0,0 +1,127 @@
+package net.paudan.weka.scoring;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+public class StreamingScorerTest {
+
+    private static Instances header() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b")));
+        Instances header = new Instances("test", attributes, 0);
+        header.setClassIndex(1);
+        return header;
+    }
+
+    @Test(timeout = 10000)
+    public void anErrorInAWorkerFailsTheRunInsteadOfHangingIt() throws IOException {
+        final Instances header = header();
+        final StackOverflowError error = new StackOverflowError();
+        ForestScorer scorer = new AbstractForestScorer() {
+            @Override
+            public Instances getHeader() {
+                return header;
+            }
+
+            @Override
+            public double[] distributionForRow(double[] row) {
+                if (row[0] == 3) {
+                    throw error;
+                }
+                return new double[]{1, 0};
+            }
+        };
+
+        StringBuilder csv = new StringBuilder("x\n");
+        for (int i = 0; i < 100; i++) {
+            csv.append(i).append('\n');
+        }
+        try {
+            new StreamingScorer(scorer, 2, 2, 4, 0, null).scoreCsv(new StringReader(csv.toString()), new StringWriter());
+            fail("Expected the run to fail.");
+        } catch (IOException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    /**
+     * A CSV input of a million rows, generated as it is read.
+     */
+    private static final class LargeCsv extends Reader {
+
+        private static final int NUM_ROWS = 1000000;
+
+        private final StringBuilder pending = new StringBuilder("x\n");
+        private int rowsRead;
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (pending.length() == 0) {
+                if (rowsRead == NUM_ROWS) {
+                    return -1;
+                }
+                pending.append(rowsRead++).append('\n');
+            }
+            int count = Math.min(length, pending.length());
+            pending.getChars(0, count, buffer, offset);
+            pending.delete(0, count);
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void aFailingOutputStopsTheRunEarly() throws IOException {
+        final Instances header = header();
+        ForestScorer scorer = new AbstractForestScorer() {
+            @Override
+            public Instances getHeader() {
+                return header;
+            }
+
+            @Override
+            public double[] distributionForRow(double[] row) {
+                return new double[]{1, 0};
+            }
+        };
+        final IllegalStateException error = new IllegalStateException();
+        Writer output = new StringWriter() {
+            private int writes;
+
+            @Override
+            public void write(String str) {
+                // The header, then the first batch.
+                if (++writes > 2) {
+                    throw error;
+                }
+                super.write(str);
+            }
+        };
+
+        LargeCsv input = new LargeCsv();
+        try {
+            new StreamingScorer(scorer, 2, 10, 4, 0, null).scoreCsv(new BufferedReader(input, 64), output);
+            fail("Expected the run to fail.");
+        } catch (IOException e) {
+            assertSame(error, e.getCause());
+        }
+        assertTrue("Read " + input.rowsRead + " rows.", input.rowsRead < 1000);
+    }
+}
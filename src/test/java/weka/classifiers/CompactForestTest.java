@@ -0,0 +1,116 @@
+package weka.classifiers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import javax.xml.transform.stream.StreamResult;
+import net.paudan.weka.pmml.RandomForestPMMLProducer;
+import org.jpmml.model.JAXBUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.classifiers.meta.Bagging;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.Instances;
+
+/**
+ * Checks that a forest written in the compact form reads back as a forest that predicts and converts to PMML as the
+ * original one.
+ */
+public class CompactForestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Instances data;
+
+    @Before
+    public void loadData() throws Exception {
+        try (Reader reader = new InputStreamReader(
+                CompactForestTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+    }
+
+    private static RandomForest train(Instances data) throws Exception {
+        RandomForest forest = new RandomForest();
+        forest.setNumIterations(10);
+        forest.buildClassifier(data);
+        return forest;
+    }
+
+    private static String toPMML(RandomForest forest) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JAXBUtil.marshalPMML(new RandomForestPMMLProducer().produce(forest), new StreamResult(bytes));
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+
+    private void assertSameForestAfterRoundTrip(RandomForest forest, Instances data) throws Exception {
+        File file = folder.newFile();
+        CompactForest.write(forest, file);
+        Bagging read = CompactForest.read(file);
+
+        assertEquals(RandomForest.class, read.getClass());
+        assertEquals(toPMML(forest), toPMML((RandomForest) read));
+        for (int i = 0; i < data.numInstances(); i++) {
+            assertArrayEquals(forest.distributionForInstance(data.instance(i)),
+                    read.distributionForInstance(data.instance(i)), 0);
+        }
+    }
+
+    @Test
+    public void aNominalClassForestRoundTrips() throws Exception {
+        assertSameForestAfterRoundTrip(train(data), data);
+    }
+
+    @Test
+    public void aNumericClassForestRoundTrips() throws Exception {
+        data.setClassIndex(data.attribute("visits").index());
+        assertSameForestAfterRoundTrip(train(data), data);
+    }
+
+    private Instances classOnly() {
+        Instances classOnly = new Instances(data);
+        for (int a = classOnly.numAttributes() - 1; a >= 0; a--) {
+            if (a != classOnly.classIndex()) {
+                classOnly.deleteAttributeAt(a);
+            }
+        }
+        return classOnly;
+    }
+
+    @Test
+    public void treesReplacedByZeroRRoundTrip() throws Exception {
+        RandomForest forest = train(data);
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(forest);
+        for (int t = 1; t < trees.length; t += 3) {
+            // A tree trained on the class alone falls back to ZeroR.
+            RandomTree tree = new RandomTree();
+            tree.buildClassifier(classOnly());
+            trees[t] = tree;
+        }
+        RandomForestUtils.setBaggingClassifiers(forest, trees);
+
+        assertSameForestAfterRoundTrip(forest, data);
+    }
+
+    @Test
+    public void aForestOfZeroRRoundTrips() throws Exception {
+        Instances classOnly = classOnly();
+        assertSameForestAfterRoundTrip(train(classOnly), classOnly);
+    }
+
+    @Test
+    public void aNumericForestOfZeroRRoundTrips() throws Exception {
+        data.setClassIndex(data.attribute("visits").index());
+        Instances classOnly = classOnly();
+        assertSameForestAfterRoundTrip(train(classOnly), classOnly);
+    }
+}
@@ -0,0 +1,89 @@
+package weka.classifiers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Instances;
+
+/**
+ * Checks that a forest does not depend on the number of threads training it.
+ */
+public class ParallelRandomForestBuilderTest {
+
+    private Instances data;
+
+    @Before
+    public void loadData() throws Exception {
+        try (Reader reader = new InputStreamReader(
+                ParallelRandomForestBuilderTest.class.getResourceAsStream("/customers.arff"), "UTF-8")) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        data.deleteWithMissingClass();
+    }
+
+    private static RandomForest build(Instances data, int numThreads) throws Exception {
+        ParallelRandomForestBuilder builder = new ParallelRandomForestBuilder();
+        builder.setNumTrees(20);
+        builder.setSeed(5);
+        builder.setNumThreads(numThreads);
+        return builder.build(data);
+    }
+
+    private void assertSameForestWhateverTheThreads(Instances data) throws Exception {
+        RandomForest sequential = build(data, 1);
+        RandomForest parallel = build(data, 4);
+
+        Classifier[] expected = RandomForestUtils.getBaggingClassifiers(sequential);
+        Classifier[] actual = RandomForestUtils.getBaggingClassifiers(parallel);
+        assertEquals(expected.length, actual.length);
+        for (int t = 0; t < expected.length; t++) {
+            RandomTreeWrapperTest.assertSameNode(((RandomTreeWrapper) expected[t]).getM_Tree(),
+                    ((RandomTreeWrapper) actual[t]).getM_Tree());
+        }
+
+        boolean[][] expectedInBag = RandomForestUtils.getInBag(sequential);
+        boolean[][] actualInBag = RandomForestUtils.getInBag(parallel);
+        assertNotNull(expectedInBag);
+        assertEquals(expectedInBag.length, actualInBag.length);
+        for (int t = 0; t < expectedInBag.length; t++) {
+            assertArrayEquals(expectedInBag[t], actualInBag[t]);
+        }
+
+        for (int i = 0; i < data.numInstances(); i++) {
+            assertArrayEquals(sequential.distributionForInstance(data.instance(i)),
+                    parallel.distributionForInstance(data.instance(i)), 0);
+        }
+    }
+
+    @Test
+    public void aNominalClassForestIsTheSameWhateverTheThreads() throws Exception {
+        assertSameForestWhateverTheThreads(data);
+    }
+
+    @Test
+    public void aNumericClassForestIsTheSameWhateverTheThreads() throws Exception {
+        data.setClassIndex(data.attribute("visits").index());
+        assertSameForestWhateverTheThreads(data);
+    }
+
+    @Test
+    public void aNumericClassForestAveragesItsTrees() throws Exception {
+        data.setClassIndex(data.attribute("visits").index());
+        RandomForest forest = build(data, 2);
+        Classifier[] trees = RandomForestUtils.getBaggingClassifiers(forest);
+        for (int i = 0; i < data.numInstances(); i++) {
+            double sum = 0;
+            for (Classifier tree : trees) {
+                sum += tree.classifyInstance(data.instance(i));
+            }
+            assertEquals(sum / trees.length, forest.classifyInstance(data.instance(i)), 1e-9);
+        }
+    }
+}
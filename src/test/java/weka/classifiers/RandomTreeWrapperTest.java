@@ -0,0 +1,155 @@
+package weka.classifiers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.core.Instances;
+
+/**
+ * Checks that trees trained out of core are the trees trained in memory.
+ */
+public class RandomTreeWrapperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Instances data;
+    private ColumnarData columnar;
+
+    @Before
+    public void loadData() throws Exception {
+        File arff = folder.newFile("customers.arff");
+        try (InputStream is = RandomTreeWrapperTest.class.getResourceAsStream("/customers.arff")) {
+            Files.copy(is, arff.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (Reader reader = new FileReader(arff)) {
+            data = new Instances(reader);
+        }
+        data.setClassIndex(data.numAttributes() - 1);
+        columnar = ColumnarData.convert(arff, folder.newFile("customers.col"));
+    }
+
+    @After
+    public void closeData() throws Exception {
+        columnar.close();
+    }
+
+    private static RandomTreeWrapper newTree(int seed) {
+        RandomTreeWrapper tree = new RandomTreeWrapper();
+        tree.setSeed(seed);
+        return tree;
+    }
+
+    /**
+     * Compares two trees node by node. Split attributes and points must be equal; weights may differ in the last
+     * bits, since the in-memory path sums them in the order of the sorted instances.
+     */
+    private void assertSameTree(RandomTreeWrapper expected, RandomTreeWrapper actual) throws Exception {
+        assertSameTree(expected, actual, data);
+    }
+
+    private static void assertSameTree(RandomTreeWrapper expected, RandomTreeWrapper actual, Instances data)
+            throws Exception {
+        assertSameNode(expected.getM_Tree(), actual.getM_Tree());
+        for (int i = 0; i < data.numInstances(); i++) {
+            assertArrayEquals(expected.distributionForInstance(data.instance(i)),
+                    actual.distributionForInstance(data.instance(i)), 1e-9);
+        }
+    }
+
+    static void assertSameNode(RandomTreeWrapper.TreeWrapper expected, RandomTreeWrapper.TreeWrapper actual) {
+        assertEquals(expected.getM_Attribute(), actual.getM_Attribute());
+        assertArrayEquals(expected.getM_ClassDistribution(), actual.getM_ClassDistribution(), 1e-9);
+        if (expected.getM_Attribute() == -1) {
+            return;
+        }
+        assertEquals(expected.getM_SplitPoint(), actual.getM_SplitPoint(), 0);
+        assertArrayEquals(expected.getM_Prop(), actual.getM_Prop(), 1e-9);
+        assertEquals(expected.getM_Successors().length, actual.getM_Successors().length);
+        for (int i = 0; i < expected.getM_Successors().length; i++) {
+            assertSameNode(expected.getM_Successors()[i], actual.getM_Successors()[i]);
+        }
+    }
+
+    @Test
+    public void bootstrapSamplesGiveTheSameTrees() throws Exception {
+        assertNull(data.equalHeadersMsg(columnar.getHeader()));
+        Random random = new Random(7);
+        for (int seed = 1; seed <= 10; seed++) {
+            int[] counts = new int[data.numInstances()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[random.nextInt(counts.length)]++;
+            }
+            RandomTreeWrapper inMemory = newTree(seed);
+            inMemory.buildClassifier(data, counts);
+            RandomTreeWrapper outOfCore = newTree(seed);
+            outOfCore.buildClassifier(columnar, counts);
+            assertSameTree(inMemory, outOfCore);
+        }
+    }
+
+    @Test
+    public void theWholeDataGivesTheSameTree() throws Exception {
+        RandomTreeWrapper inMemory = newTree(3);
+        inMemory.buildClassifier(data);
+        RandomTreeWrapper outOfCore = newTree(3);
+        outOfCore.buildClassifier(columnar, null);
+        assertSameTree(inMemory, outOfCore);
+    }
+
+    /**
+     * Builds trees on nominal and numeric classes in turn on the same thread, so that each tree built with reused
+     * buffers starts from what the previous one left in them, and compares them with trees built on fresh buffers.
+     */
+    @Test
+    public void reusingScratchBuffersGivesTheSameTrees() throws Exception {
+        Instances numeric = new Instances(data);
+        numeric.setClassIndex(numeric.attribute("visits").index());
+        Instances[] datasets = {data, numeric};
+        Random random = new Random(11);
+        for (int seed = 1; seed <= 10; seed++) {
+            for (Instances dataset : datasets) {
+                int[] counts = new int[dataset.numInstances()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[random.nextInt(counts.length)]++;
+                }
+                RandomTreeWrapper fresh = newTree(seed);
+                fresh.buildClassifier(dataset, counts);
+                RandomTreeWrapper reused = newTree(seed);
+                reused.setReuseScratchBuffers(true);
+                reused.buildClassifier(dataset, counts);
+                assertSameTree(fresh, reused, dataset);
+
+                fresh = newTree(seed);
+                fresh.buildClassifier(dataset);
+                reused = newTree(seed);
+                reused.setReuseScratchBuffers(true);
+                reused.buildClassifier(dataset);
+                assertSameTree(fresh, reused, dataset);
+            }
+        }
+    }
+
+    @Test
+    public void columnarScratchSortsStablyWithMissingValuesLast() {
+        double[] values = {3, Double.NaN, 1, 3, -2, Double.NaN, 1, 0};
+        RandomTreeWrapper.ColumnarScratch scratch = new RandomTreeWrapper.ColumnarScratch(values.length + 2);
+        System.arraycopy(values, 0, scratch.values, 0, values.length);
+        int[] order = scratch.sort(values.length);
+        assertArrayEquals(new int[]{4, 7, 2, 6, 0, 3, 1, 5}, Arrays.copyOf(order, values.length));
+    }
+}
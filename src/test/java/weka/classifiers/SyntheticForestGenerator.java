@@ -0,0 +1,202 @@
+package weka.classifiers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+/**
+ * Generates random {@link weka.classifiers.trees.RandomForest}s of {@link RandomTreeWrapper}s of a given size,
+ * without training data, to measure conversion and scoring at scales no real dataset at hand reaches.
+ * <p/>
+ * The header has numeric and nominal attributes and a nominal class. Trees are grown breadth first through the
+ * {@link RandomTreeWrapper.TreeWrapper} setters: a node becomes a leaf at the maximum depth or, below it, with the
+ * leaf probability, and otherwise splits on a random attribute, with two successors for a numeric attribute and
+ * one per value for a nominal one. Class distributions and training proportions are random. The same seed gives
+ * the same forest.
+ */
+public class SyntheticForestGenerator {
+
+    private int m_NumTrees = 100;
+    private int m_MaxDepth = 10;
+    private double m_LeafProbability = 0.1;
+    private int m_NumNumeric = 20;
+    private int m_NumNominal = 5;
+    private int m_NumNominalValues = 4;
+    private int m_NumClasses = 2;
+    private int m_Seed = 1;
+
+    public int getNumTrees() {
+        return m_NumTrees;
+    }
+
+    public void setNumTrees(int numTrees) {
+        this.m_NumTrees = numTrees;
+    }
+
+    public int getMaxDepth() {
+        return m_MaxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.m_MaxDepth = maxDepth;
+    }
+
+    public double getLeafProbability() {
+        return m_LeafProbability;
+    }
+
+    /**
+     * Sets the probability that a node above the maximum depth is a leaf; {@code 0} grows complete trees.
+     *
+     * @param leafProbability The probability, between {@code 0} and {@code 1}.
+     */
+    public void setLeafProbability(double leafProbability) {
+        this.m_LeafProbability = leafProbability;
+    }
+
+    public int getNumNumeric() {
+        return m_NumNumeric;
+    }
+
+    public void setNumNumeric(int numNumeric) {
+        this.m_NumNumeric = numNumeric;
+    }
+
+    public int getNumNominal() {
+        return m_NumNominal;
+    }
+
+    public void setNumNominal(int numNominal) {
+        this.m_NumNominal = numNominal;
+    }
+
+    public int getNumNominalValues() {
+        return m_NumNominalValues;
+    }
+
+    /**
+     * Sets the number of values of every nominal attribute, i.e. the fan-out of nominal splits.
+     *
+     * @param numNominalValues The number of values.
+     */
+    public void setNumNominalValues(int numNominalValues) {
+        this.m_NumNominalValues = numNominalValues;
+    }
+
+    public int getNumClasses() {
+        return m_NumClasses;
+    }
+
+    public void setNumClasses(int numClasses) {
+        this.m_NumClasses = numClasses;
+    }
+
+    public int getSeed() {
+        return m_Seed;
+    }
+
+    public void setSeed(int seed) {
+        this.m_Seed = seed;
+    }
+
+    /**
+     * Builds the header of the generated forests: numeric attributes, then nominal attributes, then the class.
+     *
+     * @return The header {@link weka.core.Instances}, with its class index set.
+     */
+    public Instances generateHeader() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int i = 0; i < m_NumNumeric; i++) {
+            attributes.add(new Attribute("numeric" + i));
+        }
+        for (int i = 0; i < m_NumNominal; i++) {
+            attributes.add(new Attribute("nominal" + i, values("v", m_NumNominalValues)));
+        }
+        attributes.add(new Attribute("class", values("c", m_NumClasses)));
+        Instances header = new Instances("synthetic", attributes, 0);
+        header.setClassIndex(attributes.size() - 1);
+        return header;
+    }
+
+    /**
+     * Generates a forest.
+     *
+     * @return A new forest of {@link RandomTreeWrapper}s.
+     */
+    public RandomForest generate() {
+        Instances header = generateHeader();
+        Random random = new Random(m_Seed);
+        Classifier[] trees = new Classifier[m_NumTrees];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = generateTree(header, random);
+        }
+        RandomForest forest = new RandomForest();
+        forest.setSeed(m_Seed);
+        forest.setNumIterations(m_NumTrees);
+        RandomForestUtils.setBaggingClassifiers(forest, trees);
+        return forest;
+    }
+
+    private RandomTreeWrapper generateTree(Instances header, Random random) {
+        RandomTreeWrapper tree = new RandomTreeWrapper();
+        tree.setM_Info(header);
+        int numSplitAttributes = m_NumNumeric + m_NumNominal;
+
+        RandomTreeWrapper.TreeWrapper root = tree.new TreeWrapper();
+        ArrayDeque<RandomTreeWrapper.TreeWrapper> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        nodes.add(root);
+        depths.add(0);
+        while (!nodes.isEmpty()) {
+            RandomTreeWrapper.TreeWrapper node = nodes.poll();
+            int depth = depths.poll();
+            node.setM_ClassDistribution(randomDistribution(random, m_NumClasses, 100));
+
+            if (depth >= m_MaxDepth || numSplitAttributes == 0
+                    || (depth > 0 && random.nextDouble() < m_LeafProbability)) {
+                node.setM_Attribute(-1);
+                continue;
+            }
+
+            int attribute = random.nextInt(numSplitAttributes);
+            int numSuccessors = attribute < m_NumNumeric ? 2 : m_NumNominalValues;
+            node.setM_Attribute(attribute);
+            node.setM_SplitPoint(attribute < m_NumNumeric ? random.nextGaussian() : Double.NaN);
+            node.setM_Prop(randomDistribution(random, numSuccessors, 1));
+            RandomTreeWrapper.TreeWrapper[] successors = new RandomTreeWrapper.TreeWrapper[numSuccessors];
+            for (int i = 0; i < numSuccessors; i++) {
+                successors[i] = tree.new TreeWrapper();
+                nodes.add(successors[i]);
+                depths.add(depth + 1);
+            }
+            node.setM_Successors(successors);
+        }
+        tree.setM_Tree(root);
+        return tree;
+    }
+
+    private static List<String> values(String prefix, int count) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            values.add(prefix + i);
+        }
+        return values;
+    }
+
+    private static double[] randomDistribution(Random random, int size, double total) {
+        double[] distribution = new double[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            distribution[i] = random.nextDouble();
+            sum += distribution[i];
+        }
+        for (int i = 0; i < size; i++) {
+            distribution[i] *= total / sum;
+        }
+        return distribution;
+    }
+}